@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2013 3 Round Stones Inc., Some Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.callimachusproject.engine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLEventReader;
+
+import org.apache.http.client.HttpClient;
+import org.callimachusproject.engine.helpers.RDFaProducer;
+import org.callimachusproject.engine.helpers.SPARQLProducer;
+import org.callimachusproject.engine.model.TermOrigin;
+import org.openrdf.http.object.client.HttpClientFactory;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.DCTERMS;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.model.vocabulary.SKOS;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.query.impl.MapBindingSet;
+import org.openrdf.query.impl.TupleQueryResultImpl;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.repository.sail.SailRepositoryConnection;
+import org.openrdf.sail.memory.MemoryStore;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of parsing, compiling and rendering the XHTML templates and
+ * pages shipped in the webapp. Each operation processes every template that
+ * the engine can compile on its own (some rely on namespaces declared by the
+ * layout and are skipped). Run with "ant bench"; the default arguments
+ * include the gc profiler, whose gc.alloc.rate.norm is the allocation per
+ * operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TemplateEngineBenchmark {
+	private static final String SYSTEM_ID = "http://example.com/";
+	private static final String RESOURCE = SYSTEM_ID + "resource";
+
+	/** Number of RDFa events read, reported as events per second */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Events {
+		public long events;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			events = 0;
+		}
+	}
+
+	private final List<Template> templates = new ArrayList<Template>();
+	private final List<Template> renderable = new ArrayList<Template>();
+	private SailRepository repository;
+	private SailRepositoryConnection con;
+	private MapBindingSet bindings;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		HttpClient client = HttpClientFactory.getInstance().createHttpClient(SYSTEM_ID);
+		TemplateEngine engine = TemplateEngine.newInstance(client);
+		File webapp = new File(System.getProperty(
+				"org.callimachusproject.bench.webapp", "webapp"));
+		repository = new SailRepository(new MemoryStore());
+		repository.initialize();
+		con = repository.getConnection();
+		ValueFactory vf = con.getValueFactory();
+		URI resource = vf.createURI(RESOURCE);
+		con.add(resource, RDF.TYPE, RDFS.RESOURCE);
+		con.add(resource, RDFS.LABEL, vf.createLiteral("Resource"));
+		con.add(resource, RDFS.COMMENT, vf.createLiteral("A resource to render"));
+		con.add(resource, SKOS.PREF_LABEL, vf.createLiteral("Resource"));
+		con.add(resource, DCTERMS.TITLE, vf.createLiteral("Resource"));
+		bindings = new MapBindingSet();
+		bindings.addBinding("this", resource);
+		for (String dir : Arrays.asList("templates", "pages")) {
+			File[] files = new File(webapp, dir).listFiles();
+			if (files == null)
+				continue;
+			Arrays.sort(files);
+			for (File file : files) {
+				if (!file.getName().endsWith(".xhtml"))
+					continue;
+				String systemId = SYSTEM_ID + dir + "/" + file.getName();
+				InputStream in = new FileInputStream(file);
+				try {
+					Template temp = engine.getTemplate(in, systemId);
+					temp.getQueryString();
+					templates.add(temp);
+					drain(temp.openResult(bindings, con));
+					renderable.add(temp);
+				} catch (TemplateException e) {
+					// some templates rely on namespaces declared by the layout
+					continue;
+				} catch (RuntimeException e) {
+					// or on variables bound by the page that includes them
+					continue;
+				} finally {
+					in.close();
+				}
+			}
+		}
+		if (templates.isEmpty())
+			throw new IllegalStateException("No templates found in " + webapp);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		con.close();
+		repository.shutDown();
+	}
+
+	@Benchmark
+	public long readRDFa(Events counter) throws Exception {
+		long count = 0;
+		for (Template temp : templates) {
+			String systemId = temp.getSystemId();
+			RDFaReader rdfa = new RDFaReader(systemId, temp.openSource(), systemId);
+			try {
+				while (rdfa.hasNext()) {
+					rdfa.next();
+					count++;
+				}
+			} finally {
+				rdfa.close();
+			}
+		}
+		counter.events += count;
+		return count;
+	}
+
+	/**
+	 * Compiles a copy of each template, so the SPARQL is derived from the
+	 * RDFa rather than read from the template's compiled cache.
+	 */
+	@Benchmark
+	public void getQueryString(Blackhole bh) throws Exception {
+		for (Template temp : templates) {
+			Template copy = new Template(temp.openSource(), temp.getSystemId());
+			bh.consume(copy.getQueryString());
+		}
+	}
+
+	@Benchmark
+	public void renderEmpty(Blackhole bh) throws Exception {
+		for (Template temp : templates) {
+			XMLEventReader xml = temp.render(emptyResult());
+			while (xml.hasNext()) {
+				bh.consume(xml.nextEvent());
+			}
+			xml.close();
+		}
+	}
+
+	/**
+	 * Renders by first deriving the variable origins from the RDFa and then
+	 * replaying the template, as before the origins were compiled, to compare
+	 * with {@link #renderEmpty(Blackhole)}.
+	 */
+	@Benchmark
+	public void renderEmptyTwoPass(Blackhole bh) throws Exception {
+		for (Template temp : templates) {
+			String systemId = temp.getSystemId();
+			RDFaReader rdfa = new RDFaReader(systemId, temp.openSource(), systemId);
+			SPARQLProducer producer = new SPARQLProducer(rdfa);
+			while (producer.hasNext()) {
+				producer.next();
+			}
+			producer.close();
+			Map<String, TermOrigin> origins = producer.getOrigins();
+			XMLEventReader xml = new RDFaProducer(temp.openSource(),
+					emptyResult(), origins);
+			while (xml.hasNext()) {
+				bh.consume(xml.nextEvent());
+			}
+			xml.close();
+		}
+	}
+
+	@Benchmark
+	public long writeEmpty() throws Exception {
+		long length = 0;
+		for (Template temp : templates) {
+			StringWriter writer = new StringWriter();
+			temp.render(emptyResult(), writer);
+			length += writer.getBuffer().length();
+		}
+		return length;
+	}
+
+	@Benchmark
+	public long renderResource() throws Exception {
+		long count = 0;
+		for (Template temp : renderable) {
+			count += drain(temp.openResult(bindings, con));
+		}
+		return count;
+	}
+
+	private static TupleQueryResult emptyResult() {
+		List<String> names = Collections.emptyList();
+		List<BindingSet> empty = Collections.emptyList();
+		return new TupleQueryResultImpl(names, empty);
+	}
+
+	private static long drain(XMLEventReader xml) throws Exception {
+		long count = 0;
+		try {
+			while (xml.hasNext()) {
+				xml.nextEvent();
+				count++;
+			}
+		} finally {
+			xml.close();
+		}
+		return count;
+	}
+}
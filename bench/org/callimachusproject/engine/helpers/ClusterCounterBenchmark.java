@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2013 3 Round Stones Inc., Some Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.callimachusproject.engine.helpers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.HttpClient;
+import org.callimachusproject.engine.RDFEventReader;
+import org.callimachusproject.engine.Template;
+import org.callimachusproject.engine.TemplateEngine;
+import org.callimachusproject.engine.events.RDFEvent;
+import org.callimachusproject.engine.events.TriplePattern;
+import org.openrdf.http.object.client.HttpClientFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Time of the variable cluster check of the largest templates shipped in the
+ * webapp, or of a synthetic template with 1,000 properties each linked to
+ * the top subject (flat) or to the previous resource (nested), comparing the
+ * union-find ClusterCounter with the set merging it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClusterCounterBenchmark {
+	private static final String SYSTEM_ID = "http://example.com/";
+	private static final int LARGEST = 10;
+	private static final int PROPERTIES = 1000;
+
+	/** The set merging cluster check, for comparison */
+	private static class SetClusterCounter extends RDFEventPipe {
+		private final Map<String, Set<String>> clusters = new HashMap<String, Set<String>>();
+
+		SetClusterCounter(RDFEventReader reader) {
+			super(reader);
+		}
+
+		int getNumberOfVariableClusters() {
+			return new HashSet<Set<String>>(clusters.values()).size();
+		}
+
+		protected void process(RDFEvent event) {
+			add(event);
+			if (event.isTriplePattern()) {
+				TriplePattern tp = event.asTriplePattern();
+				Set<String> vars = new HashSet<String>(2);
+				vars.add(tp.getSubject().stringValue());
+				if (!tp.getObject().isLiteral()) {
+					vars.add(tp.getObject().stringValue());
+				}
+				Set<String> cluster = new HashSet<String>();
+				for (String var : vars) {
+					Set<String> set = clusters.get(var);
+					if (set == null) {
+						cluster.add(var);
+						clusters.put(var, cluster);
+					} else {
+						cluster.addAll(set);
+						for (String key : set) {
+							clusters.put(key, cluster);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Param({ "templates", "flat", "nested" })
+	public String source;
+
+	private final List<RDFEventList> queries = new ArrayList<RDFEventList>();
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		HttpClient client = HttpClientFactory.getInstance().createHttpClient(SYSTEM_ID);
+		TemplateEngine engine = TemplateEngine.newInstance(client);
+		if ("flat".equals(source)) {
+			queries.add(synthetic(engine, false));
+		} else if ("nested".equals(source)) {
+			queries.add(synthetic(engine, true));
+		} else {
+			File webapp = new File(System.getProperty(
+					"org.callimachusproject.bench.webapp", "webapp"));
+			for (File file : listTemplates(webapp, new ArrayList<File>())) {
+				InputStream in = new FileInputStream(file);
+				try {
+					Template temp = engine.getTemplate(in, SYSTEM_ID + file.getName());
+					queries.add(new RDFEventList(temp.openQuery()));
+				} catch (Exception e) {
+					// some templates rely on namespaces declared by the layout
+					continue;
+				} finally {
+					in.close();
+				}
+			}
+			if (queries.isEmpty())
+				throw new IllegalStateException("No templates found in " + webapp);
+			Collections.sort(queries, new Comparator<RDFEventList>() {
+				public int compare(RDFEventList a, RDFEventList b) {
+					return b.size() - a.size();
+				}
+			});
+			queries.subList(Math.min(LARGEST, queries.size()), queries.size()).clear();
+		}
+	}
+
+	@Benchmark
+	public int unionFind() throws Exception {
+		int clusters = 0;
+		for (RDFEventList events : queries) {
+			ClusterCounter counter = new ClusterCounter(events.iterator());
+			while (counter.hasNext()) {
+				counter.next();
+			}
+			clusters += counter.getNumberOfVariableClusters();
+		}
+		return clusters;
+	}
+
+	@Benchmark
+	public int setMerging() throws Exception {
+		int clusters = 0;
+		for (RDFEventList events : queries) {
+			SetClusterCounter counter = new SetClusterCounter(events.iterator());
+			while (counter.hasNext()) {
+				counter.next();
+			}
+			clusters += counter.getNumberOfVariableClusters();
+		}
+		return clusters;
+	}
+
+	private static List<File> listTemplates(File dir, List<File> list) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return list;
+		for (File file : files) {
+			if (file.isDirectory()) {
+				listTemplates(file, list);
+			} else if (file.getName().endsWith(".xhtml")) {
+				list.add(file);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * A template with a resource per property, either each linked to the
+	 * top subject or each linked to the previous resource.
+	 */
+	private static RDFEventList synthetic(TemplateEngine engine, boolean nested)
+			throws Exception {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<div xmlns='http://www.w3.org/1999/xhtml' xmlns:ex='http://example.com/ns#' about='?this'>\n");
+		for (int i = 0; i < PROPERTIES; i++) {
+			sb.append("<div rel='ex:rel").append(i).append("' resource='?r").append(i).append("'>");
+			sb.append("<span property='ex:prop").append(i).append("'/>");
+			if (!nested) {
+				sb.append("</div>");
+			}
+			sb.append("\n");
+		}
+		if (nested) {
+			for (int i = 0; i < PROPERTIES; i++) {
+				sb.append("</div>");
+			}
+		}
+		sb.append("</div>");
+		String systemId = SYSTEM_ID + (nested ? "nested" : "flat");
+		Template temp = engine.getTemplate(new StringReader(sb.toString()), systemId);
+		return new RDFEventList(temp.openQuery());
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2011, 3 Round Stones Inc. Some rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution. 
+ * - Neither the name of the openrdf.org nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package org.callimachusproject.sail.keyword;
+
+import static java.lang.Character.isWhitespace;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.language.Soundex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Phones per second of the {@link PhoneHelper} compared with the string
+ * splitting implementation it replaced, over synthetic labels drawn from a
+ * fixed vocabulary. Each operation generates the phones of one label, so with
+ * the gc profiler gc.alloc.rate.norm is the allocation per label.
+ * 
+ * @author James Leigh
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PhoneHelperBenchmark {
+	private static final int LABELS = 1000;
+	private static final String[] WORDS = { "base", "ball", "of", "the",
+			"annual", "report", "Indices", "matrices", "boxes", "Straße",
+			"café", "O'Brien", "42nd", "Ashcraft", "Whitehead", "museum",
+			"status", "universities", "data", "city's", "X-ray", "co-op",
+			"über-cool", "naïve", "Æsir", "project", "meeting", "notes",
+			"2013", "and", "for", "a", "Callimachus", "page", "folder" };
+	private static final String SEPARATORS = "  -.,/:";
+
+	/** The string splitting implementation, for comparison */
+	private static class StringPhoneHelper extends PhoneHelper {
+		private static final String NO_SOUNDEX = "_000";
+		private final Set<String> linking;
+		private final Set<String> suffix;
+		private final Set<Character> punctuation;
+		private final Map<Character, Character> substitutes;
+		private Soundex soundex = new Soundex();
+
+		StringPhoneHelper(Set<String> linking, Set<String> suffix,
+				Set<Character> punctuation,
+				Map<Character, Character> substitutes,
+				Map<Character, Set<Character>> substitutable) {
+			super(linking, suffix, punctuation, substitutes, substitutable);
+			this.linking = linking;
+			this.suffix = suffix;
+			this.punctuation = punctuation;
+			this.substitutes = substitutes;
+		}
+
+		public Set<String> phones(String input) {
+			String clean = clean(input);
+			Set<String> phones = new HashSet<String>();
+			int start = 0;
+			do {
+				int end = clean.indexOf(' ', start + 1);
+				if (end > start + 1) {
+					String word = clean.substring(start, end);
+					if (start > 0 && linking.contains(word))
+						continue;
+					phones.add(encode(word));
+				}
+				String word = clean.substring(start);
+				if (start > 0 && linking.contains(word))
+					continue;
+				phones.add(encode(word));
+				start = end;
+			} while (start > 0 && (start == 0 || start < clean.length() - 2));
+			if (phones.isEmpty()) {
+				phones.add(NO_SOUNDEX);
+			}
+			return phones;
+		}
+
+		private String clean(String str) {
+			if (str == null || str.length() == 0)
+				return "";
+			List<String> list = new ArrayList<String>();
+			StringBuilder sb = new StringBuilder(str.length());
+			for (int i = 0, n = str.length(); i < n; i++) {
+				char ch = Character.toUpperCase(str.charAt(i));
+				if ('A' <= ch && ch <= 'Z' || '0' <= ch && ch <= '9') {
+					sb.append(ch);
+				} else if (substitutes.containsKey(ch)) {
+					sb.append(substitutes.get(ch));
+				} else if (isWhitespace(ch) || punctuation.contains(ch)) {
+					trimSuffix(sb);
+					if (sb.length() > 0) {
+						list.add(sb.toString());
+					}
+					sb.setLength(0);
+				} else {
+					sb.append('_');
+				}
+			}
+			trimSuffix(sb);
+			if (sb.length() > 0) {
+				list.add(sb.toString());
+			}
+			if (list.isEmpty())
+				return "";
+			if (list.size() == 1)
+				return list.get(0);
+			sb.setLength(0);
+			for (String word : list) {
+				sb.append(word);
+				sb.append(' ');
+			}
+			sb.setLength(sb.length() - 1);
+			return sb.toString();
+		}
+
+		private boolean trimSuffix(StringBuilder sb) {
+			if (sb.length() > 3) {
+				String last4 = sb.substring(sb.length() - 4, sb.length());
+				String last3 = last4.substring(1);
+				String last2 = last3.substring(1);
+				String last1 = last2.substring(1);
+				if (sb.length() > 4
+						&& last4.indexOf(sb.charAt(sb.length() - 5)) < 0
+						&& suffix.contains(last4)) {
+					sb.setLength(sb.length() - 4);
+					return true;
+				}
+				if (last3.indexOf(sb.charAt(sb.length() - 4)) < 0
+						&& suffix.contains(last3)) {
+					sb.setLength(sb.length() - 3);
+					return true;
+				}
+				if (last2.indexOf(sb.charAt(sb.length() - 3)) < 0
+						&& suffix.contains(last2)) {
+					sb.setLength(sb.length() - 2);
+					return true;
+				}
+				if (last1.indexOf(sb.charAt(sb.length() - 2)) < 0
+						&& suffix.contains(last1)) {
+					sb.setLength(sb.length() - 1);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private String encode(String word) {
+			String encoded = soundex.encode(word);
+			if (encoded != null && encoded.length() > 0)
+				return encoded;
+			return NO_SOUNDEX;
+		}
+	}
+
+	private final List<String> labels = new ArrayList<String>(LABELS);
+	private PhoneHelper helper;
+	private PhoneHelper string;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(LABELS);
+		for (int i = 0; i < LABELS; i++) {
+			StringBuilder sb = new StringBuilder();
+			for (int w = 0, n = 1 + random.nextInt(6); w < n; w++) {
+				if (w > 0) {
+					sb.append(SEPARATORS.charAt(random.nextInt(SEPARATORS.length())));
+				}
+				sb.append(WORDS[random.nextInt(WORDS.length)]);
+			}
+			labels.add(sb.toString());
+		}
+		helper = PhoneHelperFactory.newInstance().createPhoneHelper();
+		string = new PhoneHelperFactory(PhoneHelper.class.getClassLoader()) {
+			protected PhoneHelper createPhoneHelper(Set<String> linking,
+					Set<String> suffix, Set<Character> punctuation,
+					Map<Character, Character> substitutes,
+					Map<Character, Set<Character>> substitutable) {
+				return new StringPhoneHelper(linking, suffix, punctuation,
+						substitutes, substitutable);
+			}
+		}.createPhoneHelper();
+		for (String label : labels) {
+			if (!helper.phones(label).equals(string.phones(label)))
+				throw new IllegalStateException("Different phones for " + label);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LABELS)
+	public void phones(Blackhole bh) {
+		for (String label : labels) {
+			bh.consume(helper.phones(label));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LABELS)
+	public void stringPhones(Blackhole bh) {
+		for (String label : labels) {
+			bh.consume(string.phones(label));
+		}
+	}
+}
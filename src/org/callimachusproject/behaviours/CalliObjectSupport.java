@@ -53,6 +53,7 @@ import javax.management.QueryExp;
 
 import org.callimachusproject.auth.DetachedRealm;
 import org.callimachusproject.concepts.Activity;
+import org.callimachusproject.engine.RenderedPageCache;
 import org.callimachusproject.repository.CalliRepository;
 import org.callimachusproject.repository.auditing.ActivityFactory;
 import org.callimachusproject.repository.auditing.AuditingRepositoryConnection;
@@ -179,6 +180,7 @@ public abstract class CalliObjectSupport implements CalliObject {
 			ObjectServerMBean server = JMX.newMXBeanProxy(mbsc, name, ObjectServerMBean.class);
 			server.resetCache();
 		}
+		RenderedPageCache.getInstance().reset();
 	}
 
 	public CalliRepository getCalliRepository() throws OpenRDFException, IOException {
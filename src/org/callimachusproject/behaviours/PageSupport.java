@@ -22,6 +22,7 @@ import static org.callimachusproject.util.PercentCodec.encode;
 import java.io.IOException;
 
 import org.callimachusproject.auth.DetachedRealm;
+import org.callimachusproject.engine.RenderedPageCache;
 import org.callimachusproject.engine.Template;
 import org.callimachusproject.engine.TemplateEngine;
 import org.callimachusproject.engine.TemplateException;
@@ -29,6 +30,7 @@ import org.callimachusproject.engine.model.TermFactory;
 import org.callimachusproject.traits.CalliObject;
 import org.openrdf.OpenRDFException;
 import org.openrdf.http.object.client.HttpUriClient;
+import org.openrdf.repository.object.RDFObject;
 
 /**
  * @author James Leigh
@@ -50,6 +52,47 @@ public abstract class PageSupport implements CalliObject {
 		}
 		String url = self + "?layout&realm=" + encode(realm.toString());
 		HttpUriClient hc = this.getHttpClient();
-		return TemplateEngine.newInstance(hc).getTemplate(url);
+		// a new client each time, so share validators with its realm
+		String scope = this.getRealm().toString();
+		return TemplateEngine.newInstance(hc, scope).getTemplate(url);
+	}
+
+	/**
+	 * Called from page.ttl before rendering the target
+	 * 
+	 * @return the page previously rendered from this template for the
+	 *         same revision of the target or null
+	 */
+	public String getCachedPage(Template template, RDFObject target,
+			String query, String mediaType) {
+		String key = getPageKey(template, target, query, mediaType);
+		if (key == null)
+			return null;
+		return RenderedPageCache.getInstance().getString(key);
+	}
+
+	/**
+	 * Called from page.ttl after rendering the target
+	 */
+	public void cachePage(Template template, RDFObject target, String query,
+			String mediaType, String page) {
+		String key = getPageKey(template, target, query, mediaType);
+		if (key != null && page != null) {
+			RenderedPageCache.getInstance().putString(key, page);
+		}
+	}
+
+	/**
+	 * The query (view, edit, etc) determines the permission required to
+	 * request the page.
+	 */
+	private String getPageKey(Template template, RDFObject target,
+			String query, String mediaType) {
+		if (!(target instanceof CalliObject))
+			return null;
+		String revision = ((CalliObject) target).revision();
+		String resource = target.getResource().stringValue();
+		return RenderedPageCache.getInstance().key(template.getDigest(),
+				resource, revision, mediaType, query);
 	}
 }
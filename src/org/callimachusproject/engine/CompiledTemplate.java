@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2013 3 Round Stones Inc., Some Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.callimachusproject.engine;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.callimachusproject.engine.model.TermOrigin;
+import org.openrdf.http.object.exceptions.InternalServerError;
+import org.openrdf.query.GraphQuery;
+import org.openrdf.query.MalformedQueryException;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQuery;
+import org.openrdf.query.parser.ParsedGraphQuery;
+import org.openrdf.query.parser.ParsedQuery;
+import org.openrdf.query.parser.ParsedTupleQuery;
+import org.openrdf.query.parser.QueryParserUtil;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.repository.sail.SailGraphQuery;
+import org.openrdf.repository.sail.SailRepositoryConnection;
+import org.openrdf.repository.sail.SailTupleQuery;
+
+/**
+ * The SPARQL, variable origins and cluster check derived once from the RDFa
+ * of a {@link Template}, so repeated evaluations can skip the RDFa to SPARQL
+ * pipeline.
+ */
+final class CompiledTemplate {
+	private final String sparql;
+	private final Map<String, TermOrigin> origins;
+	private final Set<String> unconnected;
+	private final Set<String> anchors;
+	/** query algebra, parsed from the SPARQL on first local evaluation */
+	private volatile ParsedQuery parsed;
+
+	CompiledTemplate(String sparql, Map<String, TermOrigin> origins,
+			Set<String> unconnected, Set<String> anchors) {
+		this.sparql = sparql;
+		this.origins = Collections
+				.unmodifiableMap(new LinkedHashMap<String, TermOrigin>(origins));
+		this.unconnected = unconnected;
+		this.anchors = Collections.unmodifiableSet(new LinkedHashSet<String>(
+				anchors));
+	}
+
+	public String toString() {
+		return sparql;
+	}
+
+	/**
+	 * The SPARQL text without checking that its variables are connected.
+	 */
+	public String getSparql() {
+		return sparql;
+	}
+
+	/**
+	 * The SPARQL text
+	 *
+	 * @throws InternalServerError
+	 *             if the template variables are not connected
+	 */
+	public String getSafeSparql() throws InternalServerError {
+		if (unconnected != null)
+			throw new InternalServerError("Variables not connected: "
+					+ unconnected);
+		return sparql;
+	}
+
+	public Map<String, TermOrigin> getOrigins() {
+		return origins;
+	}
+
+	/**
+	 * Prepares the SPARQL as a tuple query. Local repositories evaluate a copy
+	 * of the algebra parsed on first use, others are given the SPARQL text.
+	 */
+	public TupleQuery prepareTupleQuery(RepositoryConnection con,
+			String baseURI) throws RepositoryException,
+			MalformedQueryException {
+		String sparql = getSafeSparql();
+		SailRepositoryConnection local = PreparedQueryPool.getLocalConnection(con);
+		if (local == null)
+			return con.prepareTupleQuery(QueryLanguage.SPARQL, sparql, baseURI);
+		ParsedTupleQuery query = (ParsedTupleQuery) getParsedQuery(sparql, baseURI);
+		ParsedTupleQuery copy = new ParsedTupleQuery(query.getSourceString(),
+				query.getTupleExpr().clone());
+		copy.setDataset(query.getDataset());
+		return new SailTupleQuery(copy, local) {
+		};
+	}
+
+	/**
+	 * Prepares the SPARQL as a graph query. Local repositories evaluate a copy
+	 * of the algebra parsed on first use, others are given the SPARQL text.
+	 */
+	public GraphQuery prepareGraphQuery(RepositoryConnection con,
+			String baseURI) throws RepositoryException,
+			MalformedQueryException {
+		String sparql = getSafeSparql();
+		SailRepositoryConnection local = PreparedQueryPool.getLocalConnection(con);
+		if (local == null)
+			return con.prepareGraphQuery(QueryLanguage.SPARQL, sparql, baseURI);
+		ParsedGraphQuery query = (ParsedGraphQuery) getParsedQuery(sparql, baseURI);
+		ParsedGraphQuery copy = new ParsedGraphQuery(query.getSourceString(),
+				query.getTupleExpr().clone(), query.getQueryNamespaces());
+		copy.setDataset(query.getDataset());
+		return new SailGraphQuery(copy, local) {
+		};
+	}
+
+	/**
+	 * Variables of the top-level subjects that can be bound to a partner
+	 * resource.
+	 */
+	public Set<String> getAnchors() {
+		return anchors;
+	}
+
+	private ParsedQuery getParsedQuery(String sparql, String baseURI)
+			throws MalformedQueryException {
+		ParsedQuery query = parsed;
+		if (query == null) {
+			// the algebra is only read and cloned, so a race parses it twice
+			parsed = query = QueryParserUtil.parseQuery(QueryLanguage.SPARQL,
+					sparql, baseURI);
+		}
+		return query;
+	}
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2013 3 Round Stones Inc., Some Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.callimachusproject.engine;
+
+import info.aduna.iteration.LookAheadIteration;
+
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Base64;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.query.impl.TupleQueryResultImpl;
+
+/**
+ * The solutions for up to a page size of distinct key values from a result
+ * ordered by that key. The result is read in chunks of growing size, so the
+ * store only sorts the top solutions. A page only ends after an IRI key, since
+ * only IRIs have a lexical order that matches their term order, so blank node
+ * and literal keys may make a page longer. The remaining solutions are not
+ * read.
+ */
+public class PagedTupleQueryResult extends TupleQueryResultImpl {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static String encodeToken(String key) {
+		return Base64.encodeBase64URLSafeString(key.getBytes(UTF8));
+	}
+
+	static String decodeToken(String token) {
+		if (!Base64.isBase64(token))
+			throw new IllegalArgumentException("Invalid continuation token: " + token);
+		return new String(Base64.decodeBase64(token), UTF8);
+	}
+
+	/**
+	 * The ordered solutions after the previous pages.
+	 */
+	interface Chunks {
+		TupleQueryResult evaluate(long offset, long limit)
+				throws QueryEvaluationException;
+	}
+
+	private static class Page extends
+			LookAheadIteration<BindingSet, QueryEvaluationException> {
+		private final Chunks chunks;
+		private final String key;
+		private final int size;
+		private TupleQueryResult results;
+		private long offset;
+		private long limit;
+		private long read;
+		private int count;
+		private Value last;
+		private String token;
+
+		Page(Chunks chunks, String key, int size)
+				throws QueryEvaluationException {
+			this.chunks = chunks;
+			this.key = key;
+			this.size = size;
+			this.limit = size + 1;
+			this.results = chunks.evaluate(offset, limit);
+		}
+
+		protected BindingSet getNextElement() throws QueryEvaluationException {
+			while (!results.hasNext()) {
+				if (read < limit)
+					return null;
+				results.close();
+				offset += limit;
+				limit *= 2;
+				read = 0;
+				results = chunks.evaluate(offset, limit);
+			}
+			BindingSet next = results.next();
+			read++;
+			Value value = next.getValue(key);
+			if (value != null && !value.equals(last)) {
+				if (count >= size && last instanceof URI) {
+					// more solutions, but they are for the next page
+					token = encodeToken(last.stringValue());
+					return null;
+				}
+				count++;
+				last = value;
+			}
+			return next;
+		}
+
+		protected void handleClose() throws QueryEvaluationException {
+			try {
+				super.handleClose();
+			} finally {
+				results.close();
+			}
+		}
+	}
+
+	private final Page page;
+
+	PagedTupleQueryResult(Chunks chunks, String key, int size)
+			throws QueryEvaluationException {
+		this(new Page(chunks, key, size));
+	}
+
+	private PagedTupleQueryResult(Page page) throws QueryEvaluationException {
+		this(page.results.getBindingNames(), page);
+	}
+
+	private PagedTupleQueryResult(List<String> bindingNames, Page page) {
+		super(bindingNames, page);
+		this.page = page;
+	}
+
+	/**
+	 * The key variable, whose distinct values are counted towards the page
+	 * size.
+	 */
+	public String getKey() {
+		return page.key;
+	}
+
+	/**
+	 * Only known once this page has been read.
+	 *
+	 * @return an opaque token for the next page or null if this is the last
+	 *         page
+	 */
+	public String getContinuationToken() {
+		return page.token;
+	}
+}
@@ -23,6 +23,7 @@ import info.aduna.text.ASCIIUtil;
 import java.lang.reflect.Array;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -39,19 +40,25 @@ import org.openrdf.model.Value;
 import org.openrdf.model.ValueFactory;
 import org.openrdf.model.impl.ValueFactoryImpl;
 import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.query.Binding;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.MalformedQueryException;
 import org.openrdf.query.QueryEvaluationException;
-import org.openrdf.query.QueryLanguage;
 import org.openrdf.query.TupleQuery;
 import org.openrdf.query.TupleQueryResult;
+import org.openrdf.query.algebra.ExtensionElem;
 import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.ValueExpr;
 import org.openrdf.query.algebra.evaluation.QueryBindingSet;
 import org.openrdf.query.algebra.evaluation.TripleSource;
+import org.openrdf.query.algebra.evaluation.ValueExprEvaluationException;
 import org.openrdf.query.algebra.evaluation.impl.EvaluationStrategyImpl;
+import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
 import org.openrdf.query.parser.sparql.SPARQLParser;
+import org.openrdf.repository.Repository;
 import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.repository.RepositoryException;
+import org.openrdf.repository.contextaware.ContextAwareConnection;
 import org.openrdf.rio.turtle.TurtleUtil;
 
 public class ParameterizedQuery {
@@ -66,15 +73,30 @@ public class ParameterizedQuery {
 	private static final Pattern PARAM_EXPRESSION = Pattern
 			.compile("(?<!\\\\)\\$\\{([^}]*)\\}");
 	private static ValueFactory vf = ValueFactoryImpl.getInstance();
+	private static final Literal DEFAULT_VALUE = vf.createLiteral("0", XMLSchema.INTEGER);
+	private static final TripleSource EMPTY_SOURCE = new TripleSource() {
+		public ValueFactory getValueFactory() {
+			return vf;
+		}
+
+		public CloseableIteration<? extends Statement, QueryEvaluationException> getStatements(
+				Resource subj, URI pred, Value obj, Resource... contexts)
+				throws QueryEvaluationException {
+			return new EmptyIteration<Statement, QueryEvaluationException>();
+		}
+	};
 	private final String sparql;
 	private final String systemId;
 	private final Map<String, String> prefixes;
 	private final List<String> bindingNames;
 	private final Map<String, Value> bindings;
 	private final TermFactory tf;
+	/** parsed ${...} expressions in the order they appear */
+	private final List<ValueExpr> expressions;
 
 	ParameterizedQuery(String sparql, String systemId,
-			Map<String, String> prefixes, Map<String, Value> bindings) {
+			Map<String, String> prefixes, Map<String, Value> bindings)
+			throws MalformedQueryException {
 		assert sparql != null;
 		assert systemId != null;
 		assert bindings != null;
@@ -84,6 +106,7 @@ public class ParameterizedQuery {
 		this.bindingNames = new ArrayList<String>(bindings.keySet());
 		this.bindings = bindings;
 		this.tf = TermFactory.newInstance(systemId);
+		this.expressions = parseExpressions(sparql);
 	}
 
 	public String toString() {
@@ -159,8 +182,6 @@ public class ParameterizedQuery {
 				sparql = inlineExpressions(sparql, parameters);
 			} catch (QueryEvaluationException e) {
 				throw new IllegalArgumentException(e);
-			} catch (MalformedQueryException e) {
-				throw new IllegalArgumentException(e);
 			}
 		}
 		return appendBindings(sparql, parameters);
@@ -176,9 +197,24 @@ public class ParameterizedQuery {
 			RepositoryConnection con) throws RepositoryException,
 			MalformedQueryException, IllegalArgumentException,
 			QueryEvaluationException {
-		TupleQuery qry = con.prepareTupleQuery(QueryLanguage.SPARQL,
-				prepare(parameters), systemId);
-		return evaluate(parameters, qry);
+		int maxAge = QueryResultCache.getMaxAge(getCacheControl());
+		if (maxAge <= 0 || con.isActive()) {
+			// uncommitted changes are only visible to this connection
+			return evaluatePrepared(parameters, con);
+		}
+		QueryResultCache cache = QueryResultCache.getInstance();
+		Repository repository = con.getRepository();
+		if (!cache.isWatched(repository)) {
+			// commits to it would not invalidate the results
+			return evaluatePrepared(parameters, con);
+		}
+		List<Object> key = getCacheKey(parameters, con);
+		TupleQueryResult cached = cache.get(key);
+		if (cached != null)
+			return cached;
+		long generation = cache.getGeneration(repository);
+		return cache.put(key, repository, generation, maxAge,
+				evaluatePrepared(parameters, con));
 	}
 
 	public TupleQueryResult evaluate(TupleQuery qry)
@@ -188,32 +224,97 @@ public class ParameterizedQuery {
 
 	public TupleQueryResult evaluate(Map<String, ?> parameters, TupleQuery qry)
 			throws QueryEvaluationException {
+		for (Binding binding : getFunctionalBindings(parameters)) {
+			qry.setBinding(binding.getName(), binding.getValue());
+		}
+		return qry.evaluate();
+	}
+
+	/**
+	 * Functional parameters are bound to a prepared query, so the query text
+	 * only changes with multi-valued parameters or ${...} expressions.
+	 */
+	private TupleQueryResult evaluatePrepared(Map<String, ?> parameters,
+			RepositoryConnection con) throws RepositoryException,
+			MalformedQueryException, QueryEvaluationException {
+		return PreparedQueryPool.getInstance().evaluate(con,
+				prepare(parameters), systemId,
+				getFunctionalBindings(parameters));
+	}
+
+	private BindingSet getFunctionalBindings(Map<String, ?> parameters) {
+		QueryBindingSet bindings = new QueryBindingSet();
 		if (isParameterPresent()) {
 			for (String name : bindingNames) {
 				Value[] values = getValues(parameters, name);
-				if (values.length == 1) {
-					if (values[0] != null) {
-						qry.setBinding(name, values[0]);
-					}
+				if (values.length == 1 && values[0] != null) {
+					bindings.setBinding(name, values[0]);
 				}
 			}
 		}
-		return qry.evaluate();
+		return bindings;
+	}
+
+	/**
+	 * The repository, its read contexts, this query and the resolved values
+	 * of each parameter, so equivalent requests share results.
+	 */
+	private List<Object> getCacheKey(Map<String, ?> parameters,
+			RepositoryConnection con) {
+		List<Object> key = new ArrayList<Object>(bindingNames.size() + 3);
+		key.add(con.getRepository());
+		if (con instanceof ContextAwareConnection) {
+			URI[] contexts = ((ContextAwareConnection) con).getReadContexts();
+			key.add(Arrays.asList(contexts));
+		} else {
+			key.add(null);
+		}
+		key.add(this);
+		for (String name : bindingNames) {
+			key.add(Arrays.asList(getValues(parameters, name)));
+		}
+		return key;
 	}
 
 	private boolean isExpressionPresent() {
-		return this.sparql.contains("${");
+		return !expressions.isEmpty();
+	}
+
+	private List<ValueExpr> parseExpressions(String sparql)
+			throws MalformedQueryException {
+		if (!sparql.contains("${"))
+			return Collections.emptyList();
+		List<ValueExpr> list = new ArrayList<ValueExpr>();
+		Matcher m = PARAM_EXPRESSION.matcher(sparql);
+		String prologue = getPrologue();
+		while (m.find()) {
+			String select = prologue + "SELECT (" + m.group(1)
+					+ " AS ?_value) {}";
+			TupleExpr expr = new SPARQLParser().parseQuery(select, systemId)
+					.getTupleExpr();
+			final List<ValueExpr> found = new ArrayList<ValueExpr>(1);
+			expr.visit(new QueryModelVisitorBase<RuntimeException>() {
+				public void meet(ExtensionElem node) {
+					if ("_value".equals(node.getName())) {
+						found.add(node.getExpr());
+					}
+				}
+			});
+			if (found.isEmpty())
+				throw new MalformedQueryException("Invalid expression: " + m.group());
+			list.add(found.get(0));
+		}
+		return list;
 	}
 
 	private String inlineExpressions(String sparql, Map<String, ?> parameters)
-			throws QueryEvaluationException, MalformedQueryException {
+			throws QueryEvaluationException {
+		BindingSet bindings = getExpressionBindings(parameters);
 		StringBuilder sb = new StringBuilder();
 		Matcher m = PARAM_EXPRESSION.matcher(sparql);
-		String prologue = getPrologue();
 		int position = 0;
-		while (m.find()) {
-			String expression = m.group(1);
-			Value value = evaluate(prologue, expression, parameters);
+		for (int i = 0; m.find(); i++) {
+			Value value = evaluate(expressions.get(i), bindings);
 			sb.append(sparql, position, m.start());
 			sb.append(writeValue(value));
 			position = m.end();
@@ -222,47 +323,35 @@ public class ParameterizedQuery {
 		return sb.toString();
 	}
 
-	private Value evaluate(String prologue, String expression,
-			Map<String, ?> parameters) throws MalformedQueryException,
-			QueryEvaluationException {
-		Literal defaultValue = vf.createLiteral("0", XMLSchema.INTEGER);
-		String select = prologue + "SELECT (" + expression
-				+ " AS ?_value) {} LIMIT 1";
-		String qry = appendBindings(select, parameters);
-		TupleExpr expr = new SPARQLParser().parseQuery(qry, systemId)
-				.getTupleExpr();
+	/**
+	 * Binds each parameter to its first value
+	 */
+	private BindingSet getExpressionBindings(Map<String, ?> parameters) {
 		QueryBindingSet bindings = new QueryBindingSet();
 		if (isParameterPresent()) {
 			for (String name : bindingNames) {
 				Value[] values = getValues(parameters, name);
-				if (values.length == 1) {
-					if (values[0] != null) {
-						bindings.setBinding(name, values[0]);
-					}
+				if (values.length > 0 && values[0] != null) {
+					bindings.setBinding(name, values[0]);
 				}
 			}
 		}
-		CloseableIteration<BindingSet, QueryEvaluationException> iter;
-		iter = new EvaluationStrategyImpl(new TripleSource() {
-			public ValueFactory getValueFactory() {
-				return vf;
-			}
+		return bindings;
+	}
 
-			public CloseableIteration<? extends Statement, QueryEvaluationException> getStatements(
-					Resource subj, URI pred, Value obj, Resource... contexts)
-					throws QueryEvaluationException {
-				return new EmptyIteration<Statement, QueryEvaluationException>();
-			}
-		}, null).evaluate(expr, bindings);
+	private Value evaluate(ValueExpr expr, BindingSet bindings)
+			throws QueryEvaluationException {
 		try {
-			if (!iter.hasNext())
-				return defaultValue;
-			Value value = iter.next().getValue("_value");
+			// NOW() is fixed for the life of a strategy
+			EvaluationStrategyImpl strategy = new EvaluationStrategyImpl(
+					EMPTY_SOURCE, null);
+			Value value = strategy.evaluate(expr, bindings);
 			if (value == null)
-				return defaultValue;
+				return DEFAULT_VALUE;
 			return value;
-		} finally {
-			iter.close();
+		} catch (ValueExprEvaluationException e) {
+			// expression has no value for these parameters
+			return DEFAULT_VALUE;
 		}
 	}
 
@@ -25,6 +25,7 @@ import java.io.Reader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
@@ -32,6 +33,7 @@ import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.openrdf.model.Literal;
 import org.openrdf.model.URI;
 import org.openrdf.model.Value;
@@ -64,12 +66,40 @@ import org.openrdf.query.parser.sparql.ast.TokenMgrError;
 import org.openrdf.query.parser.sparql.ast.VisitorException;
 
 public class ParameterizedQueryParser {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
 	static final Pattern ENDS_WITH_VALUES = Pattern
 			.compile(
 					".*\\bVALUES\\s*\\(?\\s*([\\?\\$][^\\s\\{\\)]+\\s*)+\\)?\\s*\\{[^\\}]*\\}\\s*$",
 					Pattern.DOTALL);
 
-	private final class ParameterScanner extends
+	private static final int MAX_QUERIES = 256;
+	/**
+	 * Parsed queries by systemId, which are replaced when the query content
+	 * digest changes
+	 */
+	private static final Map<String, Parsed> queries = new LinkedHashMap<String, Parsed>(
+			MAX_QUERIES, 0.75f, true) {
+		private static final long serialVersionUID = -2093578237316612384L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, Parsed> eldest) {
+			return size() > MAX_QUERIES;
+		}
+	};
+
+	private static final class Parsed {
+		final String digest;
+		final ParameterizedQuery query;
+
+		Parsed(String digest, ParameterizedQuery query) {
+			this.digest = digest;
+			this.query = query;
+		}
+	}
+
+	/**
+	 * Scans a single query, a new instance must be used for each query.
+	 */
+	private static final class ParameterScanner extends
 			QueryModelVisitorBase<MalformedQueryException> {
 		private final Set<String> variables = new LinkedHashSet<String>();
 		private final Map<String,Value> parameters = new LinkedHashMap<String,Value>();
@@ -82,9 +112,7 @@ public class ParameterizedQueryParser {
 			space = new ParsedURI(systemId).resolve("$").toString();
 		}
 
-		public synchronized Map<String,Value> scan(String sparql) throws MalformedQueryException {
-			variables.clear();
-			parameters.clear();
+		public Map<String,Value> scan(String sparql) throws MalformedQueryException {
 			ParsedQuery parsed = parseParsedQuery(sparql.replaceAll("(?<!\\\\)\\$\\{[^}]*\\}", "0"), systemId);
 			if (!(parsed instanceof ParsedTupleQuery))
 				throw new MalformedQueryException("Only SELECT queries are supported");
@@ -257,6 +285,21 @@ public class ParameterizedQueryParser {
 
 	public ParameterizedQuery parseQuery(String sparql, String systemId)
 			throws MalformedQueryException {
+		String digest = DigestUtils.md5Hex(sparql.getBytes(UTF8));
+		synchronized (queries) {
+			Parsed cached = queries.get(systemId);
+			if (cached != null && digest.equals(cached.digest))
+				return cached.query;
+		}
+		ParameterizedQuery query = scanQuery(sparql, systemId);
+		synchronized (queries) {
+			queries.put(systemId, new Parsed(digest, query));
+		}
+		return query;
+	}
+
+	private ParameterizedQuery scanQuery(String sparql, String systemId)
+			throws MalformedQueryException {
 		ParameterScanner scanner = new ParameterScanner(systemId);
 		Map<String,Value> parameters = scanner.scan(sparql);
 		Map<String, String> prefixes = scanner.getPrefixes();
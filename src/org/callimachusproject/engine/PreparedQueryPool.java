@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2013 3 Round Stones Inc., Some Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.callimachusproject.engine;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.callimachusproject.util.SystemProperties;
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.MalformedQueryException;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQuery;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.query.parser.ParsedTupleQuery;
+import org.openrdf.query.parser.QueryParserUtil;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.repository.contextaware.ContextAwareConnection;
+import org.openrdf.repository.sail.SailRepositoryConnection;
+import org.openrdf.repository.sail.SailTupleQuery;
+
+/**
+ * Parsed tuple queries by query text and base URI, so a repeated query only
+ * changes its bindings instead of being parsed again. The parsed algebra does
+ * not belong to any connection, so it is shared by every request to a local
+ * store. Connections that may change how a query is prepared are given the
+ * query text.
+ */
+public class PreparedQueryPool {
+	private static final PreparedQueryPool instance = new PreparedQueryPool(
+			SystemProperties.getPreparedQueryPoolSize());
+
+	public static PreparedQueryPool getInstance() {
+		return instance;
+	}
+
+	/**
+	 * The connection of a local store, if the given connection is the
+	 * store's own or a plain {@link ContextAwareConnection} around it with
+	 * nothing that changes how queries are prepared.
+	 */
+	static SailRepositoryConnection getLocalConnection(
+			RepositoryConnection con) throws RepositoryException {
+		RepositoryConnection delegate = con;
+		if (delegate.getClass() == ContextAwareConnection.class) {
+			ContextAwareConnection cac = (ContextAwareConnection) delegate;
+			if (cac.getReadContexts().length > 0 || !cac.isIncludeInferred()
+					|| cac.getMaxQueryTime() > 0)
+				return null;
+			delegate = cac.getDelegate();
+		}
+		if (delegate.getClass() == SailRepositoryConnection.class)
+			return (SailRepositoryConnection) delegate;
+		return null;
+	}
+
+	private final Map<List<String>, ParsedTupleQuery> parsed;
+	private long hits;
+	private long misses;
+
+	public PreparedQueryPool(final int capacity) {
+		parsed = new LinkedHashMap<List<String>, ParsedTupleQuery>(capacity,
+				0.75f, true) {
+			private static final long serialVersionUID = -6480134458232164095L;
+
+			protected boolean removeEldestEntry(
+					Map.Entry<List<String>, ParsedTupleQuery> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	public synchronized void reset() {
+		parsed.clear();
+		hits = misses = 0;
+	}
+
+	/**
+	 * Evaluates the query text with the given bindings, reusing the parsed
+	 * algebra when the connection is to a local store.
+	 */
+	public TupleQueryResult evaluate(RepositoryConnection con, String sparql,
+			String baseURI, BindingSet bindings) throws RepositoryException,
+			MalformedQueryException, QueryEvaluationException {
+		TupleQuery qry = prepare(con, sparql, baseURI);
+		for (Binding binding : bindings) {
+			qry.setBinding(binding.getName(), binding.getValue());
+		}
+		return qry.evaluate();
+	}
+
+	private TupleQuery prepare(RepositoryConnection con, String sparql,
+			String baseURI) throws RepositoryException,
+			MalformedQueryException {
+		SailRepositoryConnection local = getLocalConnection(con);
+		if (local == null)
+			return con.prepareTupleQuery(QueryLanguage.SPARQL, sparql, baseURI);
+		ParsedTupleQuery query = getParsedQuery(sparql, baseURI);
+		ParsedTupleQuery copy = new ParsedTupleQuery(query.getSourceString(),
+				query.getTupleExpr().clone());
+		copy.setDataset(query.getDataset());
+		return new SailTupleQuery(copy, local) {
+		};
+	}
+
+	private ParsedTupleQuery getParsedQuery(String sparql, String baseURI)
+			throws MalformedQueryException {
+		List<String> key = Arrays.asList(baseURI, sparql);
+		synchronized (this) {
+			ParsedTupleQuery query = parsed.get(key);
+			if (query != null) {
+				hits++;
+				return query;
+			}
+			misses++;
+		}
+		ParsedTupleQuery query = QueryParserUtil.parseTupleQuery(
+				QueryLanguage.SPARQL, sparql, baseURI);
+		synchronized (this) {
+			parsed.put(key, query);
+		}
+		return query;
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2013 3 Round Stones Inc., Some Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.callimachusproject.engine;
+
+import info.aduna.iteration.LookAheadIteration;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.callimachusproject.util.SystemProperties;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.query.impl.TupleQueryResultImpl;
+
+/**
+ * Materialised results of named queries, kept for the max-age (or s-maxage)
+ * of their Cache-Control annotation. Only results of repositories that are
+ * {@link #watch(Object) watched} are kept. Each entry remembers the
+ * generation of its repository when it was evaluated and is ignored once a
+ * commit to that repository has been reported through
+ * {@link #invalidate(Object)}.
+ */
+public class QueryResultCache {
+	private static final Pattern MAX_AGE = Pattern
+			.compile("(?:^|[\\s,])(s-maxage|max-age)\\s*=\\s*\"?(\\d+)");
+	private static final Pattern NO_CACHE = Pattern
+			.compile("(?:^|[\\s,])(no-store|no-cache|private)\\b");
+	private static final QueryResultCache instance = new QueryResultCache(
+			SystemProperties.getQueryResultCacheSize(),
+			SystemProperties.getQueryResultCacheRows());
+
+	public static QueryResultCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * The number of seconds results may be reused, preferring s-maxage over
+	 * max-age as this cache is shared by every reader.
+	 *
+	 * @return 0 if the results should not be cached
+	 */
+	static int getMaxAge(String cacheControl) {
+		if (cacheControl == null || NO_CACHE.matcher(cacheControl).find())
+			return 0;
+		int maxage = 0;
+		Matcher m = MAX_AGE.matcher(cacheControl);
+		while (m.find()) {
+			try {
+				int seconds = Integer.parseInt(m.group(2));
+				if ("s-maxage".equals(m.group(1)))
+					return seconds;
+				maxage = seconds;
+			} catch (NumberFormatException e) {
+				continue;
+			}
+		}
+		return maxage;
+	}
+
+	private static class Entry {
+		final List<String> bindingNames;
+		final List<BindingSet> solutions;
+		final Object repository;
+		final long generation;
+		final long expires;
+
+		Entry(List<String> bindingNames, List<BindingSet> solutions,
+				Object repository, long generation, long expires) {
+			this.bindingNames = bindingNames;
+			this.solutions = solutions;
+			this.repository = repository;
+			this.generation = generation;
+			this.expires = expires;
+		}
+	}
+
+	private final int maxRows;
+	private final Map<Object, Entry> entries;
+	private final Map<Object, Long> generations = new WeakHashMap<Object, Long>();
+	private long hits;
+	private long misses;
+
+	/**
+	 * @param capacity
+	 *            maximum number of results kept
+	 * @param maxRows
+	 *            results with more solutions are not kept
+	 */
+	public QueryResultCache(final int capacity, int maxRows) {
+		this.maxRows = maxRows;
+		entries = new LinkedHashMap<Object, Entry>(capacity, 0.75f, true) {
+			private static final long serialVersionUID = 6203873428764931537L;
+
+			protected boolean removeEldestEntry(Map.Entry<Object, Entry> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * Results of this repository may be kept, as its commits will be
+	 * reported through {@link #invalidate(Object)}.
+	 */
+	public synchronized void watch(Object repository) {
+		if (!generations.containsKey(repository)) {
+			generations.put(repository, 0L);
+		}
+	}
+
+	/**
+	 * @return if the results of this repository may be kept
+	 */
+	public synchronized boolean isWatched(Object repository) {
+		return generations.containsKey(repository);
+	}
+
+	/**
+	 * Any results evaluated against this repository before now are stale.
+	 */
+	public synchronized void invalidate(Object repository) {
+		generations.put(repository, getGeneration(repository) + 1);
+	}
+
+	public synchronized void reset() {
+		entries.clear();
+		hits = misses = 0;
+	}
+
+	/**
+	 * Must be called before the results are evaluated, so that a commit
+	 * during evaluation prevents them from being kept.
+	 */
+	public synchronized long getGeneration(Object repository) {
+		Long generation = generations.get(repository);
+		if (generation == null)
+			return 0;
+		return generation;
+	}
+
+	/**
+	 * @return a fresh copy of the kept results or null
+	 */
+	public synchronized TupleQueryResult get(Object key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			misses++;
+			return null;
+		} else if (entry.expires < System.currentTimeMillis()
+				|| entry.generation != getGeneration(entry.repository)) {
+			entries.remove(key);
+			misses++;
+			return null;
+		}
+		hits++;
+		return new TupleQueryResultImpl(entry.bindingNames, entry.solutions);
+	}
+
+	/**
+	 * Reads the given results and keeps them if they are small enough and no
+	 * commit has been reported since generation.
+	 *
+	 * @return the same solutions as results
+	 */
+	public TupleQueryResult put(Object key, Object repository,
+			long generation, int maxAge, TupleQueryResult results)
+			throws QueryEvaluationException {
+		List<String> bindingNames = results.getBindingNames();
+		List<BindingSet> solutions = new ArrayList<BindingSet>();
+		while (solutions.size() <= maxRows && results.hasNext()) {
+			solutions.add(results.next());
+		}
+		if (solutions.size() > maxRows)
+			return new TupleQueryResultImpl(bindingNames, concat(solutions,
+					results));
+		results.close();
+		long expires = System.currentTimeMillis() + maxAge * 1000L;
+		synchronized (this) {
+			if (isWatched(repository)
+					&& generation == getGeneration(repository)) {
+				entries.put(key, new Entry(bindingNames, solutions, repository,
+						generation, expires));
+			}
+		}
+		return new TupleQueryResultImpl(bindingNames, solutions);
+	}
+
+	private LookAheadIteration<BindingSet, QueryEvaluationException> concat(
+			List<BindingSet> read, final TupleQueryResult remaining) {
+		final Iterator<BindingSet> iter = read.iterator();
+		return new LookAheadIteration<BindingSet, QueryEvaluationException>() {
+			protected BindingSet getNextElement()
+					throws QueryEvaluationException {
+				if (iter.hasNext())
+					return iter.next();
+				if (remaining.hasNext())
+					return remaining.next();
+				return null;
+			}
+
+			protected void handleClose() throws QueryEvaluationException {
+				try {
+					super.handleClose();
+				} finally {
+					remaining.close();
+				}
+			}
+		};
+	}
+}
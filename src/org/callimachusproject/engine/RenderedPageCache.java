@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2013 3 Round Stones Inc., Some Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.callimachusproject.engine;
+
+import info.aduna.io.IOUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.callimachusproject.util.SystemProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rendered pages keyed by everything they were rendered from: the template
+ * content, the target resource and its revision, the media type and the
+ * permission class the page was rendered for. Since a new revision produces a
+ * new key, entries are never invalidated, only evicted. Pages evicted from
+ * memory may be kept in a subdirectory of the configured directory, which is
+ * written in the background and only ever has its own page files deleted.
+ */
+public class RenderedPageCache {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int DISK_FACTOR = 16;
+	private static final String PAGES_DIR = "rendered-pages";
+	private static final String MARKER = ".rendered-page-cache";
+	private static final Pattern PAGE_FILE = Pattern.compile("[0-9a-f]{32}(\\.tmp)?");
+	private static final RenderedPageCache instance = new RenderedPageCache(
+			SystemProperties.getRenderedPageCacheSize(),
+			SystemProperties.getRenderedPageCacheDirectory());
+
+	public static RenderedPageCache getInstance() {
+		return instance;
+	}
+
+	final Logger logger = LoggerFactory.getLogger(RenderedPageCache.class);
+	private final File dir;
+	private final Map<String, byte[]> memory;
+	/** keys of the pages written to disk, least recently used first */
+	private final Map<String, Boolean> disk;
+	/** pages waiting for the writer thread */
+	private final ConcurrentMap<String, byte[]> writing = new ConcurrentHashMap<String, byte[]>();
+	private final ExecutorService writer;
+	private long hits;
+	private long misses;
+
+	/**
+	 * @param capacity
+	 *            maximum number of pages kept in memory
+	 * @param dir
+	 *            directory to keep a second tier of pages in (in a
+	 *            subdirectory of its own) or null
+	 */
+	public RenderedPageCache(final int capacity, File dir) {
+		this.dir = dir == null ? null : createPagesDirectory(new File(dir,
+				PAGES_DIR));
+		memory = new LinkedHashMap<String, byte[]>(capacity, 0.75f, true) {
+			private static final long serialVersionUID = -2637203727532287327L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+				return size() > capacity;
+			}
+		};
+		disk = new LinkedHashMap<String, Boolean>(capacity, 0.75f, true) {
+			private static final long serialVersionUID = 4187403233404584419L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				if (size() <= capacity * DISK_FACTOR)
+					return false;
+				delete(eldest.getKey());
+				return true;
+			}
+		};
+		if (this.dir == null) {
+			writer = null;
+		} else {
+			// pages are written in the background, dropped if it falls behind
+			writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(Math.max(1, capacity)),
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "Rendered page writer");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+	}
+
+	/**
+	 * @return an opaque key or null if any part is unknown
+	 */
+	public String key(String templateRevision, String target,
+			String targetRevision, String mediaType, String permission) {
+		if (templateRevision == null || target == null
+				|| targetRevision == null || mediaType == null
+				|| permission == null)
+			return null;
+		StringBuilder sb = new StringBuilder();
+		sb.append(templateRevision).append('\n');
+		sb.append(target).append('\n');
+		sb.append(targetRevision).append('\n');
+		sb.append(mediaType).append('\n');
+		sb.append(permission);
+		return DigestUtils.md5Hex(sb.toString().getBytes(UTF8));
+	}
+
+	public String getString(String key) {
+		byte[] page = get(key);
+		if (page == null)
+			return null;
+		return new String(page, UTF8);
+	}
+
+	public void putString(String key, String page) {
+		put(key, page.getBytes(UTF8));
+	}
+
+	public byte[] get(String key) {
+		synchronized (memory) {
+			byte[] page = memory.get(key);
+			if (page != null) {
+				hits++;
+				return page;
+			}
+		}
+		byte[] page = read(key);
+		synchronized (memory) {
+			if (page == null) {
+				misses++;
+			} else {
+				hits++;
+				memory.put(key, page);
+			}
+		}
+		return page;
+	}
+
+	public void put(String key, byte[] page) {
+		synchronized (memory) {
+			memory.put(key, page);
+		}
+		if (writer != null) {
+			write(key, page);
+		}
+	}
+
+	public long getHitCount() {
+		synchronized (memory) {
+			return hits;
+		}
+	}
+
+	public long getMissCount() {
+		synchronized (memory) {
+			return misses;
+		}
+	}
+
+	public void reset() {
+		synchronized (memory) {
+			memory.clear();
+		}
+		if (dir != null) {
+			writing.clear();
+			synchronized (disk) {
+				disk.clear();
+				deletePages(dir);
+			}
+		}
+	}
+
+	private byte[] read(String key) {
+		if (dir == null)
+			return null;
+		byte[] page = writing.get(key);
+		if (page != null)
+			return page;
+		synchronized (disk) {
+			if (disk.get(key) == null)
+				return null;
+			try {
+				return IOUtil.readBytes(new File(dir, key));
+			} catch (IOException e) {
+				logger.warn(e.toString(), e);
+				disk.remove(key);
+				return null;
+			}
+		}
+	}
+
+	private void write(final String key, final byte[] page) {
+		writing.put(key, page);
+		try {
+			writer.execute(new Runnable() {
+				public void run() {
+					synchronized (disk) {
+						// skip pages that were replaced or reset since
+						if (writing.get(key) != page)
+							return;
+						try {
+							writeFile(key, page);
+						} finally {
+							writing.remove(key, page);
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			writing.remove(key, page);
+		}
+	}
+
+	private void writeFile(String key, byte[] page) {
+		try {
+			File tmp = new File(dir, key + ".tmp");
+			IOUtil.writeBytes(page, tmp);
+			File file = new File(dir, key);
+			if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+				tmp.delete();
+				return;
+			}
+			disk.put(key, Boolean.TRUE);
+		} catch (IOException e) {
+			logger.warn(e.toString(), e);
+		}
+	}
+
+	private void delete(String key) {
+		File file = new File(dir, key);
+		if (file.exists() && !file.delete()) {
+			logger.warn("Could not delete {}", file);
+		}
+	}
+
+	/**
+	 * Creates the directory with a marker file, or empties the pages from a
+	 * previous run (they are not indexed) if it has the marker.
+	 * 
+	 * @return the directory or null if it is not the page cache's to use
+	 */
+	private File createPagesDirectory(File pages) {
+		File marker = new File(pages, MARKER);
+		try {
+			if (pages.isDirectory() && !marker.exists()) {
+				logger.warn("Not caching pages in {}, it was not created by the page cache", pages);
+				return null;
+			} else if (!pages.isDirectory() && !pages.mkdirs()) {
+				logger.warn("Could not create {}", pages);
+				return null;
+			} else if (!marker.exists() && !marker.createNewFile()) {
+				logger.warn("Could not create {}", marker);
+				return null;
+			}
+		} catch (IOException e) {
+			logger.warn(e.toString(), e);
+			return null;
+		}
+		deletePages(pages);
+		return pages;
+	}
+
+	/**
+	 * Deletes only the page files this cache wrote.
+	 */
+	private void deletePages(File pages) {
+		File[] files = pages.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (PAGE_FILE.matcher(file.getName()).matches() && !file.delete()) {
+				logger.warn("Could not delete {}", file);
+			}
+		}
+	}
+}
@@ -21,12 +21,19 @@ import static org.openrdf.query.QueryLanguage.SPARQL;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -47,13 +54,17 @@ import org.callimachusproject.engine.helpers.RDFaProducer;
 import org.callimachusproject.engine.helpers.SPARQLPosteditor;
 import org.callimachusproject.engine.helpers.SPARQLProducer;
 import org.callimachusproject.engine.helpers.SPARQLWriter;
+import org.callimachusproject.engine.helpers.TemplateProgram;
 import org.callimachusproject.engine.helpers.XMLElementReader;
-import org.callimachusproject.engine.helpers.XMLEventList;
+import org.callimachusproject.engine.helpers.XMLEventArray;
 import org.callimachusproject.engine.model.TermFactory;
 import org.callimachusproject.engine.model.TermOrigin;
+import org.callimachusproject.engine.model.Var;
 import org.callimachusproject.engine.model.VarOrTerm;
 import org.openrdf.http.object.exceptions.InternalServerError;
+import org.openrdf.model.BNode;
 import org.openrdf.model.Resource;
+import org.openrdf.model.Value;
 import org.openrdf.query.Binding;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.GraphQuery;
@@ -65,16 +76,48 @@ import org.openrdf.query.TupleQueryResult;
 import org.openrdf.query.impl.EmptyBindingSet;
 import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.repository.RepositoryException;
+import org.openrdf.rio.ntriples.NTriplesUtil;
 
 public class Template {
 	private static final Pattern PROLOGUE = Pattern.compile("BASE\\s*<([^>\\s]*)>|PREFIX\\s+([^:\\s]*)\\s*:\\s*<([^>\\s]*)>|\\#(.*)[\r\n]", Pattern.CASE_INSENSITIVE);
+	private static final Pattern ORDER_BY = Pattern.compile("\\}\\s*ORDER BY\\s+\\?(\\S+)[^}]*$");
 	private static final Pattern SELECT = Pattern.compile("\\s*(?:#.*(?:$|\n|\r)\\s*)*SELECT\\s+(?:REDUCED\\s+|DISTINCT\\s+)?\\?([^\\{\\s]*)\\s*(?:WHERE\\s*)?\\{", Pattern.CASE_INSENSITIVE);
+	private static enum Form { QUERY, SELECT, CONSTRUCT, PARTNER, EACH }
+	private static final int MAX_ELEMENTS = 64;
 	private final TermFactory systemId;
-	private final XMLEventList source;
+	private final XMLEventArray source;
+	private final TemplateProgram program;
+	private final String digest;
+	private final ConcurrentMap<String, CompiledTemplate> compiled = new ConcurrentHashMap<String, CompiledTemplate>();
+	/**
+	 * Elements of this template by xptr, only for the xptrs that resolve to
+	 * an indexed element
+	 */
+	private final Map<String, Template> elements = new LinkedHashMap<String, Template>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = -2406517396370211372L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, Template> eldest) {
+			return size() > MAX_ELEMENTS;
+		}
+	};
 
 	protected Template(XMLEventReader source, String systemId) throws XMLStreamException {
+		this(source, systemId, null);
+	}
+
+	Template(XMLEventReader source, String systemId, String digest) throws XMLStreamException {
 		this.systemId = TermFactory.newInstance(systemId);
-		this.source = new XMLEventList(source);
+		this.source = new XMLEventArray(source);
+		this.program = new TemplateProgram(this.source);
+		this.digest = digest;
+	}
+
+	private Template(Template parent, XMLEventArray element) {
+		this.systemId = TermFactory.newInstance(parent.getSystemId());
+		this.source = element;
+		this.program = new TemplateProgram(parent.program, element);
+		this.digest = null;
 	}
 
 	public String toString() {
@@ -85,24 +128,19 @@ public class Template {
 		return systemId.getSystemId();
 	}
 
+	/**
+	 * Digest of the template content this was parsed from or null.
+	 */
+	public String getDigest() {
+		return digest;
+	}
+
 	public String getRawQueryString() throws TemplateException {
-		try {
-			return toSPARQL(openQuery());
-		} catch (RDFParseException e) {
-			throw new TemplateException(e);
-		} catch (IOException e) {
-			throw new TemplateException(e);
-		}
+		return compile(Form.QUERY, null).getSparql();
 	}
 
 	public String getQueryString() throws TemplateException {
-		try {
-			return toSafeSparql(openQuery());
-		} catch (RDFParseException e) {
-			throw new TemplateException(e);
-		} catch (IOException e) {
-			throw new TemplateException(e);
-		}
+		return compile(Form.QUERY, null).getSafeSparql();
 	}
 
 	public String getQueryString(String subQuery) throws TemplateException {
@@ -230,10 +268,8 @@ public class Template {
 			throws TemplateException {
 		// evaluate SPARQL derived from the template
 		try {
-			RDFEventReader reader = new RDFaReader(getSystemId(), openSource(), getSystemId());
-			SPARQLProducer producer = new SPARQLProducer(reader);
-			String sparql = toSafeSparql(new OrderedSparqlReader(producer), bindings);
-			TupleQuery q = con.prepareTupleQuery(SPARQL, sparql, getSystemId());
+			CompiledTemplate plan = compile(Form.SELECT, bindings);
+			TupleQuery q = plan.prepareTupleQuery(con, getSystemId());
 			for (Binding bind : bindings) {
 				q.setBinding(bind.getName(), bind.getValue());
 			}
@@ -244,10 +280,6 @@ public class Template {
 			throw new TemplateException(e);
 		} catch (QueryEvaluationException e) {
 			throw new TemplateException(e);
-		} catch (RDFParseException e) {
-			throw new TemplateException(e);
-		} catch (IOException e) {
-			throw new TemplateException(e);
 		}
 	}
 
@@ -255,11 +287,8 @@ public class Template {
 			throws TemplateException {
 		// evaluate SPARQL derived from the template
 		try {
-			RDFEventReader reader = new RDFaReader(getSystemId(), openSource(), getSystemId());
-			RDFEventReader select = new SPARQLProducer(reader);
-			RDFEventReader construct = new ConstructQueryReader(select);
-			String sparql = toSafeSparql(construct, bindings);
-			GraphQuery q = con.prepareGraphQuery(SPARQL, sparql, getSystemId());
+			CompiledTemplate plan = compile(Form.CONSTRUCT, bindings);
+			GraphQuery q = plan.prepareGraphQuery(con, getSystemId());
 			for (Binding bind : bindings) {
 				q.setBinding(bind.getName(), bind.getValue());
 			}
@@ -270,9 +299,44 @@ public class Template {
 			throw new TemplateException(e);
 		} catch (QueryEvaluationException e) {
 			throw new TemplateException(e);
-		} catch (RDFParseException e) {
+		}
+	}
+
+	/**
+	 * Evaluates the template once for many values of a variable, such as
+	 * "this", and groups the solutions by value.
+	 * 
+	 * @param name
+	 *            variable in the template
+	 * @param values
+	 *            IRIs or literals, which are bound using a VALUES block
+	 * @return the solutions for each value with at least one solution,
+	 *         grouped in the SPARQL term order of the values, not the order
+	 *         they were given in
+	 */
+	public TemplateBatch evaluateEach(String name,
+			Collection<? extends Value> values, RepositoryConnection con)
+			throws TemplateException {
+		CompiledTemplate plan = compile(Form.EACH + "[" + name + "]",
+				Form.EACH, new String[] { name });
+		StringBuilder sparql = new StringBuilder(plan.getSafeSparql());
+		sparql.append("\nVALUES ?").append(name).append(" {");
+		for (Value value : values) {
+			if (value instanceof BNode)
+				throw new IllegalArgumentException("Blank nodes cannot be bound in a VALUES block");
+			sparql.append(" ").append(NTriplesUtil.toNTriplesString(value));
+		}
+		sparql.append(" }");
+		try {
+			TupleQuery q = con.prepareTupleQuery(SPARQL, sparql.toString(),
+					getSystemId());
+			return new TemplateBatch(q.evaluate(), name, program,
+					plan.getOrigins());
+		} catch (MalformedQueryException e) {
 			throw new TemplateException(e);
-		} catch (IOException e) {
+		} catch (RepositoryException e) {
+			throw new TemplateException(e);
+		} catch (QueryEvaluationException e) {
 			throw new TemplateException(e);
 		}
 	}
@@ -289,31 +353,16 @@ public class Template {
 	public TupleQueryResult evaluatePartner(Resource partner,
 			RepositoryConnection con) throws TemplateException {
 		try {
-			RDFEventReader reader = new RDFaReader(getSystemId(), openSource(),
-					getSystemId());
-			SPARQLProducer rq = new SPARQLProducer(reader);
-			SPARQLPosteditor ed = new SPARQLPosteditor(rq);
-
-			// only pass object vars (excluding prop-exps and content) beyond a
-			// certain depth:
-			// ^(/\d+){3,}$|^(/\d+)*\s.*$
-			ed.addEditor(ed.new TriplePatternCutter());
-
-			// find top-level new subjects to bind
-			SPARQLPosteditor.TriplePatternRecorder rec;
-			ed.addEditor(rec = ed.new TriplePatternRecorder());
-
-			String sparql = toSafeSparql(new OrderedSparqlReader(ed)) + "\nLIMIT 1000";
+			CompiledTemplate plan = compile(Form.PARTNER, null);
+			String sparql = plan.getSafeSparql() + "\nLIMIT 1000";
 			assert sparql.contains("SELECT REDUCED");
 			sparql.replaceFirst("\bSELECT REDUCED\b", "SELECT DISTINCT");
 			TupleQuery qry = con.prepareTupleQuery(SPARQL, sparql,
 					getSystemId());
 			qry.setIncludeInferred(true);
 			if (partner != null) {
-				for (TriplePattern t : rec.getTriplePatterns()) {
-					VarOrTerm vt = t.getSubject();
-					if (vt.isVar())
-						qry.setBinding(vt.asVar().stringValue(), partner);
+				for (String anchor : plan.getAnchors()) {
+					qry.setBinding(anchor, partner);
 				}
 			}
 			// The edited query may return multiple and/or empty solutions
@@ -324,9 +373,63 @@ public class Template {
 			throw new TemplateException(e);
 		} catch (QueryEvaluationException e) {
 			throw new TemplateException(e);
-		} catch (RDFParseException e) {
-			throw new TemplateException(e);
-		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Reads a page of the solutions to {@link #evaluatePartner}. The page
+	 * holds the solutions of up to size distinct values of the first ordered
+	 * variable, or more if a page would end with a blank node or literal.
+	 * 
+	 * @param size maximum number of distinct key values in the page
+	 * @param token continuation token of the previous page or null
+	 */
+	public PagedTupleQueryResult evaluatePartner(final Resource partner,
+			int size, String token, final RepositoryConnection con)
+			throws TemplateException {
+		if (size < 1)
+			throw new IllegalArgumentException("Page size must be positive");
+		try {
+			final CompiledTemplate plan = compile(Form.PARTNER, null);
+			String sparql = plan.getSafeSparql();
+			Matcher m = ORDER_BY.matcher(sparql);
+			if (!m.find())
+				throw new InternalServerError("Template results are not ordered");
+			String key = m.group(1);
+			if (token != null) {
+				// keyset: skip the keys of the previous pages, which end with
+				// an IRI; blank nodes sort before IRIs and literals after
+				String last = PagedTupleQueryResult.decodeToken(token);
+				String filter = "FILTER (isLiteral(?" + key + ") || isIRI(?"
+						+ key + ") && str(?" + key + ") > \""
+						+ NTriplesUtil.escapeString(last) + "\")\n";
+				sparql = sparql.substring(0, m.start()) + filter
+						+ sparql.substring(m.start());
+			}
+			final String ordered = sparql;
+			return new PagedTupleQueryResult(new PagedTupleQueryResult.Chunks() {
+				public TupleQueryResult evaluate(long offset, long limit)
+						throws QueryEvaluationException {
+					String sparql = ordered + "\nLIMIT " + limit + " OFFSET "
+							+ offset;
+					try {
+						TupleQuery qry = con.prepareTupleQuery(SPARQL, sparql,
+								getSystemId());
+						qry.setIncludeInferred(true);
+						if (partner != null) {
+							for (String anchor : plan.getAnchors()) {
+								qry.setBinding(anchor, partner);
+							}
+						}
+						return qry.evaluate();
+					} catch (MalformedQueryException e) {
+						throw new QueryEvaluationException(e);
+					} catch (RepositoryException e) {
+						throw new QueryEvaluationException(e);
+					}
+				}
+			}, key, size);
+		} catch (QueryEvaluationException e) {
 			throw new TemplateException(e);
 		}
 	}
@@ -334,23 +437,25 @@ public class Template {
 	public XMLEventReader render(TupleQueryResult results)
 			throws TemplateException {
 		try {
-			RDFEventReader reader = new RDFaReader(getSystemId(), openSource(), getSystemId());
-			SPARQLProducer producer = new SPARQLProducer(reader);
-			try {
-				while (producer.hasNext()) {
-					producer.next();
-				}
-			} finally {
-				producer.close();
-			}
-			Map<String, TermOrigin> origins = producer.getOrigins();
-			XMLEventReader xml = openSource();
-			return new RDFaProducer(xml, results, origins);
+			Map<String, TermOrigin> origins = compile(Form.QUERY, null).getOrigins();
+			return new RDFaProducer(program, results, origins);
 		} catch (QueryEvaluationException e) {
 			throw new TemplateException(e);
-		} catch (XMLStreamException e) {
+		}
+	}
+
+	/**
+	 * Writes the rendered template as XML, copying the pre-serialised markup
+	 * that does not depend on the results.
+	 */
+	public void render(TupleQueryResult results, Writer writer)
+			throws TemplateException {
+		try {
+			Map<String, TermOrigin> origins = compile(Form.QUERY, null).getOrigins();
+			new RDFaProducer(program, results, origins).writeTo(writer);
+		} catch (QueryEvaluationException e) {
 			throw new TemplateException(e);
-		} catch (RDFParseException e) {
+		} catch (XMLStreamException e) {
 			throw new TemplateException(e);
 		}
 	}
@@ -359,29 +464,19 @@ public class Template {
 			throws TemplateException {
 		// evaluate SPARQL derived from the template
 		try {
-			RDFEventReader reader = new RDFaReader(getSystemId(), openSource(), getSystemId());
-			SPARQLProducer producer = new SPARQLProducer(reader);
-			String sparql = toSafeSparql(new OrderedSparqlReader(producer), bindings);
-			TupleQuery q = con.prepareTupleQuery(SPARQL, sparql, getSystemId());
+			CompiledTemplate plan = compile(Form.SELECT, bindings);
+			TupleQuery q = plan.prepareTupleQuery(con, getSystemId());
 			for (Binding bind : bindings) {
 				q.setBinding(bind.getName(), bind.getValue());
 			}
 			TupleQueryResult results = q.evaluate();
-			Map<String, TermOrigin> origins = producer.getOrigins();
-			XMLEventReader xml = openSource();
-			return new RDFaProducer(xml, results, origins);
+			return new RDFaProducer(program, results, plan.getOrigins());
 		} catch (MalformedQueryException e) {
 			throw new TemplateException(e);
 		} catch (RepositoryException e) {
 			throw new TemplateException(e);
 		} catch (QueryEvaluationException e) {
 			throw new TemplateException(e);
-		} catch (XMLStreamException e) {
-			throw new TemplateException(e);
-		} catch (RDFParseException e) {
-			throw new TemplateException(e);
-		} catch (IOException e) {
-			throw new TemplateException(e);
 		}
 	}
 
@@ -389,10 +484,25 @@ public class Template {
 			IllegalArgumentException {
 		if (xptr == null || xptr.equals("/1"))
 			return this;
-		XMLEventReader xml = openSource();
+		synchronized (elements) {
+			Template cached = elements.get(xptr);
+			if (cached != null)
+				return cached;
+		}
 		try {
-			xml = new XMLElementReader(xml, xptr);
-			return new Template(xml, getSystemId());
+			XMLEventArray slice = source.getElement(xptr);
+			if (slice == null) {
+				XMLEventReader xml = new XMLElementReader(openSource(), xptr);
+				return new Template(xml, getSystemId());
+			}
+			Template element = new Template(this, slice);
+			synchronized (elements) {
+				Template previous = elements.get(xptr);
+				if (previous != null)
+					return previous;
+				elements.put(xptr, element);
+				return element;
+			}
 		} catch (NumberFormatException e) {
 			throw new IllegalArgumentException(e);
 		} catch (XMLStreamException e) {
@@ -400,27 +510,88 @@ public class Template {
 		}
 	}
 
-	private String toSafeSparql(RDFEventReader reader, BindingSet bindings) throws RDFParseException, IOException {
-		String[] bindingNames = bindings.getBindingNames().toArray(new String[bindings.size()]);
-		return toSafeSparql(reader, bindingNames);
+	/**
+	 * Derives the SPARQL and variable origins from this template once for
+	 * each form of query and set of binding names.
+	 * 
+	 * @param bindings
+	 *            names of the variables that will be bound or null to require
+	 *            a single connected cluster of variables
+	 */
+	private CompiledTemplate compile(Form form, BindingSet bindings)
+			throws TemplateException {
+		String[] bindingNames = null;
+		StringBuilder key = new StringBuilder(form.name());
+		if (bindings != null) {
+			Set<String> names = new TreeSet<String>(bindings.getBindingNames());
+			bindingNames = names.toArray(new String[names.size()]);
+			key.append(names);
+		}
+		return compile(key.toString(), form, bindingNames);
 	}
 
-	private String toSafeSparql(RDFEventReader reader, String[] bindingNames)
-			throws RDFParseException, IOException {
-		ClusterCounter counter = new ClusterCounter(reader);
-		String sparql = toSPARQL(counter);
-		if (counter.getNumberOfVariableClusters(bindingNames) > 0)
-			throw new InternalServerError("Variables not connected: " + counter.getSmallestCluster(bindingNames));
-		return sparql;
+	private CompiledTemplate compile(String key, Form form, String[] bindingNames)
+			throws TemplateException {
+		CompiledTemplate plan = compiled.get(key);
+		if (plan != null)
+			return plan;
+		try {
+			plan = derive(form, bindingNames);
+		} catch (RDFParseException e) {
+			throw new TemplateException(e);
+		} catch (IOException e) {
+			throw new TemplateException(e);
+		}
+		CompiledTemplate previous = compiled.putIfAbsent(key, plan);
+		return previous == null ? plan : previous;
 	}
 
-	private String toSafeSparql(RDFEventReader reader)
-			throws RDFParseException, IOException {
-		ClusterCounter counter = new ClusterCounter(reader);
+	private CompiledTemplate derive(Form form, String[] bindingNames)
+			throws RDFParseException, IOException, TemplateException {
+		RDFEventReader reader = new RDFaReader(getSystemId(), openSource(), getSystemId());
+		SPARQLProducer producer = new SPARQLProducer(reader);
+		Set<String> anchors = new LinkedHashSet<String>();
+		SPARQLPosteditor.TriplePatternRecorder rec = null;
+		RDFEventReader query;
+		if (form == Form.CONSTRUCT) {
+			query = new ConstructQueryReader(producer);
+		} else if (form == Form.PARTNER) {
+			SPARQLPosteditor ed = new SPARQLPosteditor(producer);
+
+			// only pass object vars (excluding prop-exps and content) beyond a
+			// certain depth:
+			// ^(/\d+){3,}$|^(/\d+)*\s.*$
+			ed.addEditor(ed.new TriplePatternCutter());
+
+			// find top-level new subjects to bind
+			ed.addEditor(rec = ed.new TriplePatternRecorder());
+			query = new OrderedSparqlReader(ed);
+		} else if (form == Form.EACH) {
+			// keep the solutions of each value together
+			List<Var> leading = Collections.singletonList(systemId.var(bindingNames[0]));
+			query = new OrderedSparqlReader(producer, leading);
+		} else {
+			query = new OrderedSparqlReader(producer);
+		}
+		ClusterCounter counter = new ClusterCounter(query);
 		String sparql = toSPARQL(counter);
-		if (counter.getNumberOfVariableClusters() > 1)
-			throw new InternalServerError("Variables not connected: " + counter.getSmallestCluster());
-		return sparql;
+		Set<String> unconnected = null;
+		if (bindingNames == null) {
+			if (counter.getNumberOfVariableClusters() > 1) {
+				unconnected = counter.getSmallestCluster();
+			}
+		} else if (counter.getNumberOfVariableClusters(bindingNames) > 0) {
+			unconnected = counter.getSmallestCluster(bindingNames);
+		}
+		if (rec != null) {
+			for (TriplePattern t : rec.getTriplePatterns()) {
+				VarOrTerm vt = t.getSubject();
+				if (vt.isVar()) {
+					anchors.add(vt.asVar().stringValue());
+				}
+			}
+		}
+		return new CompiledTemplate(sparql, producer.getOrigins(), unconnected, anchors);
 	}
 
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2013 3 Round Stones Inc., Some Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.callimachusproject.engine;
+
+import info.aduna.iteration.LookAheadIteration;
+
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+
+import org.callimachusproject.engine.helpers.RDFaProducer;
+import org.callimachusproject.engine.helpers.TemplateProgram;
+import org.callimachusproject.engine.model.TermOrigin;
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.query.impl.TupleQueryResultImpl;
+
+/**
+ * Splits the solutions of a template evaluated for many values, ordered by
+ * value, into the solutions of each value. Each group must be read before
+ * advancing to the next.
+ */
+public class TemplateBatch {
+	private final TupleQueryResult results;
+	private final List<String> bindingNames;
+	private final String name;
+	private final TemplateProgram program;
+	private final Map<String, TermOrigin> origins;
+	private BindingSet pending;
+	private Value current;
+
+	TemplateBatch(TupleQueryResult results, String name,
+			TemplateProgram program, Map<String, TermOrigin> origins)
+			throws QueryEvaluationException {
+		this.results = results;
+		this.bindingNames = results.getBindingNames();
+		this.name = name;
+		this.program = program;
+		this.origins = origins;
+		pending = results.hasNext() ? results.next() : null;
+	}
+
+	public String getBindingName() {
+		return name;
+	}
+
+	public boolean hasNext() throws TemplateException {
+		try {
+			// skip the unread solutions of the current value
+			while (pending != null && current != null
+					&& current.equals(pending.getValue(name))) {
+				pending = results.hasNext() ? results.next() : null;
+			}
+			return pending != null;
+		} catch (QueryEvaluationException e) {
+			throw new TemplateException(e);
+		}
+	}
+
+	/**
+	 * Advances to the solutions of the next value.
+	 *
+	 * @return the next value
+	 */
+	public Value next() throws TemplateException {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		return current = pending.getValue(name);
+	}
+
+	/**
+	 * @return the solutions of the current value
+	 */
+	public TupleQueryResult evaluate() throws TemplateException {
+		if (current == null)
+			throw new IllegalStateException("next() has not been called");
+		final Value value = current;
+		return new TupleQueryResultImpl(bindingNames,
+				new LookAheadIteration<BindingSet, QueryEvaluationException>() {
+					protected BindingSet getNextElement()
+							throws QueryEvaluationException {
+						if (pending == null
+								|| !value.equals(pending.getValue(name)))
+							return null;
+						BindingSet next = pending;
+						pending = results.hasNext() ? results.next() : null;
+						return next;
+					}
+				});
+	}
+
+	/**
+	 * @return the template rendered with the solutions of the current value
+	 */
+	public XMLEventReader render() throws TemplateException {
+		try {
+			return new RDFaProducer(program, evaluate(), origins);
+		} catch (QueryEvaluationException e) {
+			throw new TemplateException(e);
+		}
+	}
+
+	public void render(Writer writer) throws TemplateException {
+		try {
+			new RDFaProducer(program, evaluate(), origins).writeTo(writer);
+		} catch (QueryEvaluationException e) {
+			throw new TemplateException(e);
+		} catch (XMLStreamException e) {
+			throw new TemplateException(e);
+		}
+	}
+
+	public void close() throws TemplateException {
+		try {
+			results.close();
+		} catch (QueryEvaluationException e) {
+			throw new TemplateException(e);
+		}
+	}
+}
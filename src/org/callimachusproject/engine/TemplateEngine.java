@@ -16,44 +16,188 @@
  */
 package org.callimachusproject.engine;
 
+import info.aduna.io.IOUtil;
+
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerException;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.callimachusproject.util.SystemProperties;
 import org.openrdf.http.object.client.HttpUriClient;
-import org.openrdf.http.object.client.HttpUriEntity;
+import org.openrdf.http.object.client.HttpUriResponse;
+import org.openrdf.http.object.exceptions.ResponseException;
 import org.openrdf.http.object.fluid.FluidBuilder;
 import org.openrdf.http.object.fluid.FluidException;
 import org.openrdf.http.object.fluid.FluidFactory;
 
 public class TemplateEngine {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAX_TEMPLATES = 256;
+	private static final String ACCEPT = "application/xhtml+xml, application/xml, text/xml";
+	private static final long FRESHNESS = SystemProperties.getTemplateFreshness() * 1000L;
+	/**
+	 * Parsed templates by systemId, which are replaced when the template
+	 * content digest changes
+	 */
+	private static final Map<String, Template> templates = new LinkedHashMap<String, Template>(
+			MAX_TEMPLATES, 0.75f, true) {
+		private static final long serialVersionUID = 4325370813370766574L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, Template> eldest) {
+			return size() > MAX_TEMPLATES;
+		}
+	};
+
+	/**
+	 * Validators of the templates retrieved by scope and URL, as clients of
+	 * different scopes may be given different responses
+	 */
+	private static final Map<List<Object>, Source> sources = new LinkedHashMap<List<Object>, Source>(
+			MAX_TEMPLATES, 0.75f, true) {
+		private static final long serialVersionUID = -1508062000311366347L;
+
+		protected boolean removeEldestEntry(
+				Map.Entry<List<Object>, Source> eldest) {
+			return size() > MAX_TEMPLATES;
+		}
+	};
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+
+	private static class Source {
+		final Template template;
+		final String etag;
+		final String lastModified;
+		volatile long validated;
+
+		Source(Template template, HttpResponse resp, long validated) {
+			this.template = template;
+			this.etag = getHeader(resp, "ETag");
+			this.lastModified = getHeader(resp, "Last-Modified");
+			this.validated = validated;
+		}
+
+		boolean isValidatable() {
+			return etag != null || lastModified != null;
+		}
+
+		private String getHeader(HttpResponse resp, String name) {
+			Header hd = resp.getFirstHeader(name);
+			return hd == null ? null : hd.getValue();
+		}
+	}
+
+	/**
+	 * Number of templates retrieved by URL that were not parsed again
+	 */
+	public static long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Number of templates retrieved by URL that were downloaded
+	 */
+	public static long getMissCount() {
+		return misses.get();
+	}
 
 	public static TemplateEngine newInstance(HttpClient client) {
 		return new TemplateEngine(client);
 	}
 
+	/**
+	 * @param scope
+	 *            of the client's credentials, such as its realm, shared by
+	 *            the engines that may reuse each other's template validators
+	 */
+	public static TemplateEngine newInstance(HttpClient client, String scope) {
+		return new TemplateEngine(client, scope);
+	}
+
 	private final HttpUriClient client;
+	private final Object scope;
 
 	public TemplateEngine(final HttpClient client) {
+		this(client, client);
+	}
+
+	public TemplateEngine(final HttpClient client, String scope) {
+		this(client, (Object) scope);
+	}
+
+	private TemplateEngine(HttpClient client, Object scope) {
 		if (client instanceof HttpUriClient) {
 			this.client = (HttpUriClient) client;
 		} else {
 			this.client = new HttpUriClient(client);
 		}
+		this.scope = scope;
 	}
 
-	public Template getTemplate(String systemId) throws IOException,
+	public Template getTemplate(String url) throws IOException,
 			TemplateException {
-		HttpUriEntity resp = client.getEntity(systemId, "application/xhtml+xml, application/xml, text/xml");
-		systemId = resp.getSystemId();
-		InputStream in = resp.getContent();
-		return getTemplate(in, systemId, null);
+		long now = System.currentTimeMillis();
+		List<Object> key = Arrays.asList(scope, url);
+		Source cached;
+		synchronized (sources) {
+			cached = sources.get(key);
+		}
+		if (cached != null && now - cached.validated < FRESHNESS) {
+			hits.incrementAndGet();
+			return cached.template;
+		}
+		HttpGet get = new HttpGet(url);
+		get.setHeader("Accept", ACCEPT);
+		if (cached != null && cached.etag != null) {
+			get.setHeader("If-None-Match", cached.etag);
+		}
+		if (cached != null && cached.lastModified != null) {
+			get.setHeader("If-Modified-Since", cached.lastModified);
+		}
+		HttpUriResponse resp = client.getAnyResponse(get);
+		try {
+			int code = resp.getStatusLine().getStatusCode();
+			if (cached != null && code == 304) {
+				cached.validated = now;
+				hits.incrementAndGet();
+				return cached.template;
+			} else if (code >= 300) {
+				throw ResponseException.create(resp);
+			} else if (resp.getEntity() == null) {
+				throw new IOException("No template content from " + url);
+			}
+			misses.incrementAndGet();
+			InputStream in = resp.getEntity().getContent();
+			Template template = getTemplate(in, resp.getSystemId(), null);
+			Source source = new Source(template, resp, now);
+			synchronized (sources) {
+				if (source.isValidatable()) {
+					sources.put(key, source);
+				} else {
+					sources.remove(key);
+				}
+			}
+			return template;
+		} finally {
+			resp.close();
+		}
 	}
 
 	public Template getTemplate(InputStream in, String systemId) throws IOException,
@@ -64,8 +208,19 @@ public class TemplateEngine {
 	public Template getTemplate(InputStream in, String systemId,
 			Map<String, ?> parameters) throws IOException,
 			TemplateException {
+		byte[] content;
 		try {
-			return new Template(asXMLEventReader(in, systemId), systemId);
+			content = IOUtil.readBytes(in);
+		} finally {
+			in.close();
+		}
+		String digest = DigestUtils.md5Hex(content);
+		Template cached = getCachedTemplate(systemId, digest);
+		if (cached != null)
+			return cached;
+		try {
+			InputStream stream = new ByteArrayInputStream(content);
+			return cache(new Template(asXMLEventReader(stream, systemId), systemId, digest));
 		} catch (XMLStreamException e) {
 			throw new TemplateException(e);
 		} catch (TransformerException e) {
@@ -81,8 +236,19 @@ public class TemplateEngine {
 	public Template getTemplate(Reader in, String systemId,
 			Map<String, ?> parameters) throws IOException,
 			TemplateException {
+		String content;
 		try {
-			return new Template(asXMLEventReader(in, systemId), systemId);
+			content = IOUtil.readString(in);
+		} finally {
+			in.close();
+		}
+		String digest = DigestUtils.md5Hex(content.getBytes(UTF8));
+		Template cached = getCachedTemplate(systemId, digest);
+		if (cached != null)
+			return cached;
+		try {
+			Reader reader = new StringReader(content);
+			return cache(new Template(asXMLEventReader(reader, systemId), systemId, digest));
 		} catch (XMLStreamException e) {
 			throw new TemplateException(e);
 		} catch (TransformerException e) {
@@ -90,6 +256,22 @@ public class TemplateEngine {
 		}
 	}
 
+	private Template getCachedTemplate(String systemId, String digest) {
+		synchronized (templates) {
+			Template cached = templates.get(systemId);
+			if (cached != null && digest.equals(cached.getDigest()))
+				return cached;
+			return null;
+		}
+	}
+
+	private Template cache(Template template) {
+		synchronized (templates) {
+			templates.put(template.getSystemId(), template);
+			return template;
+		}
+	}
+
 	private XMLEventReader asXMLEventReader(InputStream in, String systemId)
 			throws IOException, TransformerException {
 		try {
@@ -16,9 +16,12 @@
  */
 package org.callimachusproject.engine.helpers;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
@@ -28,43 +31,55 @@ import org.callimachusproject.engine.RDFParseException;
 import org.callimachusproject.engine.events.RDFEvent;
 import org.callimachusproject.engine.events.TriplePattern;
 
+/**
+ * Tracks which subjects and objects are connected by the triple patterns
+ * passing through, using a union-find over interned term ids.
+ */
 public class ClusterCounter extends RDFEventPipe {
-	private final Map<String, Set<String>> clusters = new HashMap<String, Set<String>>();
+	/** term ids in the order they were first seen */
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private final List<String> terms = new ArrayList<String>();
+	private int[] parent = new int[16];
+	private int[] size = new int[16];
+	private int roots;
 
 	public ClusterCounter(RDFEventReader reader) {
 		super(reader);
 	}
 
 	public int getNumberOfVariableClusters(String... excluding) {
-		HashSet<Set<String>> set = new HashSet<Set<String>>(clusters.size());
-		loop: for (Set<String> cluster : clusters.values()) {
-			for (String exclude : excluding) {
-				if (cluster.contains(exclude))
-					continue loop;
-			}
-			set.add(cluster);
-		}
-		return set.size();
+		return roots - getExcludedRoots(excluding).size();
 	}
 
 	public Set<Set<String>> getClusters() {
-		return new HashSet<Set<String>>(clusters.values());
+		return new HashSet<Set<String>>(groupByRoot().values());
 	}
 
+	/**
+	 * @return the terms of the smallest cluster without any of the excluded
+	 *         terms, an empty set if there are no clusters, or null if every
+	 *         cluster is excluded
+	 */
 	public Set<String> getSmallestCluster(String... excluding) {
-		if (clusters.isEmpty())
+		if (roots == 0)
 			return Collections.emptySet();
-		Set<String> smallest = null;
-		loop: for (Set<String> cluster : new HashSet<Set<String>>(clusters.values())) {
-			for (String exclude : excluding) {
-				if (cluster.contains(exclude))
-					continue loop;
+		Set<Integer> excluded = getExcludedRoots(excluding);
+		int smallest = -1;
+		for (int i = 0, n = terms.size(); i < n; i++) {
+			if (parent[i] == i && !excluded.contains(i)
+					&& (smallest < 0 || size[i] < size[smallest])) {
+				smallest = i;
 			}
-			if (smallest == null || cluster.size() < smallest.size()) {
-				smallest = cluster;
+		}
+		if (smallest < 0)
+			return null;
+		Set<String> cluster = new TreeSet<String>();
+		for (int i = 0, n = terms.size(); i < n; i++) {
+			if (find(i) == smallest) {
+				cluster.add(terms.get(i));
 			}
 		}
-		return new TreeSet<String>(smallest);
+		return cluster;
 	}
 
 	@Override
@@ -77,31 +92,80 @@ public class ClusterCounter extends RDFEventPipe {
 		add(event);
 		if (event.isTriplePattern()) {
 			TriplePattern tp = event.asTriplePattern();
-			Set<String> vars = new HashSet<String>(2);
-			vars.add(tp.getSubject().stringValue());
+			int subj = intern(tp.getSubject().stringValue());
 			if (!tp.getObject().isLiteral()) {
-				vars.add(tp.getObject().stringValue());
+				union(subj, intern(tp.getObject().stringValue()));
 			}
-			Set<String> cluster = new HashSet<String>();
-			for (String var : vars) {
-				Set<String> set = clusters.get(var);
-				if (cluster == null && set == null) {
-					cluster = new HashSet<String>();
-					cluster.add(var);
-					clusters.put(var, cluster);
-				} else if (cluster == null) {
-					cluster = set;
-				} else if (set == null) {
-					cluster.add(var);
-					clusters.put(var, cluster);
-				} else{
-					cluster.addAll(set);
-					for (String key : set) {
-						clusters.put(key, cluster);
-					}
-				}
+		}
+	}
+
+	private int intern(String term) {
+		Integer id = ids.get(term);
+		if (id != null)
+			return id;
+		int i = terms.size();
+		if (i == parent.length) {
+			parent = Arrays.copyOf(parent, i * 2);
+			size = Arrays.copyOf(size, i * 2);
+		}
+		parent[i] = i;
+		size[i] = 1;
+		terms.add(term);
+		ids.put(term, i);
+		roots++;
+		return i;
+	}
+
+	private int find(int i) {
+		int root = i;
+		while (parent[root] != root) {
+			root = parent[root];
+		}
+		while (parent[i] != root) {
+			int next = parent[i];
+			parent[i] = root;
+			i = next;
+		}
+		return root;
+	}
+
+	private void union(int a, int b) {
+		int ra = find(a);
+		int rb = find(b);
+		if (ra == rb)
+			return;
+		if (size[ra] < size[rb]) {
+			int swap = ra;
+			ra = rb;
+			rb = swap;
+		}
+		parent[rb] = ra;
+		size[ra] += size[rb];
+		roots--;
+	}
+
+	private Set<Integer> getExcludedRoots(String... excluding) {
+		Set<Integer> excluded = new HashSet<Integer>(excluding.length);
+		for (String exclude : excluding) {
+			Integer id = ids.get(exclude);
+			if (id != null) {
+				excluded.add(find(id));
+			}
+		}
+		return excluded;
+	}
+
+	private Map<Integer, Set<String>> groupByRoot() {
+		Map<Integer, Set<String>> clusters = new HashMap<Integer, Set<String>>(roots);
+		for (int i = 0, n = terms.size(); i < n; i++) {
+			int root = find(i);
+			Set<String> cluster = clusters.get(root);
+			if (cluster == null) {
+				clusters.put(root, cluster = new HashSet<String>());
 			}
+			cluster.add(terms.get(i));
 		}
+		return clusters;
 	}
 
 }
@@ -18,8 +18,12 @@ package org.callimachusproject.engine.helpers;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.callimachusproject.engine.RDFEventReader;
@@ -186,6 +190,14 @@ public class EntityUpdater {
 	}
 
 	private String createConnectionQuery(Set<Statement> connections) {
+		Map<Resource, List<Statement>> bySubject = new HashMap<Resource, List<Statement>>();
+		for (Statement st : connections) {
+			List<Statement> list = bySubject.get(st.getSubject());
+			if (list == null) {
+				bySubject.put(st.getSubject(), list = new ArrayList<Statement>());
+			}
+			list.add(st);
+		}
 		StringBuilder sb = new StringBuilder();
 		for (Statement st : connections) {
 			if (st.getSubject() instanceof URI) {
@@ -194,7 +206,7 @@ public class EntityUpdater {
 				} else {
 					sb.append("UNION {\n");
 				}
-				appendPattern(st, connections, sb);
+				appendPattern(st, bySubject, sb);
 				sb.append("} ");
 			}
 		}
@@ -203,15 +215,16 @@ public class EntityUpdater {
 		return qry;
 	}
 
-	private void appendPattern(Statement st, Set<Statement> connections,
-			StringBuilder sb) {
+	private void appendPattern(Statement st,
+			Map<Resource, List<Statement>> bySubject, StringBuilder sb) {
 		appendTerm(st.getSubject(), sb).append(' ');
 		appendTerm(st.getPredicate(), sb).append(' ');
 		appendTerm((Resource) st.getObject(), sb).append(" .\n");
-		for (Statement next : connections) {
-			if (st.getObject().equals(next.getSubject())) {
+		List<Statement> list = bySubject.get(st.getObject());
+		if (list != null) {
+			for (Statement next : list) {
 				sb.append("OPTIONAL {\n");
-				appendPattern(next, connections, sb);
+				appendPattern(next, bySubject, sb);
 				sb.append("}\n");
 			}
 		}
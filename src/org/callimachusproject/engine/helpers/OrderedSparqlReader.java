@@ -29,6 +29,7 @@ import org.callimachusproject.engine.model.VarOrTerm;
 
 public class OrderedSparqlReader extends AbstractRDFEventReader {
 	private final RDFEventReader delegate;
+	private final List<Var> leading;
 	private RDFEvent next;
 	private List<List<Var>> parent_vars = new ArrayList<List<Var>>();
 	private List<List<Var>> parent_nested = new ArrayList<List<Var>>();
@@ -36,7 +37,15 @@ public class OrderedSparqlReader extends AbstractRDFEventReader {
 	private List<Var> vars = new ArrayList<Var>();
 
 	public OrderedSparqlReader(RDFEventReader delegate) {
+		this(delegate, new ArrayList<Var>());
+	}
+
+	/**
+	 * @param leading variables to order the solutions by first
+	 */
+	public OrderedSparqlReader(RDFEventReader delegate, List<Var> leading) {
 		this.delegate = delegate;
+		this.leading = leading;
 	}
 
 	@Override
@@ -84,8 +93,10 @@ public class OrderedSparqlReader extends AbstractRDFEventReader {
 			addIfVar(taken.asTriplePattern().getAbout());
 			addIfVar(taken.asTriplePattern().getPartner());
 		}
-		if (taken.isEndWhere() && !nested.isEmpty()) {
-			next = new OrderBy(new LinkedHashSet<Var>(nested), taken.getLocation());
+		if (taken.isEndWhere() && !(nested.isEmpty() && leading.isEmpty())) {
+			LinkedHashSet<Var> order = new LinkedHashSet<Var>(leading);
+			order.addAll(nested);
+			next = new OrderBy(order, taken.getLocation());
 		}
 	}
 
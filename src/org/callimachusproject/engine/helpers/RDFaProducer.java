@@ -17,7 +17,9 @@
 
 package org.callimachusproject.engine.helpers;
 
+import java.io.Writer;
 import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -26,8 +28,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
-import java.util.regex.Pattern;
 
 import javax.xml.namespace.NamespaceContext;
 import javax.xml.namespace.QName;
@@ -43,7 +43,6 @@ import javax.xml.stream.events.XMLEvent;
 import org.callimachusproject.engine.RDFParseException;
 import org.callimachusproject.engine.expressions.ExpressionUtil;
 import org.callimachusproject.engine.impl.FallbackLocation;
-import org.callimachusproject.engine.model.AbsoluteTermFactory;
 import org.callimachusproject.engine.model.TermOrigin;
 import org.openrdf.model.BNode;
 import org.openrdf.model.Literal;
@@ -76,12 +75,22 @@ public class RDFaProducer extends XMLEventReaderBase {
 	final static String[] RDFA_OBJECT_ATTRIBUTES = { "about", "resource", "typeof", "content" };
 	final static List<String> RDFA_OBJECTS = Arrays.asList(RDFA_OBJECT_ATTRIBUTES);
 
-	final String[] RDFA_VAR_ATTRIBUTES = { "about", "resource", "href", "src", "typeof", "content" };
-	List<String> RDFaVarAttributes = Arrays.asList(RDFA_VAR_ATTRIBUTES);
+	final static String[] RDFA_VAR_ATTRIBUTES = { "about", "resource", "href", "src", "typeof", "content" };
+	final static List<String> RDFaVarAttributes = Arrays.asList(RDFA_VAR_ATTRIBUTES);
 
-	// reads the input template
-	XMLEventList input;
-	XMLEventIterator reader;
+	private static final ValueFactory valueFactory = ValueFactoryImpl.getInstance();
+	// event factories hold the location of the next event
+	private static final ThreadLocal<XMLEventFactory> eventFactories = new ThreadLocal<XMLEventFactory>() {
+		protected XMLEventFactory initialValue() {
+			return XMLEventFactory.newInstance();
+		}
+	};
+
+	// reads the shared input template
+	final TemplateProgram program;
+	final XMLEventArray input;
+	// index of the next input event
+	int index;
 	Map<String,TermOrigin> origins;
 	TupleQueryResult resultSet;
 	BindingSet result;
@@ -89,10 +98,7 @@ public class RDFaProducer extends XMLEventReaderBase {
 	// variables that don't originate directly from the document (ignored here)
 	Set<String> extraneous = new HashSet<String>();
 	Set<String> branches = new HashSet<String>();
-	Stack<Context> stack = new Stack<Context>();
-	XMLEventFactory eventFactory = XMLEventFactory.newInstance();
-	ValueFactory valueFactory = new ValueFactoryImpl();
-	AbsoluteTermFactory termFactory = AbsoluteTermFactory.newInstance();
+	List<Context> stack = new ArrayList<Context>();
 	Context context = new Context();
 	String skipElement = null;
 	XMLEvent previous;
@@ -100,7 +106,7 @@ public class RDFaProducer extends XMLEventReaderBase {
 	class Context {
 		int position=1, mark;
 		Map<String,Value> assignments = new HashMap<String,Value>();
-		String path;
+		String path = "";
 		Value content;
 		boolean isBranch=false, isHanging=false;
 		StartElement start;
@@ -125,15 +131,26 @@ public class RDFaProducer extends XMLEventReaderBase {
 	public RDFaProducer(XMLEventReader reader, TupleQueryResult resultSet,
 			Map<String, TermOrigin> origins)
 			throws QueryEvaluationException, XMLStreamException {
-		this(new XMLEventList(reader), resultSet, origins);
+		this(new TemplateProgram(new XMLEventArray(reader)), resultSet, origins);
 	}
 
-	private RDFaProducer(XMLEventList list, TupleQueryResult resultSet,
+	public RDFaProducer(XMLEventArray input, TupleQueryResult resultSet,
+			Map<String, TermOrigin> origins)
+			throws QueryEvaluationException, XMLStreamException {
+		this(new TemplateProgram(input), resultSet, origins);
+	}
+
+	/**
+	 * Replays the given template events without copying them, so the template
+	 * is only traversed once per rendering and can be shared between
+	 * concurrent renderings.
+	 */
+	public RDFaProducer(TemplateProgram program, TupleQueryResult resultSet,
 			Map<String, TermOrigin> origins)
 			throws QueryEvaluationException {
 		super();
-		this.input = list;
-		this.reader = list.iterator();
+		this.program = program;
+		this.input = program.getEvents();
 		this.origins = origins;
 		this.resultSet = resultSet;
 		result = nextResult();
@@ -152,11 +169,21 @@ public class RDFaProducer extends XMLEventReaderBase {
 		// do nothing
 	}
 
+	/**
+	 * Writes the remaining events, copying the serialised form of the template
+	 * markup that is not affected by the result set.
+	 */
+	public void writeTo(Writer writer) throws XMLStreamException {
+		while (hasNext()) {
+			program.writeTo(nextEvent(), writer);
+		}
+	}
+
 	@Override
 	protected boolean more() throws XMLStreamException {
 		try {
-			while (reader.hasNext()) {
-				if (process(reader.nextEvent())) return true;
+			while (index < input.size()) {
+				if (process(input.get(index++))) return true;
 			}
 			return false;
 		}
@@ -181,9 +208,9 @@ public class RDFaProducer extends XMLEventReaderBase {
 	}
 	
 	public String path() {
-		StringBuffer b = new StringBuffer();
-		for (Iterator<Context> i=stack.iterator(); i.hasNext();)
-			b.append("/"+i.next().position);
+		StringBuilder b = new StringBuilder();
+		for (Context c : stack)
+			b.append("/").append(c.position);
 		return b.toString();
 	}
 	
@@ -232,14 +259,15 @@ public class RDFaProducer extends XMLEventReaderBase {
 	private boolean processStartElement(XMLEvent event) throws Exception,
 			XMLStreamException {
 		StartElement start = event.asStartElement();
-		stack.push(context);
-		context = new Context(context, start);
-		context.path = path();
+		Context parent = context;
+		stack.add(parent);
+		context = new Context(parent, start);
+		context.path = parent.path + "/" + parent.position;
 		// record the start element position in the stream
-		context.mark = reader.nextIndex()-1;
+		context.mark = index-1;
 		
 		if (skipElement==null) {
-			context.isBranch = branchPoint(start);
+			context.isBranch = branchPoint();
 			if (context.isBranch) {					
 				// optional properties (in the next result) required deeper in the tree
 				// collapse multiple consistent solutions into a single element
@@ -269,7 +297,7 @@ public class RDFaProducer extends XMLEventReaderBase {
 	private boolean processEndElement(XMLEvent event) throws Exception {
 		if (skipElement!=null) {
 			if (context.path.equals(skipElement)) skipElement = null;
-			context = stack.pop();
+			context = pop();
 			context.position++;
 			previous = event;
 			return false;
@@ -284,29 +312,37 @@ public class RDFaProducer extends XMLEventReaderBase {
 		if (context.isBranch && result!=null && complete() && context.resultOnEntry!=result) {
 			int mark = context.mark;
 			XMLEvent ws = context.previousWhitespace;
-			context = stack.pop();
+			context = pop();
 			// Use preceding whitespace from outer context if inner context had none
 			if (ws==null) ws = context.previousWhitespace;
 			
 			context.position++;
 			if (consistent()) {
-				reader = input.listIterator(mark);
+				index = mark;
 				context.position--;
 				if (ws!=null) previous = ws;
 			}
 		}
 		else {
-			context = stack.pop();
+			context = pop();
 			context.position++;
 		}
 		return true;
 	}
 
+	private Context pop() {
+		return stack.remove(stack.size() - 1);
+	}
+
 	private boolean processCharacters(XMLEvent event) throws RDFParseException {
 		previous = event;
 		if (skipElement!=null) return false;
 		// postpone whitespace, add/repeat in advance of the next event
 		if (isWhitespace(event)) return false;
+		if (program.getInstruction(index-1) != TemplateProgram.TEXT) {
+			add(event);
+			return true;
+		}
 		String text = ExpressionUtil.substitute(event.asCharacters().getData(), event.getLocation(), context.assignments, origins, context.start.getNamespaceContext());
 		if (text!=null) add(createCharacters(text, event.getLocation()));
 		else add(event);
@@ -338,17 +374,10 @@ public class RDFaProducer extends XMLEventReaderBase {
 		return true;
 	}
 	
-	private boolean branchPoint(StartElement start) {
+	private boolean branchPoint() {
 		if (branches.contains(context.path)) return true;
 		// RDFa may not identify variable first-use as origin
-		for (Iterator<?> i = start.getAttributes(); i.hasNext();) {
-			Attribute attr = (Attribute) i.next();
-			if (RDFaVarAttributes.contains(attr.getName().getLocalPart()) 
-			&& attr.getName().getNamespaceURI().isEmpty()
-			&& attr.getValue().startsWith("?")) 
-				return true;
-		}
-		return false;
+		return program.getInstruction(context.mark) == TemplateProgram.START_BIND;
 	}
 
 	private boolean moreBindings() {
@@ -448,12 +477,16 @@ public class RDFaProducer extends XMLEventReaderBase {
 	}
 	
 	// whitespace
-	private static final Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
-	
 	boolean isWhitespace(XMLEvent event) {
 		if (event!=null && event.isCharacters()) {
 			String text = event.asCharacters().getData();
-			return WHITESPACE_PATTERN.matcher(text).matches();
+			if (text.length() == 0) return false;
+			for (int i=0, n=text.length(); i<n; i++) {
+				char chr = text.charAt(i);
+				if (chr!=' ' && chr!='\t' && chr!='\n' && chr!=0x0B && chr!='\f' && chr!='\r')
+					return false;
+			}
+			return true;
 		}
 		return false;
 	}
@@ -487,19 +520,12 @@ public class RDFaProducer extends XMLEventReaderBase {
 		}
 		// identify attributes that MAY contain RDFa variables,
 		// if they contain a bound variable, add the assignment
-		for (Iterator<?> i = start.getAttributes(); i.hasNext();) {
-			Attribute attr = (Attribute) i.next();
-			String namespace = attr.getName().getNamespaceURI();
-			String localPart = attr.getName().getLocalPart();
-			String value = attr.getValue();
-			if (RDFaVarAttributes.contains(localPart)
-			&& namespace.isEmpty() && value.startsWith("?")) {
-				String name = attr.getValue().substring(1);
-				Value v = result.getValue(name);
-				if (v!=null) {
-					context.assignments.put(name, v);
-					consumed.add(result.getBinding(name));
-				}
+		for (Attribute attr : program.getVariableAttributes(context.mark)) {
+			String name = attr.getValue().substring(1);
+			Value v = result.getValue(name);
+			if (v!=null) {
+				context.assignments.put(name, v);
+				consumed.add(result.getBinding(name));
 			}
 		}
 		return content;
@@ -696,16 +722,15 @@ public class RDFaProducer extends XMLEventReaderBase {
 	/* Add the start element, and content if the next event is not end element */
 	
 	private void addStartElement(StartElement start) throws XMLStreamException {
+		if (context.content==null && program.getInstruction(context.mark) == TemplateProgram.START) {
+			// nothing to substitute or add
+			add(start);
+			return;
+		}
 		QName name = start.getName();
 		String tag = name.getNamespaceURI()+name.getLocalPart();
 		// only add content if the body is empty or ignorable whitespace
-		boolean hasBody = false;
-		for (int i=reader.nextIndex(); !hasBody; i++) {
-			XMLEvent e = input.get(i);
-			if (e.isEndElement()) break;
-			if (e.isCharacters() && e.toString().trim().isEmpty()) continue;
-			hasBody = true;
-		}
+		boolean hasBody = input.hasBody(index-1);
 		NamespaceContext ctx = start.getNamespaceContext();
 		Iterator<?> namespaces = new NamespaceIterator(start, context.content, ctx);
 		// AttributeIterator may clear context.content on construction so do this last
@@ -718,32 +743,37 @@ public class RDFaProducer extends XMLEventReaderBase {
 			add(createCharacters(context.content.stringValue(), start.getLocation()));
 	}
 
-	public synchronized Namespace createNamespace(StartElement start, String string, String ns) {
+	public Namespace createNamespace(StartElement start, String string, String ns) {
+		XMLEventFactory eventFactory = eventFactories.get();
 		eventFactory.setLocation(start.getLocation());
 		return eventFactory.createNamespace(string, ns);
 	}
 
-	private synchronized XMLEvent createStartElement(StartElement start,
+	private XMLEvent createStartElement(StartElement start,
 			Iterator<?> attributes, Iterator<?> namespaces, NamespaceContext ctx) {
 		QName name = start.getName();
+		XMLEventFactory eventFactory = eventFactories.get();
 		eventFactory.setLocation(start.getLocation());
 		return eventFactory.createStartElement(name.getPrefix(),
 				name.getNamespaceURI(), name.getLocalPart(), attributes,
 				namespaces, ctx);
 	}
 
-	private synchronized Attribute createAttribute(StartElement start, QName name, String value) {
+	private Attribute createAttribute(StartElement start, QName name, String value) {
+		XMLEventFactory eventFactory = eventFactories.get();
 		eventFactory.setLocation(start.getLocation());
 		return eventFactory.createAttribute(name, value);
 	}
 
-	private synchronized Attribute createAttribute(StartElement start, Attribute attr, String value) {
+	private Attribute createAttribute(StartElement start, Attribute attr, String value) {
+		XMLEventFactory eventFactory = eventFactories.get();
 		eventFactory.setLocation(FallbackLocation.newInstance(attr, start));
 		return eventFactory.createAttribute(attr.getName(), value);
 	}
 
-	private synchronized XMLEvent createCharacters(String text,
+	private XMLEvent createCharacters(String text,
 			Location location) {
+		XMLEventFactory eventFactory = eventFactories.get();
 		eventFactory.setLocation(location);
 		return eventFactory.createCharacters(text);
 	}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2013 3 Round Stones Inc., Some Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.callimachusproject.engine.helpers;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Comment;
+import javax.xml.stream.events.DTD;
+import javax.xml.stream.events.EntityReference;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.ProcessingInstruction;
+import javax.xml.stream.events.StartDocument;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Classifies each event of a template once, so rendering only interprets the
+ * events that can change with the result set, and holds the serialised form
+ * of every other event so it can be written without being re-encoded.
+ */
+public final class TemplateProgram {
+	/** Written as is */
+	public static final byte EMIT = 0;
+	/** Whitespace that is only written if its element is written */
+	public static final byte WHITESPACE = 1;
+	/** Text with variable expressions */
+	public static final byte TEXT = 2;
+	/** Start element that is only copied, unless its text content is bound */
+	public static final byte START = 3;
+	/** Start element with attribute values that are substituted */
+	public static final byte START_SUBSTITUTE = 4;
+	/** Start element with RDFa variables that are bound and repeated */
+	public static final byte START_BIND = 5;
+	/** End element that may repeat its start element */
+	public static final byte END = 6;
+
+	private static final String BASE_TAG = "http://www.w3.org/1999/xhtmlbase";
+	private static final List<String> RDFA_OBJECTS = Arrays
+			.asList(RDFaProducer.RDFA_OBJECT_ATTRIBUTES);
+	private static final List<String> RDFA_VARS = Arrays
+			.asList(RDFaProducer.RDFA_VAR_ATTRIBUTES);
+	private static final Attribute[] NO_ATTRIBUTES = new Attribute[0];
+
+	private final XMLEventArray events;
+	private final byte[] ops;
+	private final Attribute[][] variables;
+	private final Map<XMLEvent, String> chunks;
+	/** if the events are a slice of the events that were compiled */
+	private final boolean slice;
+
+	public TemplateProgram(XMLEventArray events) throws XMLStreamException {
+		this.events = events;
+		this.slice = false;
+		int size = events.size();
+		ops = new byte[size];
+		variables = new Attribute[size][];
+		chunks = new IdentityHashMap<XMLEvent, String>(size);
+		for (int i = 0; i < size; i++) {
+			XMLEvent event = events.get(i);
+			ops[i] = compile(event);
+			if (ops[i] == START_BIND) {
+				variables[i] = getVariableAttributes(event.asStartElement());
+			} else {
+				variables[i] = NO_ATTRIBUTES;
+			}
+			if (ops[i] != TEXT && ops[i] != START_SUBSTITUTE
+					&& ops[i] != START_BIND) {
+				StringWriter writer = new StringWriter();
+				write(event, writer);
+				chunks.put(event, writer.toString());
+			}
+		}
+	}
+
+	/**
+	 * Shares the compiled instructions of a program with a slice of its
+	 * events.
+	 */
+	public TemplateProgram(TemplateProgram program, XMLEventArray slice) {
+		this.events = slice;
+		this.ops = program.ops;
+		this.variables = program.variables;
+		this.chunks = program.chunks;
+		this.slice = true;
+	}
+
+	public XMLEventArray getEvents() {
+		return events;
+	}
+
+	public int size() {
+		return events.size();
+	}
+
+	public byte getInstruction(int index) {
+		return ops[getSourceIndex(index)];
+	}
+
+	/**
+	 * @return the about, resource, href, src, typeof or content attributes
+	 *         with a ?variable value
+	 */
+	public Attribute[] getVariableAttributes(int index) {
+		return variables[getSourceIndex(index)];
+	}
+
+	/**
+	 * Writes the given event, using its serialised form if it is a static
+	 * event of this template.
+	 */
+	public void writeTo(XMLEvent event, Writer writer)
+			throws XMLStreamException {
+		String chunk = chunks.get(event);
+		try {
+			if (chunk == null) {
+				write(event, writer);
+			} else {
+				writer.write(chunk);
+			}
+		} catch (IOException e) {
+			throw new XMLStreamException(e);
+		}
+	}
+
+	private int getSourceIndex(int index) {
+		if (slice)
+			return events.getSourceIndex(index);
+		return index;
+	}
+
+	private byte compile(XMLEvent event) {
+		if (event.isStartElement()) {
+			StartElement start = event.asStartElement();
+			if (getVariableAttributes(start).length > 0)
+				return START_BIND;
+			QName name = start.getName();
+			String tag = name.getNamespaceURI() + name.getLocalPart();
+			for (Iterator<?> i = start.getAttributes(); i.hasNext();) {
+				if (isSubstituted(tag, (Attribute) i.next()))
+					return START_SUBSTITUTE;
+			}
+			return START;
+		} else if (event.isEndElement()) {
+			return END;
+		} else if (event.isCharacters()) {
+			String text = event.asCharacters().getData();
+			if (isWhitespace(text))
+				return WHITESPACE;
+			if (text.indexOf('{') >= 0)
+				return TEXT;
+		}
+		return EMIT;
+	}
+
+	private Attribute[] getVariableAttributes(StartElement start) {
+		List<Attribute> list = null;
+		for (Iterator<?> i = start.getAttributes(); i.hasNext();) {
+			Attribute attr = (Attribute) i.next();
+			if (RDFA_VARS.contains(attr.getName().getLocalPart())
+					&& attr.getName().getNamespaceURI().isEmpty()
+					&& attr.getValue().startsWith("?")) {
+				if (list == null) {
+					list = new ArrayList<Attribute>();
+				}
+				list.add(attr);
+			}
+		}
+		if (list == null)
+			return NO_ATTRIBUTES;
+		return list.toArray(new Attribute[list.size()]);
+	}
+
+	/**
+	 * Mirrors {@link RDFaProducer#substitute}: attributes that name a variable
+	 * or contain an expression, and the empty content attribute.
+	 */
+	private boolean isSubstituted(String tag, Attribute attr) {
+		String namespace = attr.getName().getNamespaceURI();
+		String localPart = attr.getName().getLocalPart();
+		String value = attr.getValue();
+		if ((namespace.isEmpty() && RDFA_OBJECTS.contains(localPart))
+				|| tag.equals(BASE_TAG)) {
+			return value.startsWith("?") || namespace.isEmpty()
+					&& localPart.equals("content") && value.isEmpty();
+		}
+		return value.indexOf('{') >= 0;
+	}
+
+	private boolean isWhitespace(String text) {
+		if (text.length() == 0)
+			return false;
+		for (int i = 0, n = text.length(); i < n; i++) {
+			char chr = text.charAt(i);
+			if (chr != ' ' && chr != '\t' && chr != '\n' && chr != 0x0B
+					&& chr != '\f' && chr != '\r')
+				return false;
+		}
+		return true;
+	}
+
+	private void write(XMLEvent event, Writer writer) throws XMLStreamException {
+		try {
+			switch (event.getEventType()) {
+			case XMLEvent.START_ELEMENT:
+				StartElement start = event.asStartElement();
+				writer.write('<');
+				writer.write(qname(start.getName()));
+				for (Iterator<?> i = start.getNamespaces(); i.hasNext();) {
+					Namespace ns = (Namespace) i.next();
+					writer.write(" xmlns");
+					if (!ns.isDefaultNamespaceDeclaration()) {
+						writer.write(':');
+						writer.write(ns.getPrefix());
+					}
+					writer.write("=\"");
+					escape(ns.getNamespaceURI(), true, writer);
+					writer.write('"');
+				}
+				for (Iterator<?> i = start.getAttributes(); i.hasNext();) {
+					Attribute attr = (Attribute) i.next();
+					writer.write(' ');
+					writer.write(qname(attr.getName()));
+					writer.write("=\"");
+					escape(attr.getValue(), true, writer);
+					writer.write('"');
+				}
+				writer.write('>');
+				break;
+			case XMLEvent.END_ELEMENT:
+				writer.write("</");
+				writer.write(qname(event.asEndElement().getName()));
+				writer.write('>');
+				break;
+			case XMLEvent.CHARACTERS:
+			case XMLEvent.CDATA:
+			case XMLEvent.SPACE:
+				escape(event.asCharacters().getData(), false, writer);
+				break;
+			case XMLEvent.COMMENT:
+				writer.write("<!--");
+				writer.write(((Comment) event).getText());
+				writer.write("-->");
+				break;
+			case XMLEvent.PROCESSING_INSTRUCTION:
+				ProcessingInstruction pi = (ProcessingInstruction) event;
+				writer.write("<?");
+				writer.write(pi.getTarget());
+				if (pi.getData() != null && pi.getData().length() > 0) {
+					writer.write(' ');
+					writer.write(pi.getData());
+				}
+				writer.write("?>");
+				break;
+			case XMLEvent.START_DOCUMENT:
+				StartDocument doc = (StartDocument) event;
+				writer.write("<?xml version=\"");
+				writer.write(doc.getVersion() == null ? "1.0" : doc.getVersion());
+				writer.write('"');
+				if (doc.standaloneSet()) {
+					writer.write(doc.isStandalone() ? " standalone=\"yes\""
+							: " standalone=\"no\"");
+				}
+				writer.write("?>");
+				break;
+			case XMLEvent.DTD:
+				writer.write(((DTD) event).getDocumentTypeDeclaration());
+				break;
+			case XMLEvent.ENTITY_REFERENCE:
+				writer.write('&');
+				writer.write(((EntityReference) event).getName());
+				writer.write(';');
+				break;
+			default:
+				// end document
+				break;
+			}
+		} catch (IOException e) {
+			throw new XMLStreamException(e);
+		}
+	}
+
+	private String qname(QName name) {
+		String prefix = name.getPrefix();
+		if (prefix == null || prefix.length() == 0)
+			return name.getLocalPart();
+		return prefix + ":" + name.getLocalPart();
+	}
+
+	private void escape(String text, boolean attribute, Writer writer)
+			throws IOException {
+		int start = 0;
+		for (int i = 0, n = text.length(); i < n; i++) {
+			String entity;
+			switch (text.charAt(i)) {
+			case '&':
+				entity = "&amp;";
+				break;
+			case '<':
+				entity = "&lt;";
+				break;
+			case '>':
+				entity = "&gt;";
+				break;
+			case '"':
+				entity = attribute ? "&quot;" : null;
+				break;
+			case '\t':
+				entity = attribute ? "&#9;" : null;
+				break;
+			case '\n':
+				entity = attribute ? "&#10;" : null;
+				break;
+			case '\r':
+				entity = "&#13;";
+				break;
+			default:
+				entity = null;
+			}
+			if (entity != null) {
+				writer.write(text, start, i - start);
+				writer.write(entity);
+				start = i + 1;
+			}
+		}
+		writer.write(text, start, text.length() - start);
+	}
+
+}
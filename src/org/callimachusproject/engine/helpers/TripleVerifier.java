@@ -19,10 +19,13 @@
  */
 package org.callimachusproject.engine.helpers;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -60,6 +63,91 @@ public final class TripleVerifier implements Cloneable {
 	private static final String NOT_IN_EDIT_TEMPLATE = "http://callimachusproject.org/callimachus-for-web-developers#Edit_template";
 	private static final String LDP = "http://www.w3.org/ns/ldp#";
 	private static final String LDP_CONTAINS = LDP + "contains";
+
+	/** A template triple pattern and the order it was accepted in */
+	private static final class IndexedPattern {
+		final int ordinal;
+		final TriplePattern pattern;
+
+		IndexedPattern(int ordinal, TriplePattern pattern) {
+			this.ordinal = ordinal;
+			this.pattern = pattern;
+		}
+	}
+
+	/**
+	 * Template triple patterns indexed by their predicate, so each triple is
+	 * only compared with the patterns that could match it.
+	 */
+	private static final class PatternIndex {
+		private final Set<TriplePattern> patterns = new LinkedHashSet<TriplePattern>();
+		private final Map<String, List<IndexedPattern>> byPredicate = new HashMap<String, List<IndexedPattern>>();
+		private final List<IndexedPattern> anyPredicate = new ArrayList<IndexedPattern>();
+
+		public void add(TriplePattern tp) {
+			if (!patterns.add(tp))
+				return;
+			IndexedPattern indexed = new IndexedPattern(patterns.size(), tp);
+			if (tp.getProperty().isIRI()) {
+				String pred = tp.getProperty().stringValue();
+				List<IndexedPattern> list = byPredicate.get(pred);
+				if (list == null) {
+					byPredicate.put(pred, list = new ArrayList<IndexedPattern>());
+				}
+				list.add(indexed);
+			} else {
+				anyPredicate.add(indexed);
+			}
+		}
+
+		/**
+		 * @return the first accepted pattern that matches or null
+		 */
+		public TriplePattern findMatch(Term sterm, URI pred, Term oterm) {
+			IndexedPattern found = findMatch(byPredicate.get(pred.stringValue()), sterm, oterm, null);
+			found = findMatch(anyPredicate, sterm, oterm, found);
+			return found == null ? null : found.pattern;
+		}
+
+		public Set<TriplePattern> findAlternatives(Term sterm, URI pred, Term oterm) {
+			Set<TriplePattern> alt1 = new LinkedHashSet<TriplePattern>();
+			Set<TriplePattern> alt2 = new LinkedHashSet<TriplePattern>();
+			List<IndexedPattern> list = byPredicate.get(pred.stringValue());
+			if (list != null) {
+				for (IndexedPattern indexed : list) {
+					TriplePattern tp = indexed.pattern;
+					alt1.add(tp);
+					if (tp.getSubject().equals(sterm)
+							|| tp.getObject().equals(oterm)) {
+						alt2.add(tp);
+					}
+				}
+			}
+			return alt2.isEmpty() ? alt1 : alt2;
+		}
+
+		private IndexedPattern findMatch(List<IndexedPattern> list, Term sterm,
+				Term oterm, IndexedPattern before) {
+			if (list == null)
+				return before;
+			for (IndexedPattern indexed : list) {
+				if (before != null && indexed.ordinal > before.ordinal)
+					return before;
+				TriplePattern tp = indexed.pattern;
+				if (tp.getSubject().isIRI()) {
+					if (!tp.getSubject().equals(sterm))
+						continue;
+				}
+				if (tp.getObject().isIRI() || tp.getObject().isLiteral()) {
+					if (!tp.getObject().equals(oterm))
+						continue;
+				}
+				return indexed;
+			}
+			return before;
+		}
+	}
+
 	private final AbsoluteTermFactory tf = AbsoluteTermFactory.newInstance();
 	private final Set<URI> subjects;
 	private final Set<URI> partners;
@@ -69,7 +157,7 @@ public final class TripleVerifier implements Cloneable {
 	private final Map<Resource, Set<URI>> types;
 	private final Set<URI> ldpURIs;
 	private boolean empty = true;
-	private Set<TriplePattern> patterns;
+	private PatternIndex patterns;
 
 	public TripleVerifier() {
 		subjects = new HashSet<URI>();
@@ -105,7 +193,7 @@ public final class TripleVerifier implements Cloneable {
 
 	public void accept(RDFEventReader reader) throws RDFParseException {
 		if (patterns == null) {
-			patterns = new LinkedHashSet<TriplePattern>();
+			patterns = new PatternIndex();
 		}
 		try {
 			while (reader.hasNext()) {
@@ -128,7 +216,7 @@ public final class TripleVerifier implements Cloneable {
 	public void accept(GraphQueryResult reader) throws RDFParseException,
 			QueryEvaluationException {
 		if (patterns == null) {
-			patterns = new LinkedHashSet<TriplePattern>();
+			patterns = new PatternIndex();
 		}
 		try {
 			while (reader.hasNext()) {
@@ -146,7 +234,7 @@ public final class TripleVerifier implements Cloneable {
 
 	public void accept(TriplePattern pattern) {
 		if (patterns == null) {
-			patterns = new LinkedHashSet<TriplePattern>();
+			patterns = new PatternIndex();
 		}
 		patterns.add(pattern);
 	}
@@ -267,37 +355,13 @@ public final class TripleVerifier implements Cloneable {
 		if (patterns == null)
 			return null;
 		Term sterm = asTerm(subj);
-		Term pterm = asTerm(pred);
 		Term oterm = asTerm(obj);
-		for (TriplePattern tp : patterns) {
-			if (tp.getSubject().isIRI()) {
-				if (!tp.getSubject().equals(sterm))
-					continue;
-			}
-			if (tp.getProperty().isIRI()) {
-				if (!tp.getProperty().equals(pterm))
-					continue;
-			}
-			if (tp.getObject().isIRI() || tp.getObject().isLiteral()) {
-				if (!tp.getObject().equals(oterm))
-					continue;
-			}
-			if (tp.isInverse())
-				throw new RDFHandlerException("Inverse relationships cannot be used here");
-			return null;
-		}
-		Set<TriplePattern> alt1 = new LinkedHashSet<TriplePattern>();
-		Set<TriplePattern> alt2 = new LinkedHashSet<TriplePattern>();
-		for (TriplePattern tp : patterns) {
-			if (tp.getProperty().equals(pterm)) {
-				alt1.add(tp);
-				if (tp.getSubject().equals(sterm)
-						|| tp.getObject().equals(oterm)) {
-					alt2.add(tp);
-				}
-			}
-		}
-		return alt2.isEmpty() ? alt1 : alt2;
+		TriplePattern tp = patterns.findMatch(sterm, pred, oterm);
+		if (tp == null)
+			return patterns.findAlternatives(sterm, pred, oterm);
+		if (tp.isInverse())
+			throw new RDFHandlerException("Inverse relationships cannot be used here");
+		return null;
 	}
 
 	private Term asTerm(Value obj) {
@@ -341,15 +405,19 @@ public final class TripleVerifier implements Cloneable {
 	}
 
 	private void connect(Statement st) {
-		Set<Statement> set = connected.get(st.getObject());
-		if (set == null) {
-			connected.put((Resource) st.getObject(), set = new HashSet<Statement>());
-		}
-		set.add(st);
-		Set<Statement> removed = disconnected.remove(st.getObject());
-		if (removed != null) {
-			for (Statement connecting : removed) {
-				connect(connecting);
+		LinkedList<Statement> queue = new LinkedList<Statement>();
+		queue.add(st);
+		while (!queue.isEmpty()) {
+			Statement next = queue.removeFirst();
+			Resource obj = (Resource) next.getObject();
+			Set<Statement> set = connected.get(obj);
+			if (set == null) {
+				connected.put(obj, set = new HashSet<Statement>());
+			}
+			set.add(next);
+			Set<Statement> removed = disconnected.remove(obj);
+			if (removed != null) {
+				queue.addAll(removed);
 			}
 		}
 	}
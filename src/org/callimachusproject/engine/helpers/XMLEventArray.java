@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2013 3 Round Stones Inc., Some Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.callimachusproject.engine.helpers;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * An immutable, indexed list of XML events that can be safely replayed by
+ * many readers at once. The elements are indexed by their position and id
+ * attribute, so an element can be extracted as a slice of the same events.
+ */
+public final class XMLEventArray extends AbstractList<XMLEvent> implements
+		RandomAccess {
+	private static final QName ID = new QName("id");
+	private final XMLEvent[] events;
+	private final BitSet body;
+	/** index of the matching end element of each start element */
+	private final int[] ends;
+	/** index of the enclosing start element of each event or -1 */
+	private final int[] parents;
+	/** index of the element with each id or -1 if the id is repeated */
+	private final Map<String, Integer> ids;
+	/** range of an element slice, or the whole array */
+	private final int from;
+	private final int to;
+	/** start element of a slice with its in-scope namespaces or null */
+	private final StartElement root;
+	private final XMLEvent startDocument;
+	private final XMLEvent endDocument;
+	private final int size;
+
+	/**
+	 *
+	 * @param reader is closed
+	 * @throws XMLStreamException
+	 */
+	public XMLEventArray(XMLEventReader reader) throws XMLStreamException {
+		this(new XMLEventList(reader));
+	}
+
+	public XMLEventArray(Collection<XMLEvent> list) {
+		events = list.toArray(new XMLEvent[list.size()]);
+		body = new BitSet(events.length);
+		ends = new int[events.length];
+		parents = new int[events.length];
+		ids = new HashMap<String, Integer>();
+		int[] stack = new int[16];
+		int depth = 0;
+		for (int i = 0; i < events.length; i++) {
+			ends[i] = -1;
+			parents[i] = depth == 0 ? -1 : stack[depth - 1];
+			if (events[i].isStartElement()) {
+				if (depth == stack.length) {
+					stack = Arrays.copyOf(stack, depth * 2);
+				}
+				stack[depth++] = i;
+				Attribute id = events[i].asStartElement().getAttributeByName(ID);
+				if (id != null && ids.containsKey(id.getValue())) {
+					ids.put(id.getValue(), -1);
+				} else if (id != null) {
+					ids.put(id.getValue(), i);
+				}
+				for (int j = i + 1; j < events.length; j++) {
+					if (events[j].isEndElement())
+						break;
+					if (events[j].isCharacters()
+							&& events[j].toString().trim().isEmpty())
+						continue;
+					body.set(i);
+					break;
+				}
+			} else if (events[i].isEndElement() && depth > 0) {
+				ends[stack[--depth]] = i;
+			}
+		}
+		while (depth > 0) {
+			ends[stack[--depth]] = events.length - 1;
+		}
+		from = 0;
+		to = events.length - 1;
+		root = null;
+		startDocument = null;
+		endDocument = null;
+		size = events.length;
+	}
+
+	private XMLEventArray(XMLEventArray parent, int start) {
+		events = parent.events;
+		body = parent.body;
+		ends = parent.ends;
+		parents = parent.parents;
+		ids = parent.ids;
+		from = start;
+		to = ends[start];
+		root = new NamespaceStartElement(events[start].asStartElement(),
+				parent.getNamespacesInScope(start));
+		XMLEvent first = events.length > 0 ? events[0] : null;
+		XMLEvent last = events.length > 0 ? events[events.length - 1] : null;
+		startDocument = first != null && first.isStartDocument() ? first : null;
+		endDocument = last != null && last.isEndDocument() ? last : null;
+		int lead = startDocument == null ? 0 : 1;
+		int trail = endDocument == null ? 0 : 1;
+		size = lead + to - from + 1 + trail;
+	}
+
+	@Override
+	public XMLEvent get(int index) {
+		if (root != null && index == getLead())
+			return root;
+		return events[getSourceIndex(index)];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return if the start element at index has content other than
+	 *         whitespace
+	 */
+	public boolean hasBody(int index) {
+		return body.get(getSourceIndex(index));
+	}
+
+	/**
+	 * The index of the event at the given index in the array this was sliced
+	 * from, so slices can share what was derived from the whole array.
+	 */
+	public int getSourceIndex(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException(String.valueOf(index));
+		if (root == null)
+			return index;
+		int i = index - getLead();
+		if (i < 0)
+			return 0;
+		if (from + i > to)
+			return events.length - 1;
+		return from + i;
+	}
+
+	/**
+	 * The element identified by the xptr (an optional id followed by the
+	 * one-based child positions, such as /1/2/4 or id/2), as a document of
+	 * its own that shares these events.
+	 *
+	 * @return null if the element is not in this list or its id is not
+	 *         unique
+	 * @throws NumberFormatException
+	 *             if a child position is not a number
+	 */
+	public XMLEventArray getElement(String xptr) throws NumberFormatException {
+		String[] ar = xptr.split("/");
+		int element = -1;
+		if (ar[0].length() > 0) {
+			Integer id = ids.get(ar[0]);
+			if (id == null || id < from || id > to)
+				return null;
+			element = id;
+		}
+		for (int i = 1; i < ar.length; i++) {
+			element = getChild(element, Integer.parseInt(ar[i]));
+			if (element < 0)
+				return null;
+		}
+		if (element < 0)
+			return null;
+		return new XMLEventArray(this, element);
+	}
+
+	public XMLEventIterator iterator() {
+		return new XMLEventIterator(super.listIterator());
+	}
+
+	public XMLEventIterator listIterator(int index) {
+		return new XMLEventIterator(super.listIterator(index));
+	}
+
+	private int getLead() {
+		return startDocument == null ? 0 : 1;
+	}
+
+	/**
+	 * @param parent
+	 *            index of the start element or -1 for the document
+	 * @return the index of the start element or -1
+	 */
+	private int getChild(int parent, int position) {
+		int start = parent < 0 ? from : parent + 1;
+		int end = parent < 0 ? to : ends[parent] - 1;
+		int count = 0;
+		for (int i = start; i <= end; i++) {
+			if (events[i].isStartElement()) {
+				if (++count == position)
+					return i;
+				i = ends[i];
+			}
+		}
+		return -1;
+	}
+
+	private Map<String, Namespace> getNamespacesInScope(int element) {
+		LinkedList<StartElement> ancestors = new LinkedList<StartElement>();
+		for (int i = element; i >= 0; i = parents[i]) {
+			if (root != null && i == from) {
+				ancestors.addFirst(root);
+				break;
+			}
+			ancestors.addFirst(events[i].asStartElement());
+		}
+		Map<String, Namespace> namespaces = new HashMap<String, Namespace>();
+		for (StartElement start : ancestors) {
+			Iterator<?> iter = start.getNamespaces();
+			while (iter.hasNext()) {
+				Namespace ns = (Namespace) iter.next();
+				namespaces.put(ns.getPrefix(), ns);
+			}
+		}
+		return namespaces;
+	}
+
+}
@@ -20,9 +20,13 @@ package org.callimachusproject.engine.impl;
 import info.aduna.net.ParsedURI;
 
 import java.net.URISyntaxException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.callimachusproject.engine.model.CURIE;
 import org.callimachusproject.engine.model.IRI;
@@ -49,16 +53,47 @@ public class TermFactoryImpl extends TermFactory {
 			"XMLLiteral", "rdf");
 	private static final CURIE STRING = new CURIEImpl(XMLSchema.NAMESPACE, "string", "xsd");
 	private static final CURIE LANGSTRING = new CURIEImpl(RDF.NAMESPACE, "langString", "rdf");
-	private final Map<String, String> namespaces = new HashMap<String, String>();
+	private static final int MAX_MEMO = 1024;
+	/** canonical form of absolute IRIs */
+	private static final ConcurrentMap<String, String> canonical = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * The base and namespaces in effect, which are replaced rather than
+	 * modified, and the IRIs resolved against this base.
+	 */
+	private static final class Scope {
+		final ParsedURI base;
+		final Map<String, String> namespaces;
+		final ConcurrentMap<String, String> resolved;
+
+		Scope(ParsedURI base, Map<String, String> namespaces,
+				ConcurrentMap<String, String> resolved) {
+			this.base = base;
+			this.namespaces = namespaces;
+			this.resolved = resolved;
+		}
+	}
+
+	private static void memo(ConcurrentMap<String, String> map, String key,
+			String value) {
+		if (map.size() >= MAX_MEMO) {
+			map.clear();
+		}
+		map.put(key, value);
+	}
+
 	private final String systemId;
-	private ParsedURI base;
+	private final AtomicReference<Scope> scope;
 
 	public TermFactoryImpl(String systemId) {
 		assert systemId != null;
 		this.systemId = canonicalize(systemId);
-		base = new ParsedURI(this.systemId);
+		ParsedURI base = new ParsedURI(this.systemId);
 		if (!base.isAbsolute())
 			throw new IllegalArgumentException("Not an absolute URI: " + base);
+		Map<String, String> namespaces = Collections.emptyMap();
+		scope = new AtomicReference<Scope>(new Scope(base, namespaces,
+				new ConcurrentHashMap<String, String>()));
 	}
 
 	@Override
@@ -72,11 +107,17 @@ public class TermFactoryImpl extends TermFactory {
 	}
 
 	@Override
-	public synchronized Reference base(String reference) {
-		String resolved = resolve(reference);
-		base = new ParsedURI(resolved);
-		assert base.isAbsolute() : base;
-		return reference(resolved, reference);
+	public Reference base(String reference) {
+		while (true) {
+			Scope current = scope.get();
+			String resolved = resolve(current, reference);
+			ParsedURI base = new ParsedURI(resolved);
+			assert base.isAbsolute() : base;
+			Scope next = new Scope(base, current.namespaces,
+					new ConcurrentHashMap<String, String>());
+			if (scope.compareAndSet(current, next))
+				return reference(resolved, reference);
+		}
 	}
 
 	@Override
@@ -85,15 +126,23 @@ public class TermFactoryImpl extends TermFactory {
 	}
 
 	@Override
-	public synchronized Reference prefix(String prefix, String reference) {
-		String resolved = resolve(reference);
-		namespaces.put(prefix, resolved);
-		return reference(resolved, reference);
+	public Reference prefix(String prefix, String reference) {
+		while (true) {
+			Scope current = scope.get();
+			String resolved = resolve(current, reference);
+			Map<String, String> namespaces = new HashMap<String, String>(
+					current.namespaces);
+			namespaces.put(prefix, resolved);
+			Scope next = new Scope(current.base,
+					Collections.unmodifiableMap(namespaces), current.resolved);
+			if (scope.compareAndSet(current, next))
+				return reference(resolved, reference);
+		}
 	}
 
 	@Override
-	public synchronized CURIE curie(String prefix, String reference) {
-		String ns = namespaces.get(prefix);
+	public CURIE curie(String prefix, String reference) {
+		String ns = scope.get().namespaces.get(prefix);
 		return curie(ns, reference, prefix);
 	}
 
@@ -167,11 +216,30 @@ public class TermFactoryImpl extends TermFactory {
 		return new ReferenceImpl(absolute, relative);
 	}
 
-	public synchronized String resolve(String relative) {
-		return canonicalize(resolve(base, new ParsedURI(relative)).toString());
+	public String resolve(String relative) {
+		return resolve(scope.get(), relative);
+	}
+
+	private String resolve(Scope scope, String relative) {
+		String resolved = scope.resolved.get(relative);
+		if (resolved == null) {
+			ParsedURI uri = resolve(scope.base, new ParsedURI(relative));
+			resolved = canonicalize(uri.toString());
+			memo(scope.resolved, relative, resolved);
+		}
+		return resolved;
+	}
+
+	private static String canonicalize(String iri) {
+		String cached = canonical.get(iri);
+		if (cached != null)
+			return cached;
+		String result = canonicalizeURI(iri);
+		memo(canonical, iri, result);
+		return result;
 	}
 
-	private String canonicalize(String iri) {
+	private static String canonicalizeURI(String iri) {
 		try {
 			java.net.URI net = new java.net.URI(iri);
 			net = net.normalize();
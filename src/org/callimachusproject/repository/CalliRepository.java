@@ -38,6 +38,7 @@ import org.callimachusproject.auth.AuthorizationManager;
 import org.callimachusproject.auth.DetachedRealm;
 import org.callimachusproject.auth.RealmManager;
 import org.callimachusproject.behaviours.CalliObjectSupport;
+import org.callimachusproject.engine.QueryResultCache;
 import org.callimachusproject.engine.model.TermFactory;
 import org.callimachusproject.repository.auditing.ActivityFactory;
 import org.callimachusproject.repository.auditing.AuditingRepository;
@@ -56,6 +57,7 @@ import org.openrdf.repository.RepositoryException;
 import org.openrdf.repository.RepositoryResult;
 import org.openrdf.repository.base.RepositoryWrapper;
 import org.openrdf.repository.config.RepositoryConfigException;
+import org.openrdf.repository.event.base.NotifyingRepositoryWrapper;
 import org.openrdf.repository.manager.RepositoryManager;
 import org.openrdf.repository.manager.RepositoryProvider;
 import org.openrdf.repository.object.ObjectConnection;
@@ -139,10 +141,15 @@ public class CalliRepository extends RepositoryWrapper {
 		object = repository;
 		auditing = findAuditingRepository(repository, object);
 		RepositoryWrapper wrapper = object;
+		boolean notifying = false;
 		while (wrapper.getDelegate() instanceof RepositoryWrapper) {
 			wrapper = (RepositoryWrapper) wrapper.getDelegate();
+			notifying |= wrapper instanceof NotifyingRepositoryWrapper;
 		}
 		trace(wrapper);
+		if (!notifying) {
+			notifyCommits(wrapper, object);
+		}
 		setDelegate(object);
 		CalliObjectSupport.associate(this, object);
 		realms = new RealmManager(this);
@@ -401,6 +408,14 @@ public class CalliRepository extends RepositoryWrapper {
 		repository.setDelegate(traced);
 	}
 
+	private void notifyCommits(RepositoryWrapper repository, ObjectRepository object) {
+		NotifyingRepositoryWrapper notifying = new NotifyingRepositoryWrapper(
+				repository.getDelegate());
+		notifying.addRepositoryConnectionListener(new ResultCacheInvalidator(
+				object, QueryResultCache.getInstance()));
+		repository.setDelegate(notifying);
+	}
+
 	private void setLoggerLevel(String fragment, Level level) {
 		Enumeration<String> names = LogManager.getLogManager().getLoggerNames();
 		while (names.hasMoreElements()) {
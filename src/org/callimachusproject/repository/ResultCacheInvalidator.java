@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2013 3 Round Stones Inc., Some Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.callimachusproject.repository;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.callimachusproject.engine.QueryResultCache;
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.Update;
+import org.openrdf.repository.Repository;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.repository.event.base.RepositoryConnectionListenerAdapter;
+
+/**
+ * Marks the cached query results of a repository as stale when a connection
+ * commits a change to it.
+ */
+class ResultCacheInvalidator extends RepositoryConnectionListenerAdapter {
+	private final Repository repository;
+	private final QueryResultCache cache;
+	private final Set<RepositoryConnection> modified = Collections
+			.synchronizedSet(Collections
+					.newSetFromMap(new WeakHashMap<RepositoryConnection, Boolean>()));
+
+	public ResultCacheInvalidator(Repository repository, QueryResultCache cache) {
+		this.repository = repository;
+		this.cache = cache;
+		cache.watch(repository);
+	}
+
+	@Override
+	public void commit(RepositoryConnection conn) {
+		if (modified.remove(conn)) {
+			cache.invalidate(repository);
+		}
+	}
+
+	@Override
+	public void rollback(RepositoryConnection conn) {
+		modified.remove(conn);
+	}
+
+	@Override
+	public void close(RepositoryConnection conn) {
+		modified.remove(conn);
+	}
+
+	@Override
+	public void add(RepositoryConnection conn, Resource subject, URI predicate,
+			Value object, Resource... contexts) {
+		modified(conn);
+	}
+
+	@Override
+	public void remove(RepositoryConnection conn, Resource subject,
+			URI predicate, Value object, Resource... contexts) {
+		modified(conn);
+	}
+
+	@Override
+	public void clear(RepositoryConnection conn, Resource... contexts) {
+		modified(conn);
+	}
+
+	@Override
+	public void execute(RepositoryConnection conn, QueryLanguage ql,
+			String update, String baseURI, Update operation) {
+		modified(conn);
+	}
+
+	private void modified(RepositoryConnection conn) {
+		try {
+			if (conn.isActive()) {
+				modified.add(conn);
+				return;
+			}
+		} catch (RepositoryException e) {
+			// assume auto-commit
+		}
+		cache.invalidate(repository);
+	}
+}
@@ -28,11 +28,30 @@
  */
 package org.callimachusproject.sail.keyword;
 
+import info.aduna.iteration.CloseableIteration;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
 import org.openrdf.model.Literal;
 import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
 import org.openrdf.model.URI;
 import org.openrdf.model.Value;
 import org.openrdf.model.ValueFactory;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.TupleExpr;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 import org.openrdf.sail.UpdateContext;
@@ -41,18 +60,40 @@ import org.openrdf.sail.inferencer.InferencerConnection;
 
 /**
  * Inferres keyword:phone property from properties in
- * META-INF/org.callimachusproject.sail.keyword.property.
+ * META-INF/org.callimachusproject.sail.keyword.property. When such a property
+ * is removed, its phones are removed too, unless another remaining label of
+ * the same resource has the same phone. The phones and the normalised labels
+ * are also recorded in the sail's {@link KeywordIndex}es when the transaction
+ * commits, and the keyword:match, keyword:rank and keyword:prefix patterns are
+ * answered from them.
  * 
  * @author James Leigh
  * 
  */
 public class KeywordConnection extends SailConnectionWrapper {
+
+	/** Checks a candidate before it takes one of the limited results */
+	interface SubjectFilter {
+		boolean accept(Resource subj) throws SailException;
+	}
+
 	private final PhoneHelper helper;
 	private final KeywordSail sail;
 	private final ValueFactory vf;
 	private final Resource graph;
 	private final URI property;
 	private final InferencerConnection infer;
+	private final KeywordMatchOptimizer optimizer;
+	/** phones of removed labels, by subject, waiting for the update to end */
+	private final Map<Resource, Set<String>> removed = new HashMap<Resource, Set<String>>();
+	/** prefix keys of removed labels, by subject, waiting for the update to end */
+	private final Map<Resource, Set<String>> removedLabels = new HashMap<Resource, Set<String>>();
+	/** phones added (true) or removed (false), by subject, until commit */
+	private final Map<Resource, Map<String, Boolean>> pending = new LinkedHashMap<Resource, Map<String, Boolean>>();
+	/** prefix keys added (true) or removed (false), by subject, until commit */
+	private final Map<Resource, Map<String, Boolean>> pendingLabels = new LinkedHashMap<Resource, Map<String, Boolean>>();
+	/** if every context was cleared, so the indexes are replaced on commit */
+	private boolean cleared;
 
 	protected KeywordConnection(KeywordSail sail,
 			SailConnection delegate, PhoneHelper keyword)
@@ -68,6 +109,7 @@ public class KeywordConnection extends SailConnectionWrapper {
 		} else {
 			infer = null;
 		}
+		this.optimizer = new KeywordMatchOptimizer(sail, keyword, this);
 	}
 
 	@Override
@@ -75,6 +117,17 @@ public class KeywordConnection extends SailConnectionWrapper {
 		return getWrappedConnection().toString();
 	}
 
+	@Override
+	public CloseableIteration<? extends BindingSet, QueryEvaluationException> evaluate(
+			TupleExpr tupleExpr, Dataset dataset, BindingSet bindings,
+			boolean includeInferred) throws SailException {
+		if (optimizer.isApplicable(tupleExpr)) {
+			tupleExpr = tupleExpr.clone();
+			optimizer.optimize(tupleExpr, dataset, bindings, includeInferred);
+		}
+		return super.evaluate(tupleExpr, dataset, bindings, includeInferred);
+	}
+
 	@Override
 	public void addStatement(Resource subj, URI pred, Value obj,
 			Resource... contexts) throws SailException {
@@ -93,9 +146,215 @@ public class KeywordConnection extends SailConnectionWrapper {
 		}
 	}
 
+	@Override
+	public void removeStatements(Resource subj, URI pred, Value obj,
+			Resource... contexts) throws SailException {
+		if (pred == null || sail.isIndexedProperty(pred)) {
+			Map<Resource, Set<String>> phones = new HashMap<Resource, Set<String>>();
+			Map<Resource, Set<String>> keys = new HashMap<Resource, Set<String>>();
+			collectPhones(subj, pred, obj, contexts, phones, keys);
+			super.removeStatements(subj, pred, obj, contexts);
+			unindex(phones, keys);
+		} else {
+			super.removeStatements(subj, pred, obj, contexts);
+		}
+	}
+
+	@Override
+	public void removeStatement(UpdateContext modify, Resource subj, URI pred,
+			Value obj, Resource... contexts) throws SailException {
+		if (pred == null || sail.isIndexedProperty(pred)) {
+			collectPhones(subj, pred, obj, contexts, removed, removedLabels);
+		}
+		super.removeStatement(modify, subj, pred, obj, contexts);
+	}
+
+	@Override
+	public void endUpdate(UpdateContext modify) throws SailException {
+		super.endUpdate(modify);
+		if (!removed.isEmpty() || !removedLabels.isEmpty()) {
+			Map<Resource, Set<String>> phones = new HashMap<Resource, Set<String>>(removed);
+			Map<Resource, Set<String>> keys = new HashMap<Resource, Set<String>>(removedLabels);
+			removed.clear();
+			removedLabels.clear();
+			unindex(phones, keys);
+		}
+	}
+
+	@Override
+	public void clear(Resource... contexts) throws SailException {
+		if (contexts == null || contexts.length == 0) {
+			super.clear();
+			if (infer != null) {
+				infer.removeInferredStatement(null, property, null, graph);
+			}
+			removed.clear();
+			removedLabels.clear();
+			pending.clear();
+			pendingLabels.clear();
+			cleared = true;
+			return;
+		}
+		Map<Resource, Set<String>> phones = new HashMap<Resource, Set<String>>();
+		Map<Resource, Set<String>> keys = new HashMap<Resource, Set<String>>();
+		collectPhones(null, null, null, contexts, phones, keys);
+		// the memory store still reads the labels it cleared in this
+		// transaction, so remove them to find the labels that remain
+		super.removeStatements(null, null, null, contexts);
+		unindex(phones, keys);
+	}
+
+	@Override
+	public void commit() throws SailException {
+		KeywordIndex index = sail.getKeywordIndex();
+		KeywordIndex labelIndex = sail.getLabelIndex();
+		Map<Resource, Map<String, Boolean>> none = Collections.emptyMap();
+		boolean committed = false;
+		try {
+			// mark the indexes first, so a crash before their update is seen
+			long txn = pending.isEmpty() && !cleared ? 0 : index.begin();
+			long labelTxn = pendingLabels.isEmpty() && !cleared ? 0
+					: labelIndex.begin();
+			try {
+				super.commit();
+				committed = true;
+			} finally {
+				if (txn != 0) {
+					index.update(committed ? pending : none,
+							committed && cleared, txn);
+				}
+				if (labelTxn != 0) {
+					labelIndex.update(committed ? pendingLabels : none,
+							committed && cleared, labelTxn);
+				}
+			}
+		} catch (IOException e) {
+			throw new SailException(e);
+		} finally {
+			if (committed) {
+				pending.clear();
+				pendingLabels.clear();
+				cleared = false;
+			}
+		}
+	}
+
+	@Override
+	public void rollback() throws SailException {
+		removed.clear();
+		removedLabels.clear();
+		pending.clear();
+		pendingLabels.clear();
+		cleared = false;
+		super.rollback();
+	}
+
+	/**
+	 * The subjects with the given phone, including the changes of this
+	 * connection that are not yet committed.
+	 */
+	Set<Resource> getKeywordSubjects(String phone) throws SailException {
+		Set<Resource> subjects;
+		try {
+			subjects = cleared ? new HashSet<Resource>() : sail
+					.getKeywordIndex().getSubjects(phone);
+		} catch (IOException e) {
+			throw new SailException(e);
+		}
+		for (Map.Entry<Resource, Map<String, Boolean>> e : pending.entrySet()) {
+			Boolean added = e.getValue().get(phone);
+			if (Boolean.TRUE.equals(added)) {
+				subjects.add(e.getKey());
+			} else if (Boolean.FALSE.equals(added)) {
+				subjects.remove(e.getKey());
+			}
+		}
+		return subjects;
+	}
+
+	/**
+	 * The subjects with a label that starts with the given prefix and that
+	 * are accepted by the filter, in label order, including the changes of
+	 * this connection that are not yet committed. An empty prefix has no
+	 * subjects.
+	 */
+	Set<Resource> getPrefixSubjects(String prefix, int limit,
+			SubjectFilter filter) throws SailException {
+		String key = getLabelKey(prefix);
+		if (key.length() == 0)
+			return new LinkedHashSet<Resource>(0);
+		SortedMap<String, Set<Resource>> found = new TreeMap<String, Set<Resource>>();
+		Map<Resource, Boolean> checked = new HashMap<Resource, Boolean>();
+		int accepted = 0;
+		if (!cleared) {
+			try {
+				CloseableIteration<Map.Entry<String, Resource>, IOException> prefixed;
+				prefixed = sail.getLabelIndex().getPrefixed(key);
+				try {
+					while (accepted < limit && prefixed.hasNext()) {
+						Map.Entry<String, Resource> e = prefixed.next();
+						Resource subj = e.getValue();
+						Map<String, Boolean> changes = pendingLabels.get(subj);
+						if (changes != null
+								&& Boolean.FALSE.equals(changes.get(e.getKey())))
+							continue;
+						if (!checked.containsKey(subj)) {
+							boolean accept = filter.accept(subj);
+							checked.put(subj, accept);
+							if (accept) {
+								add(found, e.getKey(), subj);
+								accepted++;
+							}
+						}
+					}
+				} finally {
+					prefixed.close();
+				}
+			} catch (IOException e) {
+				throw new SailException(e);
+			}
+		}
+		for (Map.Entry<Resource, Map<String, Boolean>> e : pendingLabels.entrySet()) {
+			for (Map.Entry<String, Boolean> change : e.getValue().entrySet()) {
+				Resource subj = e.getKey();
+				if (!change.getValue() || !change.getKey().startsWith(key))
+					continue;
+				if (!checked.containsKey(subj)) {
+					checked.put(subj, filter.accept(subj));
+				}
+				if (checked.get(subj)) {
+					add(found, change.getKey(), subj);
+				}
+			}
+		}
+		Set<Resource> subjects = new LinkedHashSet<Resource>();
+		for (Set<Resource> set : found.values()) {
+			for (Resource subj : set) {
+				if (subjects.size() < limit) {
+					subjects.add(subj);
+				}
+			}
+		}
+		return subjects;
+	}
+
+	/**
+	 * If the store has the label in any context.
+	 */
+	boolean hasLabel(Resource subj, URI pred, Value obj) throws SailException {
+		CloseableIteration<? extends Statement, SailException> stmts;
+		stmts = super.getStatements(subj, pred, obj, false);
+		try {
+			return stmts.hasNext();
+		} finally {
+			stmts.close();
+		}
+	}
+
 	protected void index(UpdateContext uc, Resource subj, Value obj) throws SailException {
 		for (String s : helper.phones(obj.stringValue())) {
 			Literal lit = vf.createLiteral(s);
+			record(pending, subj, s, true);
 			if (infer == null && uc == null) {
 				super.addStatement(subj, property, lit, graph);
 			} else if (infer == null) {
@@ -104,6 +363,111 @@ public class KeywordConnection extends SailConnectionWrapper {
 				infer.addInferredStatement(subj, property, lit, graph);
 			}
 		}
+		String key = getLabelKey(obj.stringValue());
+		if (key.length() > 0) {
+			record(pendingLabels, subj, key, true);
+		}
+	}
+
+	/**
+	 * Records the phones and prefix keys of the indexed labels that match the
+	 * pattern.
+	 */
+	private void collectPhones(Resource subj, URI pred, Value obj,
+			Resource[] contexts, Map<Resource, Set<String>> phones,
+			Map<Resource, Set<String>> keys) throws SailException {
+		Set<URI> labels = pred == null ? sail.getKeywordProperties()
+				: Collections.singleton(pred);
+		for (URI label : labels) {
+			CloseableIteration<? extends Statement, SailException> stmts;
+			stmts = super.getStatements(subj, label, obj, false, contexts);
+			try {
+				while (stmts.hasNext()) {
+					Statement st = stmts.next();
+					String text = st.getObject().stringValue();
+					get(phones, st.getSubject()).addAll(helper.phones(text));
+					get(keys, st.getSubject()).add(getLabelKey(text));
+				}
+			} finally {
+				stmts.close();
+			}
+		}
+	}
+
+	/**
+	 * Removes the given phones and prefix keys of each subject that are not
+	 * also phones or keys of one of its remaining labels.
+	 */
+	private void unindex(Map<Resource, Set<String>> phones,
+			Map<Resource, Set<String>> keys) throws SailException {
+		Set<Resource> subjects = new LinkedHashSet<Resource>(phones.keySet());
+		subjects.addAll(keys.keySet());
+		for (Resource subj : subjects) {
+			Set<String> stale = get(phones, subj);
+			Set<String> staleKeys = get(keys, subj);
+			for (URI label : sail.getKeywordProperties()) {
+				if (stale.isEmpty() && staleKeys.isEmpty())
+					break;
+				CloseableIteration<? extends Statement, SailException> stmts;
+				stmts = super.getStatements(subj, label, null, false);
+				try {
+					while (stmts.hasNext()
+							&& !(stale.isEmpty() && staleKeys.isEmpty())) {
+						String text = stmts.next().getObject().stringValue();
+						stale.removeAll(helper.phones(text));
+						staleKeys.remove(getLabelKey(text));
+					}
+				} finally {
+					stmts.close();
+				}
+			}
+			for (String key : staleKeys) {
+				if (key.length() > 0) {
+					record(pendingLabels, subj, key, false);
+				}
+			}
+			for (String s : stale) {
+				Literal lit = vf.createLiteral(s);
+				record(pending, subj, s, false);
+				if (infer == null) {
+					super.removeStatements(subj, property, lit, graph);
+				} else {
+					infer.removeInferredStatement(subj, property, lit, graph);
+				}
+			}
+		}
+	}
+
+	private String getLabelKey(String label) {
+		String key = helper.prefix(label);
+		if (key.endsWith(" "))
+			return key.substring(0, key.length() - 1);
+		return key;
+	}
+
+	private Set<String> get(Map<Resource, Set<String>> map, Resource subj) {
+		Set<String> set = map.get(subj);
+		if (set == null) {
+			map.put(subj, set = new HashSet<String>());
+		}
+		return set;
+	}
+
+	private void add(Map<String, Set<Resource>> map, String key, Resource subj) {
+		Set<Resource> set = map.get(key);
+		if (set == null) {
+			map.put(key, set = new LinkedHashSet<Resource>());
+		}
+		set.add(subj);
+	}
+
+	private void record(Map<Resource, Map<String, Boolean>> pending,
+			Resource subj, String key, boolean added) {
+		Map<String, Boolean> keys = pending.get(subj);
+		if (keys == null) {
+			pending.put(subj, keys = new HashMap<String, Boolean>());
+		}
+		keys.put(key, added);
 	}
 
 }
@@ -0,0 +1,501 @@
+/*
+ * Copyright (c) 2011, 3 Round Stones Inc. Some rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution. 
+ * - Neither the name of the openrdf.org nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package org.callimachusproject.sail.keyword;
+
+import info.aduna.io.ByteArrayUtil;
+import info.aduna.io.FileUtil;
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.LookAheadIteration;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.rio.ntriples.NTriplesUtil;
+import org.openrdf.sail.nativerdf.btree.BTree;
+import org.openrdf.sail.nativerdf.btree.RecordComparator;
+import org.openrdf.sail.nativerdf.btree.RecordIterator;
+import org.openrdf.sail.nativerdf.datastore.DataStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Inverted index from the phones, or the normalised text, of indexed labels
+ * to the subjects that have them, kept on disk in the data directory. Each
+ * record of its B-tree is the first bytes of a key, the id of the whole key
+ * and the id of a subject, so the records of a key, or of every key with a
+ * prefix, are read as a range and only the nodes and ids being read are held
+ * in memory. The keys and subjects are given their ids by a data store, as in
+ * the native store. Each transaction is marked as active in a status file
+ * before the store commits and is cleared once every open transaction has
+ * been written, so an index that was left active has diverged from the store
+ * and is not loaded.
+ * 
+ * @author James Leigh
+ * 
+ */
+class KeywordIndex {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** bytes of a key in a record, beyond which keys are told apart by id */
+	private static final int KEY_LENGTH = 32;
+	private static final int RECORD_LENGTH = KEY_LENGTH + 8;
+	private static final int BLOCK_SIZE = 4096;
+	private static final int MAX_SUBJECTS = 4096;
+	private static final String ACTIVE = "active";
+	private static final String NONE = "none";
+	private static final RecordComparator UNSIGNED = new RecordComparator() {
+		public int compareBTreeValues(byte[] key, byte[] data, int offset,
+				int length) {
+			int n = Math.min(key.length, length);
+			for (int i = 0; i < n; i++) {
+				int diff = (key[i] & 0xff) - (data[offset + i] & 0xff);
+				if (diff != 0)
+					return diff;
+			}
+			return key.length - length;
+		}
+	};
+
+	private final Logger logger = LoggerFactory.getLogger(KeywordIndex.class);
+	private final File dir;
+	private final String name;
+	private final boolean temporary;
+	private final ValueFactory vf;
+	/** guards the data stores, which are not thread-safe */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Map<Integer, Resource> subjectCache = new LinkedHashMap<Integer, Resource>(
+			MAX_SUBJECTS, 0.75f, true) {
+		private static final long serialVersionUID = -1940371467281446458L;
+
+		protected boolean removeEldestEntry(Map.Entry<Integer, Resource> eldest) {
+			return size() > MAX_SUBJECTS;
+		}
+	};
+	private final Set<Long> unfinished = new HashSet<Long>();
+	private long transactions;
+	private volatile BTree records;
+	private DataStore keys;
+	private DataStore subjects;
+
+	/**
+	 * @param dir
+	 *            the data directory or null if the index is not persisted
+	 * @param name
+	 *            the file name prefix of the index
+	 */
+	public KeywordIndex(File dir, String name, ValueFactory vf)
+			throws IOException {
+		if (dir == null) {
+			File tmp = File.createTempFile("keyword", "");
+			tmp.delete();
+			tmp.mkdirs();
+			this.dir = tmp;
+		} else {
+			this.dir = dir;
+		}
+		this.temporary = dir == null;
+		this.name = name;
+		this.vf = vf;
+	}
+
+	public String toString() {
+		return new File(dir, name).toString();
+	}
+
+	/**
+	 * Opens the index on disk.
+	 * 
+	 * @return false if there is no index on disk to load or it may be missing
+	 *         committed changes
+	 */
+	public synchronized boolean load() throws IOException {
+		close();
+		unfinished.clear();
+		File journal = new File(dir, name);
+		if (journal.exists()) {
+			// replaced by the files of this index
+			journal.delete();
+		}
+		String status = readStatus();
+		open();
+		if (NONE.equals(status))
+			return true;
+		if (ACTIVE.equals(status)) {
+			logger.warn("Keyword index {} is missing committed changes", this);
+		}
+		clearStores();
+		return false;
+	}
+
+	/**
+	 * Removes every entry.
+	 */
+	public synchronized void clear() throws IOException {
+		if (records == null) {
+			open();
+		}
+		unfinished.clear();
+		clearStores();
+	}
+
+	/**
+	 * Marks the index as active, before the store commits a transaction.
+	 * 
+	 * @return the transaction to pass to {@link #update(Map, boolean, long)}
+	 */
+	public synchronized long begin() throws IOException {
+		long id = ++transactions;
+		if (unfinished.isEmpty()) {
+			writeStatus(ACTIVE);
+		}
+		unfinished.add(id);
+		return id;
+	}
+
+	/**
+	 * @return the subjects with a label that has the given key
+	 */
+	public Set<Resource> getSubjects(String key) throws IOException {
+		BTree btree = records;
+		Set<Resource> set = new HashSet<Resource>();
+		byte[] bytes = key.getBytes(UTF8);
+		int keyId = getID(keys, bytes);
+		if (btree == null || keyId < 0)
+			return set;
+		byte[] min = record(bytes, keyId, 0);
+		byte[] max = record(bytes, keyId, -1);
+		RecordIterator iter = btree.iterateRange(min, max);
+		try {
+			byte[] record;
+			while ((record = iter.next()) != null) {
+				set.add(getSubject(ByteArrayUtil.getInt(record, KEY_LENGTH + 4)));
+			}
+		} finally {
+			iter.close();
+		}
+		return set;
+	}
+
+	/**
+	 * The keys and subjects whose key starts with the given prefix, in key
+	 * order. The index may change while they are read.
+	 */
+	public CloseableIteration<Map.Entry<String, Resource>, IOException> getPrefixed(
+			final String prefix) {
+		final BTree btree = records;
+		if (btree == null)
+			return new LookAheadIteration<Map.Entry<String, Resource>, IOException>() {
+				protected Map.Entry<String, Resource> getNextElement() {
+					return null;
+				}
+			};
+		byte[] bytes = prefix.getBytes(UTF8);
+		byte[] min = new byte[RECORD_LENGTH];
+		byte[] max = new byte[RECORD_LENGTH];
+		Arrays.fill(max, (byte) 0xff);
+		int n = Math.min(bytes.length, KEY_LENGTH);
+		System.arraycopy(bytes, 0, min, 0, n);
+		System.arraycopy(bytes, 0, max, 0, n);
+		final RecordIterator iter = btree.iterateRange(min, max);
+		return new LookAheadIteration<Map.Entry<String, Resource>, IOException>() {
+			private final Map<Integer, String> names = new HashMap<Integer, String>();
+			private Iterator<Map.Entry<String, Resource>> group;
+			private byte[] next;
+
+			protected Map.Entry<String, Resource> getNextElement()
+					throws IOException {
+				while (group == null || !group.hasNext()) {
+					if (next == null) {
+						next = iter.next();
+					}
+					if (next == null)
+						return null;
+					group = readGroup().iterator();
+				}
+				return group.next();
+			}
+
+			/**
+			 * Reads the records that share the leading bytes of their key,
+			 * which the B-tree orders by key id, and sorts them by key.
+			 */
+			private List<Map.Entry<String, Resource>> readGroup()
+					throws IOException {
+				List<Map.Entry<String, Resource>> list = new ArrayList<Map.Entry<String, Resource>>();
+				byte[] first = next;
+				do {
+					String key = getKey(ByteArrayUtil.getInt(next, KEY_LENGTH));
+					if (key.startsWith(prefix)) {
+						Resource subj = getSubject(ByteArrayUtil.getInt(next, KEY_LENGTH + 4));
+						list.add(new AbstractMap.SimpleImmutableEntry<String, Resource>(key, subj));
+					}
+					next = iter.next();
+				} while (next != null && sameKeyPrefix(first, next));
+				Collections.sort(list, new Comparator<Map.Entry<String, Resource>>() {
+					public int compare(Map.Entry<String, Resource> o1,
+							Map.Entry<String, Resource> o2) {
+						return o1.getKey().compareTo(o2.getKey());
+					}
+				});
+				return list;
+			}
+
+			private String getKey(int id) throws IOException {
+				String key = names.get(id);
+				if (key == null) {
+					names.put(id, key = new String(getData(keys, id), UTF8));
+				}
+				return key;
+			}
+
+			protected void handleClose() throws IOException {
+				try {
+					super.handleClose();
+				} finally {
+					iter.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Applies committed changes and marks the end of their transaction.
+	 * 
+	 * @param changes
+	 *            keys of each subject mapped to true if added or false if
+	 *            removed, or empty if the store did not commit
+	 * @param clear
+	 *            if every entry was removed before the changes
+	 */
+	public synchronized void update(Map<Resource, Map<String, Boolean>> changes,
+			boolean clear, long txn) throws IOException {
+		if (clear) {
+			clearStores();
+		}
+		for (Map.Entry<Resource, Map<String, Boolean>> e : changes.entrySet()) {
+			byte[] term = NTriplesUtil.toNTriplesString(e.getKey()).getBytes(UTF8);
+			for (Map.Entry<String, Boolean> p : e.getValue().entrySet()) {
+				byte[] key = p.getKey().getBytes(UTF8);
+				if (p.getValue()) {
+					records.insert(record(key, storeData(keys, key), storeData(subjects, term)));
+				} else {
+					int keyId = getID(keys, key);
+					int subjId = getID(subjects, term);
+					if (keyId >= 0 && subjId >= 0) {
+						records.remove(record(key, keyId, subjId));
+					}
+				}
+			}
+		}
+		unfinished.remove(txn);
+		if (unfinished.isEmpty()) {
+			sync();
+			writeStatus(NONE);
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		if (records == null)
+			return;
+		try {
+			if (unfinished.isEmpty()) {
+				sync();
+			}
+		} finally {
+			lock.writeLock().lock();
+			try {
+				records.close();
+				keys.close();
+				subjects.close();
+			} finally {
+				records = null;
+				keys = subjects = null;
+				lock.writeLock().unlock();
+				if (temporary) {
+					FileUtil.deleteDir(dir);
+				} else if (unfinished.isEmpty()) {
+					writeStatus(NONE);
+				}
+			}
+		}
+	}
+
+	private void open() throws IOException {
+		dir.mkdirs();
+		lock.writeLock().lock();
+		try {
+			keys = new DataStore(dir, name + "-keys");
+			subjects = new DataStore(dir, name + "-subjects");
+			records = new BTree(dir, name + "-records", BLOCK_SIZE,
+					RECORD_LENGTH, UNSIGNED);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void clearStores() throws IOException {
+		lock.writeLock().lock();
+		try {
+			records.clear();
+			keys.clear();
+			subjects.clear();
+			synchronized (subjectCache) {
+				subjectCache.clear();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if (unfinished.isEmpty()) {
+			sync();
+			writeStatus(NONE);
+		}
+	}
+
+	private void sync() throws IOException {
+		lock.writeLock().lock();
+		try {
+			records.sync();
+			keys.sync();
+			subjects.sync();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private boolean sameKeyPrefix(byte[] r1, byte[] r2) {
+		for (int i = 0; i < KEY_LENGTH; i++) {
+			if (r1[i] != r2[i])
+				return false;
+		}
+		return true;
+	}
+
+	private byte[] record(byte[] key, int keyId, int subjId) {
+		byte[] record = new byte[RECORD_LENGTH];
+		System.arraycopy(key, 0, record, 0, Math.min(key.length, KEY_LENGTH));
+		ByteArrayUtil.putInt(keyId, record, KEY_LENGTH);
+		ByteArrayUtil.putInt(subjId, record, KEY_LENGTH + 4);
+		return record;
+	}
+
+	private Resource getSubject(int id) throws IOException {
+		synchronized (subjectCache) {
+			Resource subj = subjectCache.get(id);
+			if (subj != null)
+				return subj;
+		}
+		String term = new String(getData(subjects, id), UTF8);
+		Resource subj = NTriplesUtil.parseResource(term, vf);
+		synchronized (subjectCache) {
+			subjectCache.put(id, subj);
+		}
+		return subj;
+	}
+
+	private int getID(DataStore store, byte[] data) throws IOException {
+		lock.readLock().lock();
+		try {
+			return store == null ? -1 : store.getID(data);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private byte[] getData(DataStore store, int id) throws IOException {
+		lock.readLock().lock();
+		try {
+			if (store == null)
+				throw new IOException("Keyword index is closed: " + this);
+			return store.getData(id);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private int storeData(DataStore store, byte[] data) throws IOException {
+		lock.writeLock().lock();
+		try {
+			return store.storeData(data);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private String readStatus() throws IOException {
+		File file = new File(dir, name + ".status");
+		if (!file.exists())
+			return null;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), UTF8));
+		try {
+			return reader.readLine();
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void writeStatus(String status) throws IOException {
+		if (temporary)
+			return;
+		FileOutputStream out = new FileOutputStream(new File(dir, name
+				+ ".status"));
+		try {
+			Writer writer = new OutputStreamWriter(out, UTF8);
+			writer.write(status);
+			writer.write('\n');
+			writer.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2011, 3 Round Stones Inc. Some rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution. 
+ * - Neither the name of the openrdf.org nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package org.callimachusproject.sail.keyword;
+
+import info.aduna.iteration.CloseableIteration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.callimachusproject.sail.keyword.KeywordRanker.Ranked;
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.BindingSetAssignment;
+import org.openrdf.query.algebra.EmptySet;
+import org.openrdf.query.algebra.Filter;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.QueryModelNode;
+import org.openrdf.query.algebra.SingletonSet;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
+import org.openrdf.query.impl.MapBindingSet;
+import org.openrdf.sail.SailException;
+
+/**
+ * Replaces the pattern <code>?resource keyword:match "keyword"</code> with the
+ * resources whose labels have the soundex of the keyword, as read from the
+ * {@link KeywordIndex}, so the lookup does not touch the triple indexes. The
+ * pattern <code>?resource keyword:rank "keywords"</code> is replaced with the
+ * best matches from the {@link KeywordRanker}, with their score bound by a
+ * <code>?resource keyword:score ?score</code> pattern in the same group.
+ * The pattern <code>?resource keyword:prefix "text"</code> is replaced with the
+ * resources with a label that starts with the text, in label order, as read
+ * from the sorted label index. A ranked or prefixed resource only takes one of
+ * the limited places if the rest of its group, such as its type and filters,
+ * has a solution for it. The keywords must be a constant or bound in the given
+ * bindings. The pattern <code>[] keyword:complete ?complete</code> binds false
+ * while the index is being rebuilt, when the others may be partial.
+ * 
+ * @author James Leigh
+ * 
+ */
+class KeywordMatchOptimizer {
+	private final URI match;
+	private final URI rank;
+	private final URI score;
+	private final URI prefix;
+	private final URI complete;
+	private final KeywordSail sail;
+	private final PhoneHelper helper;
+	private final KeywordConnection con;
+
+	public KeywordMatchOptimizer(KeywordSail sail, PhoneHelper helper,
+			KeywordConnection con) {
+		this.match = sail.getMatchProperty();
+		this.rank = sail.getRankProperty();
+		this.score = sail.getScoreProperty();
+		this.prefix = sail.getPrefixProperty();
+		this.complete = sail.getCompleteProperty();
+		this.sail = sail;
+		this.helper = helper;
+		this.con = con;
+	}
+
+	/**
+	 * If the given expression uses the match, rank, prefix or complete
+	 * property.
+	 */
+	public boolean isApplicable(TupleExpr tupleExpr) {
+		final boolean[] found = new boolean[1];
+		tupleExpr.visit(new QueryModelVisitorBase<RuntimeException>() {
+			public void meet(StatementPattern node) {
+				if (isPattern(match, node) || isPattern(rank, node)
+						|| isPattern(prefix, node) || isPattern(complete, node)) {
+					found[0] = true;
+				}
+			}
+		});
+		return found[0];
+	}
+
+	public void optimize(TupleExpr tupleExpr, Dataset dataset,
+			BindingSet bindings, boolean includeInferred) throws SailException {
+		final List<StatementPattern> patterns = new ArrayList<StatementPattern>();
+		tupleExpr.visit(new QueryModelVisitorBase<RuntimeException>() {
+			public void meet(StatementPattern node) {
+				if (isPattern(match, node) || isPattern(rank, node)
+						|| isPattern(prefix, node) || isPattern(complete, node)) {
+					patterns.add(node);
+				}
+			}
+		});
+		for (StatementPattern sp : patterns) {
+			if (isPattern(complete, sp)) {
+				Value value = sail.getValueFactory().createLiteral(
+						!sail.isRebuilding());
+				sp.replaceWith(assign(sp.getObjectVar(), value, bindings));
+				continue;
+			}
+			Value keyword = getValue(sp.getObjectVar(), bindings);
+			if (keyword == null)
+				continue;
+			if (isPattern(match, sp)) {
+				Set<Resource> subjects = con.getKeywordSubjects(helper
+						.soundex(keyword.stringValue()));
+				sp.replaceWith(lookup(sp.getSubjectVar(), subjects, bindings));
+			} else if (isPattern(prefix, sp)) {
+				Set<Resource> subjects = con.getPrefixSubjects(
+						keyword.stringValue(), sail.getRankLimit(),
+						getGroupFilter(sp, dataset, bindings, includeInferred));
+				sp.replaceWith(lookup(sp.getSubjectVar(), subjects, bindings));
+			} else {
+				sp.replaceWith(rank(sp, keyword.stringValue(), dataset,
+						bindings, includeInferred));
+			}
+		}
+	}
+
+	private boolean isPattern(URI property, StatementPattern sp) {
+		Var pred = sp.getPredicateVar();
+		return pred.hasValue() && property.equals(pred.getValue())
+				&& sp.getContextVar() == null;
+	}
+
+	private TupleExpr lookup(Var var, Set<Resource> subjects,
+			BindingSet bindings) {
+		Value subj = getValue(var, bindings);
+		if (subj != null && subjects.contains(subj))
+			return new SingletonSet();
+		if (subj != null || subjects.isEmpty())
+			return new EmptySet();
+		String name = var.getName();
+		List<BindingSet> list = new ArrayList<BindingSet>(subjects.size());
+		for (Resource resource : subjects) {
+			MapBindingSet bs = new MapBindingSet(1);
+			bs.addBinding(name, resource);
+			list.add(bs);
+		}
+		BindingSetAssignment bsa = new BindingSetAssignment();
+		bsa.setBindingNames(Collections.singleton(name));
+		bsa.setBindingSets(list);
+		return bsa;
+	}
+
+	private TupleExpr assign(Var var, Value value, BindingSet bindings) {
+		Value bound = getValue(var, bindings);
+		if (bound != null)
+			return value.equals(bound) ? new SingletonSet() : new EmptySet();
+		MapBindingSet bs = new MapBindingSet(1);
+		bs.addBinding(var.getName(), value);
+		BindingSetAssignment bsa = new BindingSetAssignment();
+		bsa.setBindingNames(Collections.singleton(var.getName()));
+		bsa.setBindingSets(Collections.<BindingSet> singletonList(bs));
+		return bsa;
+	}
+
+	private TupleExpr rank(StatementPattern sp, String keywords,
+			Dataset dataset, BindingSet bindings, boolean includeInferred)
+			throws SailException {
+		Var var = sp.getSubjectVar();
+		Var scoreVar = null;
+		for (StatementPattern sibling : getGroup(sp)) {
+			if (sibling != sp && sibling.getSubjectVar().equals(var)
+					&& isPattern(score, sibling)) {
+				scoreVar = sibling.getObjectVar();
+				sibling.replaceWith(new SingletonSet());
+			}
+		}
+		KeywordRanker ranker = new KeywordRanker(helper,
+				sail.getKeywordProperties());
+		List<Ranked> ranked = ranker.rank(con, keywords, sail.getRankLimit(),
+				getGroupFilter(sp, dataset, bindings, includeInferred));
+		Value subj = getValue(var, bindings);
+		Set<String> names = new LinkedHashSet<String>();
+		if (subj == null) {
+			names.add(var.getName());
+		}
+		Value scoreValue = scoreVar == null ? null : getValue(scoreVar, bindings);
+		if (scoreVar != null && scoreValue == null) {
+			names.add(scoreVar.getName());
+		}
+		ValueFactory vf = sail.getValueFactory();
+		List<BindingSet> list = new ArrayList<BindingSet>(ranked.size());
+		for (Ranked r : ranked) {
+			if (subj != null && !subj.equals(r.subject))
+				continue;
+			Value s = vf.createLiteral(r.score);
+			if (scoreValue != null && !scoreValue.equals(s))
+				continue;
+			MapBindingSet bs = new MapBindingSet(names.size());
+			if (subj == null) {
+				bs.addBinding(var.getName(), r.subject);
+			}
+			if (scoreVar != null && scoreValue == null) {
+				bs.addBinding(scoreVar.getName(), s);
+			}
+			list.add(bs);
+		}
+		if (list.isEmpty())
+			return new EmptySet();
+		if (names.isEmpty())
+			return new SingletonSet();
+		BindingSetAssignment bsa = new BindingSetAssignment();
+		bsa.setBindingNames(names);
+		bsa.setBindingSets(list);
+		return bsa;
+	}
+
+	/**
+	 * Accepts the subjects for which the rest of the group, evaluated with
+	 * the subject bound, has at least one solution.
+	 */
+	private KeywordConnection.SubjectFilter getGroupFilter(
+			StatementPattern sp, final Dataset dataset,
+			final BindingSet bindings, final boolean includeInferred) {
+		final String name = sp.getSubjectVar().getName();
+		QueryModelNode root = getGroupRoot(sp);
+		if (root == sp) {
+			return new KeywordConnection.SubjectFilter() {
+				public boolean accept(Resource subj) {
+					return true;
+				}
+			};
+		}
+		final TupleExpr group = ((TupleExpr) root).clone();
+		final List<StatementPattern> keywords = new ArrayList<StatementPattern>();
+		group.visit(new QueryModelVisitorBase<RuntimeException>() {
+			public void meet(StatementPattern node) {
+				if (isPattern(match, node) || isPattern(rank, node)
+						|| isPattern(prefix, node) || isPattern(score, node)
+						|| isPattern(complete, node)) {
+					keywords.add(node);
+				}
+			}
+		});
+		for (StatementPattern node : keywords) {
+			node.replaceWith(new SingletonSet());
+		}
+		return new KeywordConnection.SubjectFilter() {
+			public boolean accept(Resource subj) throws SailException {
+				QueryBindingSet bs = new QueryBindingSet();
+				if (bindings != null) {
+					bs.addAll(bindings);
+				}
+				bs.setBinding(name, subj);
+				try {
+					CloseableIteration<? extends BindingSet, QueryEvaluationException> result;
+					result = con.evaluate(group, dataset, bs, includeInferred);
+					try {
+						return result.hasNext();
+					} finally {
+						result.close();
+					}
+				} catch (QueryEvaluationException e) {
+					throw new SailException(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * The outermost join or filter that contains the given pattern.
+	 */
+	private QueryModelNode getGroupRoot(StatementPattern sp) {
+		QueryModelNode root = sp;
+		while (root.getParentNode() instanceof Join
+				|| root.getParentNode() instanceof Filter) {
+			root = root.getParentNode();
+		}
+		return root;
+	}
+
+	/**
+	 * The statement patterns joined with the given pattern.
+	 */
+	private List<StatementPattern> getGroup(StatementPattern sp) {
+		QueryModelNode root = getGroupRoot(sp);
+		final List<StatementPattern> group = new ArrayList<StatementPattern>();
+		root.visit(new QueryModelVisitorBase<RuntimeException>() {
+			public void meet(Join node) {
+				node.visitChildren(this);
+			}
+
+			public void meet(Filter node) {
+				node.getArg().visit(this);
+			}
+
+			public void meet(StatementPattern node) {
+				group.add(node);
+			}
+
+			protected void meetNode(QueryModelNode node) {
+				// only patterns that are directly joined
+			}
+		});
+		return group;
+	}
+
+	private Value getValue(Var var, BindingSet bindings) {
+		if (var.hasValue())
+			return var.getValue();
+		if (bindings == null)
+			return null;
+		return bindings.getValue(var.getName());
+	}
+
+}
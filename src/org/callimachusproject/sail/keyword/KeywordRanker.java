@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2011, 3 Round Stones Inc. Some rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution. 
+ * - Neither the name of the openrdf.org nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without
+ *   specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ */
+package org.callimachusproject.sail.keyword;
+
+import info.aduna.iteration.CloseableIteration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.sail.SailException;
+
+/**
+ * Scores the resources that share a phone with a keyword query and keeps the
+ * best k in a bounded heap. A label scores the overlap of its words with the
+ * query words, where an exact word counts more than a word that only sounds
+ * the same, weighted by the label property. Candidates are read from the
+ * {@link KeywordIndex} in order of the number of query words they may match,
+ * which bounds their score, so their labels are only read while they could
+ * still beat the kth score.
+ * 
+ * @author James Leigh
+ * 
+ */
+class KeywordRanker {
+	private static final double EXACT = 1.0;
+	private static final double SOUNDS_LIKE = 0.25;
+	private static final double MAX_WEIGHT = 1.0;
+	private static final Map<URI, Double> WEIGHTS = new HashMap<URI, Double>();
+	static {
+		String skos = "http://www.w3.org/2004/02/skos/core#";
+		WEIGHTS.put(new URIImpl(skos + "altLabel"), 0.5);
+		WEIGHTS.put(new URIImpl(skos + "hiddenLabel"), 0.25);
+	}
+
+	/** A resource and its score */
+	static class Ranked {
+		final Resource subject;
+		final double score;
+
+		Ranked(Resource subject, double score) {
+			this.subject = subject;
+			this.score = score;
+		}
+
+		public String toString() {
+			return subject + " " + score;
+		}
+	}
+
+	private static final Comparator<Ranked> WORST_FIRST = new Comparator<Ranked>() {
+		public int compare(Ranked o1, Ranked o2) {
+			if (o1.score < o2.score)
+				return -1;
+			if (o1.score > o2.score)
+				return 1;
+			return o2.subject.stringValue().compareTo(o1.subject.stringValue());
+		}
+	};
+
+	private final PhoneHelper helper;
+	private final Set<URI> labels;
+	private int scored;
+
+	public KeywordRanker(PhoneHelper helper, Set<URI> labels) {
+		this.helper = helper;
+		this.labels = labels;
+	}
+
+	/**
+	 * Number of candidates whose labels were read by the last ranking.
+	 */
+	public int getScoredCount() {
+		return scored;
+	}
+
+	/**
+	 * @param filter
+	 *            checks each resource that would make the best k, so
+	 *            resources the rest of the query rejects take no place
+	 * @return the best k resources, best first
+	 */
+	public List<Ranked> rank(KeywordConnection con, String query, int k,
+			KeywordConnection.SubjectFilter filter) throws SailException {
+		scored = 0;
+		List<String> words = new ArrayList<String>(new HashSet<String>(
+				helper.words(query)));
+		if (words.isEmpty() || k < 1)
+			return Collections.emptyList();
+		final Map<Resource, Integer> counts = new HashMap<Resource, Integer>();
+		for (String word : words) {
+			for (Resource subj : con.getKeywordSubjects(helper.soundexOfWord(word))) {
+				Integer count = counts.get(subj);
+				counts.put(subj, count == null ? 1 : count + 1);
+			}
+		}
+		List<Resource> candidates = new ArrayList<Resource>(counts.keySet());
+		Collections.sort(candidates, new Comparator<Resource>() {
+			public int compare(Resource o1, Resource o2) {
+				return counts.get(o2) - counts.get(o1);
+			}
+		});
+		PriorityQueue<Ranked> heap = new PriorityQueue<Ranked>(k + 1, WORST_FIRST);
+		for (Resource subj : candidates) {
+			double bound = MAX_WEIGHT * counts.get(subj) / words.size();
+			if (heap.size() >= k && heap.peek().score >= bound)
+				break; // no remaining candidate can beat the kth score
+			Ranked ranked = new Ranked(subj, score(con, subj, words));
+			if (ranked.score <= 0 || heap.size() >= k
+					&& WORST_FIRST.compare(ranked, heap.peek()) <= 0)
+				continue;
+			if (!filter.accept(subj))
+				continue;
+			heap.add(ranked);
+			if (heap.size() > k) {
+				heap.poll();
+			}
+		}
+		List<Ranked> list = new ArrayList<Ranked>(heap);
+		Collections.sort(list, Collections.reverseOrder(WORST_FIRST));
+		return list;
+	}
+
+	/**
+	 * The best score of the resource's labels.
+	 */
+	private double score(KeywordConnection con, Resource subj,
+			List<String> words) throws SailException {
+		scored++;
+		double best = 0;
+		for (URI pred : labels) {
+			Double weight = WEIGHTS.get(pred);
+			double w = weight == null ? MAX_WEIGHT : weight;
+			if (w <= best)
+				continue;
+			CloseableIteration<? extends Statement, SailException> stmts;
+			stmts = con.getStatements(subj, pred, null, true);
+			try {
+				while (stmts.hasNext()) {
+					String label = stmts.next().getObject().stringValue();
+					best = Math.max(best, w * overlap(words, helper.words(label)));
+				}
+			} finally {
+				stmts.close();
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Exact and sounds-like matches of the query words over the words of
+	 * both, so a label with fewer extra words scores higher.
+	 */
+	private double overlap(List<String> query, List<String> label) {
+		Set<String> exact = new HashSet<String>(label);
+		Set<String> phones = new HashSet<String>(label.size());
+		for (String word : label) {
+			phones.add(helper.soundexOfWord(word));
+		}
+		double hits = 0;
+		int matched = 0;
+		for (String word : query) {
+			if (exact.contains(word)) {
+				hits += EXACT;
+				matched++;
+			} else if (phones.contains(helper.soundexOfWord(word))) {
+				hits += SOUNDS_LIKE;
+				matched++;
+			}
+		}
+		return hits / (query.size() + Math.max(0, exact.size() - matched));
+	}
+
+}
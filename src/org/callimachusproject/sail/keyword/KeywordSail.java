@@ -38,12 +38,27 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.openrdf.model.Resource;
 import org.openrdf.model.Statement;
@@ -62,19 +77,47 @@ import org.slf4j.LoggerFactory;
  * Add keyword:phone property of resource's label soundex. Label properties to
  * index are read from META-INF/org.callimachusproject.sail.keyword.property if the
  * keywordProperties is null or empty. The index property and graph are
- * configurable.
+ * configurable. When the settings change the index is rebuilt in batches on a
+ * pool of threads, optionally in the background while the sail is in use. The
+ * phones are also kept in an inverted index in the data directory, which
+ * answers the keyword:match property without reading the triple indexes and
+ * the candidates of the ranked keyword:rank property. The normalised labels
+ * are kept in a sorted index beside it that completes the keyword:prefix
+ * property. While the index is rebuilt these properties may return partial
+ * results, which a query can detect with the keyword:complete property.
  * 
  * @author James Leigh
  * 
  */
-public class KeywordSail extends SailWrapper {
+public class KeywordSail extends SailWrapper implements KeywordSailMXBean {
 	private static final String SETTING_PROPERTIES = "org.callimachusproject.sail.keyword.properties";
 	private static final String PHONE_URI = "http://www.openrdf.org/rdf/2011/keyword#phone";
+	private static final String MATCH_URI = "http://www.openrdf.org/rdf/2011/keyword#match";
+	private static final String RANK_URI = "http://www.openrdf.org/rdf/2011/keyword#rank";
+	private static final String SCORE_URI = "http://www.openrdf.org/rdf/2011/keyword#score";
+	private static final String PREFIX_URI = "http://www.openrdf.org/rdf/2011/keyword#prefix";
+	private static final String COMPLETE_URI = "http://www.openrdf.org/rdf/2011/keyword#complete";
+	private static final String INDEX_FILE = "org.callimachusproject.sail.keyword.index";
+	private static final String LABELS_FILE = "org.callimachusproject.sail.keyword.labels";
+	private static final long PROGRESS_INTERVAL = 10000;
 	private final Logger logger = LoggerFactory.getLogger(KeywordSail.class);
 	private boolean enabled = true;
+	private boolean backgroundReindex;
+	private int reindexBatchSize = 10000;
+	private int reindexThreads = Runtime.getRuntime().availableProcessors();
+	private int rankLimit = 100;
+	private volatile boolean rebuilding;
+	private volatile boolean rebuildFailed;
+	private volatile boolean shuttingDown;
+	private final AtomicLong reindexedLabels = new AtomicLong();
+	private final AtomicLong reindexedBatches = new AtomicLong();
+	private volatile Thread rebuilder;
+	private ObjectName mbean;
 	private URI property;
 	private URI graph = null;
 	private Set<URI> labels;
+	private KeywordIndex index;
+	private KeywordIndex labelIndex;
 	private final PhoneHelper helper = PhoneHelperFactory.newInstance()
 			.createPhoneHelper();
 
@@ -111,6 +154,56 @@ public class KeywordSail extends SailWrapper {
 		this.property = property;
 	}
 
+	/**
+	 * RDF predicate that matches resources with a label that sounds like its
+	 * literal object.
+	 */
+	public URI getMatchProperty() {
+		return ValueFactoryImpl.getInstance().createURI(MATCH_URI);
+	}
+
+	/**
+	 * RDF predicate that ranks the resources with a label like its literal
+	 * object, best first.
+	 */
+	public URI getRankProperty() {
+		return ValueFactoryImpl.getInstance().createURI(RANK_URI);
+	}
+
+	/**
+	 * RDF predicate that binds the score of a ranked resource.
+	 */
+	public URI getScoreProperty() {
+		return ValueFactoryImpl.getInstance().createURI(SCORE_URI);
+	}
+
+	/**
+	 * RDF predicate that lists the resources with a label that starts with
+	 * its literal object, in label order.
+	 */
+	public URI getPrefixProperty() {
+		return ValueFactoryImpl.getInstance().createURI(PREFIX_URI);
+	}
+
+	/**
+	 * RDF predicate that binds true, or false while the index is being
+	 * rebuilt and the other keyword properties may return partial results.
+	 */
+	public URI getCompleteProperty() {
+		return ValueFactoryImpl.getInstance().createURI(COMPLETE_URI);
+	}
+
+	public int getRankLimit() {
+		return rankLimit;
+	}
+
+	/**
+	 * Maximum number of resources the rank and prefix properties return.
+	 */
+	public void setRankLimit(int rankLimit) {
+		this.rankLimit = rankLimit;
+	}
+
 	public URI getPhoneGraph() {
 		return graph;
 	}
@@ -135,6 +228,64 @@ public class KeywordSail extends SailWrapper {
 		this.labels = set;
 	}
 
+	public boolean isBackgroundReindex() {
+		return backgroundReindex;
+	}
+
+	/**
+	 * If the index should be rebuilt after initialisation, while the sail is
+	 * in use, instead of during it.
+	 */
+	public void setBackgroundReindex(boolean backgroundReindex) {
+		this.backgroundReindex = backgroundReindex;
+	}
+
+	public int getReindexBatchSize() {
+		return reindexBatchSize;
+	}
+
+	/**
+	 * Number of labels to index in each transaction when rebuilding.
+	 */
+	public void setReindexBatchSize(int reindexBatchSize) {
+		this.reindexBatchSize = reindexBatchSize;
+	}
+
+	public int getReindexThreads() {
+		return reindexThreads;
+	}
+
+	/**
+	 * Number of threads that index labels when rebuilding.
+	 */
+	public void setReindexThreads(int reindexThreads) {
+		this.reindexThreads = reindexThreads;
+	}
+
+	/**
+	 * If the index is being rebuilt, or its rebuild failed, and some
+	 * keyword:phone properties may still be missing.
+	 */
+	public boolean isRebuilding() {
+		return rebuilding;
+	}
+
+	/**
+	 * If the last rebuild of the index failed, leaving it incomplete until
+	 * it is rebuilt again on the next start.
+	 */
+	public boolean isRebuildFailed() {
+		return rebuildFailed;
+	}
+
+	public long getReindexedLabels() {
+		return reindexedLabels.get();
+	}
+
+	public long getReindexedBatches() {
+		return reindexedBatches.get();
+	}
+
 	@Override
 	public void initialize() throws SailException {
 		super.initialize();
@@ -156,24 +307,59 @@ public class KeywordSail extends SailWrapper {
 			}
 			labels = set;
 		}
+		registerMBean();
 		try {
-			File dir = getDataDir();
+			final File dir = getDataDir();
+			index = new KeywordIndex(dir, INDEX_FILE, vf);
+			labelIndex = new KeywordIndex(dir, LABELS_FILE, vf);
+			boolean loaded = index.load() & labelIndex.load();
 			if (dir != null) {
 				Properties properties = loadSettings(dir);
-				if (!isSameSettings(properties)) {
+				if (!loaded || !isSameSettings(properties)) {
 					logger.info("Reindexing keywords in {}", this);
 					clear(properties);
-					if (enabled) {
+					if (enabled && backgroundReindex) {
+						saveSettings(dir, false);
+						rebuildInBackground(dir);
+						return;
+					} else if (enabled) {
 						reindex();
 					}
 				}
-				saveSettings(dir);
+				saveSettings(dir, true);
 			}
 		} catch (IOException e) {
 			throw new SailException(e);
 		}
 	}
 
+	@Override
+	public void shutDown() throws SailException {
+		shuttingDown = true;
+		try {
+			Thread thread = rebuilder;
+			if (thread != null) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			unregisterMBean();
+			try {
+				if (index != null) {
+					index.close();
+				}
+				if (labelIndex != null) {
+					labelIndex.close();
+				}
+			} catch (IOException e) {
+				logger.error(e.toString(), e);
+			} finally {
+				super.shutDown();
+			}
+		}
+	}
+
 	@Override
 	public SailConnection getConnection() throws SailException {
 		if (enabled)
@@ -185,6 +371,14 @@ public class KeywordSail extends SailWrapper {
 		return labels.contains(property);
 	}
 
+	KeywordIndex getKeywordIndex() {
+		return index;
+	}
+
+	KeywordIndex getLabelIndex() {
+		return labelIndex;
+	}
+
 	private KeywordConnection getKeywordConnection() throws SailException {
 		return new KeywordConnection(this, super.getConnection(), helper);
 	}
@@ -215,12 +409,16 @@ public class KeywordSail extends SailWrapper {
 			return false;
 		if (enabled && "false".equals(properties.getProperty("enabled")))
 			return false;
+		if ("false".equals(properties.getProperty("complete")))
+			return false;
 		if (graph == null)
 			return properties.getProperty("graph") == null;
 		return graph.stringValue().equals(properties.getProperty("graph"));
 	}
 
-	private void clear(Properties properties) throws SailException {
+	private void clear(Properties properties) throws SailException, IOException {
+		index.clear();
+		labelIndex.clear();
 		ValueFactory vf = getValueFactory();
 		String property = properties.getProperty("property");
 		if (property != null) {
@@ -243,35 +441,191 @@ public class KeywordSail extends SailWrapper {
 		}
 	}
 
+	private void rebuildInBackground(final File dir) {
+		rebuilding = true;
+		rebuilder = new Thread(new Runnable() {
+			public void run() {
+				try {
+					reindex();
+					if (!shuttingDown) {
+						saveSettings(dir, true);
+					}
+				} catch (Exception e) {
+					logger.error("Could not reindex keywords in " + KeywordSail.this, e);
+				} finally {
+					rebuilder = null;
+				}
+			}
+		}, "Keyword reindex " + this);
+		rebuilder.setDaemon(true);
+		rebuilder.start();
+	}
+
+	/**
+	 * Reads the labels in batches and indexes each batch in its own
+	 * transaction on a pool of threads.
+	 */
 	private void reindex() throws SailException {
-		KeywordConnection con = getKeywordConnection();
+		rebuilding = true;
+		rebuildFailed = false;
+		reindexedLabels.set(0);
+		reindexedBatches.set(0);
+		final int nThreads = Math.max(1, reindexThreads);
+		final int batchSize = Math.max(1, reindexBatchSize);
+		final String name = "Keyword reindex " + this;
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads,
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, name + " " + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		// bound the batches waiting to be indexed
+		Semaphore pending = new Semaphore(nThreads * 2);
+		AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		long start = System.currentTimeMillis();
+		long logged = start;
+		boolean read = false;
 		try {
-			con.begin();
-			for (URI pred : labels) {
-				CloseableIteration<? extends Statement, SailException> stmts;
-				stmts = con.getStatements(null, pred, null, false);
+			SailConnection con = super.getConnection();
+			try {
+				con.begin();
+				for (URI pred : labels) {
+					CloseableIteration<? extends Statement, SailException> stmts;
+					stmts = con.getStatements(null, pred, null, false);
+					try {
+						List<Statement> batch = new ArrayList<Statement>(batchSize);
+						while (stmts.hasNext() && !isCancelled(failure)) {
+							batch.add(stmts.next());
+							if (batch.size() >= batchSize) {
+								submit(pool, pending, batch, failure);
+								batch = new ArrayList<Statement>(batchSize);
+							}
+							if (System.currentTimeMillis() - logged > PROGRESS_INTERVAL) {
+								logged = System.currentTimeMillis();
+								logger.info("Reindexed {} keyword labels in {}",
+										reindexedLabels.get(), this);
+							}
+						}
+						if (!batch.isEmpty() && !isCancelled(failure)) {
+							submit(pool, pending, batch, failure);
+						}
+					} finally {
+						stmts.close();
+					}
+				}
+				con.commit();
+			} finally {
+				con.close();
+			}
+			read = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SailException(e);
+		} finally {
+			pool.shutdown();
+			try {
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			// the index stays incomplete unless every batch was indexed
+			boolean indexed = read && failure.get() == null && !shuttingDown;
+			rebuildFailed = !indexed && !shuttingDown;
+			rebuilding = !indexed;
+		}
+		if (failure.get() instanceof SailException)
+			throw (SailException) failure.get();
+		if (failure.get() != null)
+			throw new SailException(failure.get());
+		logger.info("Reindexed {} keyword labels in {} ({} ms)", new Object[] {
+				reindexedLabels.get(), this, System.currentTimeMillis() - start });
+	}
+
+	private boolean isCancelled(AtomicReference<Exception> failure) {
+		return shuttingDown || failure.get() != null;
+	}
+
+	private void submit(ExecutorService pool, final Semaphore pending,
+			final List<Statement> batch,
+			final AtomicReference<Exception> failure)
+			throws InterruptedException {
+		pending.acquire();
+		pool.execute(new Runnable() {
+			public void run() {
 				try {
-					while (stmts.hasNext()) {
-						Statement st = stmts.next();
-						con.index(null, st.getSubject(), st.getObject());
+					if (failure.get() == null) {
+						indexBatch(batch);
 					}
+				} catch (Exception e) {
+					failure.compareAndSet(null, e);
 				} finally {
-					stmts.close();
+					pending.release();
+				}
+			}
+		});
+	}
+
+	private void indexBatch(List<Statement> batch) throws SailException {
+		KeywordConnection con = getKeywordConnection();
+		try {
+			con.begin();
+			for (Statement st : batch) {
+				// skip labels that were removed since they were read
+				if (con.hasLabel(st.getSubject(), st.getPredicate(), st.getObject())) {
+					con.index(null, st.getSubject(), st.getObject());
 				}
 			}
 			con.commit();
 		} finally {
 			con.close();
 		}
+		reindexedLabels.addAndGet(batch.size());
+		reindexedBatches.incrementAndGet();
+	}
+
+	private void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(
+					"org.callimachusproject.sail.keyword:type=KeywordSail,name="
+							+ ObjectName.quote(String.valueOf(getDataDir())));
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+				mbean = name;
+			}
+		} catch (JMException e) {
+			logger.warn(e.toString(), e);
+		}
 	}
 
-	private void saveSettings(File dir) throws IOException {
+	private void unregisterMBean() {
+		if (mbean != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbean);
+			} catch (JMException e) {
+				logger.warn(e.toString(), e);
+			} finally {
+				mbean = null;
+			}
+		}
+	}
+
+	/**
+	 * @param complete
+	 *            false if the index is still to be rebuilt with these settings
+	 */
+	private void saveSettings(File dir, boolean complete) throws IOException {
 		Properties properties = new Properties();
 		String code = Integer.toHexString(helper.hashCode());
 		properties.setProperty("phone", code);
 		properties.setProperty("label", Integer.toHexString(labels.hashCode()));
 		properties.setProperty("property", property.stringValue());
 		properties.setProperty("enabled", String.valueOf(enabled));
+		properties.setProperty("complete", String.valueOf(complete));
 		if (graph == null) {
 			properties.remove("graph");
 		} else {
@@ -40,18 +40,40 @@ import org.apache.commons.codec.language.Soundex;
 
 /**
  * Cleans up input string before generating soundex and regex for matching
- * keywords.
+ * keywords. The input is cleaned into a reusable buffer of the calling thread
+ * and the soundex of each word is memoised, so the phones of a label are
+ * usually generated without creating any intermediate strings.
  * 
  * @author James Leigh
  * 
  */
 public class PhoneHelper {
 	private static final String NO_SOUNDEX = "_000";
+	private static final int MAX_SUFFIX = 4;
+	private static final int MEMO_SIZE = 4096;
+	private static final int MAX_BUFFER = 4096;
+
+	/** An immutable memo entry, so it can be shared without locking */
+	private static class Memo {
+		final char[] word;
+		final String code;
+
+		Memo(char[] word, String code) {
+			this.word = word;
+			this.code = code;
+		}
+	}
+
 	private final Set<String> linking;
 	private final Set<String> suffix;
 	private final Set<Character> punctuation;
 	private final Map<Character, Character> substitutes;
 	private final Map<Character, Set<Character>> substitutable;
+	/** suffixes indexed by their length */
+	private final char[][][] suffixes = new char[MAX_SUFFIX + 1][][];
+	/** direct mapped cache of word soundex, replaced on collision */
+	private final Memo[] memo = new Memo[MEMO_SIZE];
+	private final ThreadLocal<StringBuilder> buffer = new ThreadLocal<StringBuilder>();
 	private Soundex soundex = new Soundex();
 
 	protected PhoneHelper(Set<String> linking, Set<String> suffix,
@@ -67,6 +89,15 @@ public class PhoneHelper {
 		this.punctuation = punctuation;
 		this.substitutes = substitutes;
 		this.substitutable = substitutable;
+		for (int len = 1; len <= MAX_SUFFIX; len++) {
+			List<char[]> list = new ArrayList<char[]>();
+			for (String s : suffix) {
+				if (s.length() == len) {
+					list.add(s.toCharArray());
+				}
+			}
+			suffixes[len] = list.toArray(new char[list.size()][]);
+		}
 	}
 
 	@Override
@@ -110,30 +141,92 @@ public class PhoneHelper {
 	 * @return soundex of each keyword of the input
 	 */
 	public Set<String> phones(String input) {
-		String clean = clean(input);
+		StringBuilder clean = clean(input);
 		Set<String> phones = new HashSet<String>();
+		int length = clean.length();
 		int start = 0;
 		do {
-			int end = clean.indexOf(' ', start + 1);
+			int end = indexOf(clean, ' ', start + 1, length);
+			String first = null;
 			if (end > start + 1) {
 				// not one letter word
-				String word = clean.substring(start, end);
-				if (start > 0 && linking.contains(word))
-					continue; // skip linking words
-				phones.add(encode(word));
+				first = encode(clean, start, end);
+				phones.add(first);
+			}
+			if (end < 0) {
+				phones.add(encode(clean, start, length));
+			} else if (first != null && isComplete(first)) {
+				// the rest of the input does not change a complete soundex
+				phones.add(first);
+			} else {
+				phones.add(encode(clean.substring(start)));
 			}
-			String word = clean.substring(start);
-			if (start > 0 && linking.contains(word))
-				continue; // skip linking words
-			phones.add(encode(word));
 			start = end;
-		} while (start > 0 && (start == 0 || start < clean.length() - 2));
+		} while (start > 0 && (start == 0 || start < length - 2));
 		if (phones.isEmpty()) {
 			phones.add(NO_SOUNDEX);
 		}
+		release(clean);
 		return phones;
 	}
 
+	/**
+	 * The cleaned words of the input that are more than one letter, which
+	 * are the words that have their own phone.
+	 * 
+	 * @param input
+	 * @return upper case words without their suffix
+	 */
+	public List<String> words(String input) {
+		StringBuilder clean = clean(input);
+		List<String> words = new ArrayList<String>();
+		int start = 0;
+		for (int i = 0, n = clean.length(); i <= n; i++) {
+			if (i == n || clean.charAt(i) == ' ') {
+				if (i - start > 1) {
+					words.add(clean.substring(start, i));
+				}
+				start = i + 1;
+			}
+		}
+		release(clean);
+		return words;
+	}
+
+	/**
+	 * Soundex of a word returned from {@link #words(String)}.
+	 */
+	public String soundexOfWord(String word) {
+		return encode(word, 0, word.length());
+	}
+
+	/**
+	 * Normalises the input for prefix matching. Letters are upper case without
+	 * accents and each run of white space and punctuation is a single space.
+	 * 
+	 * @param input
+	 * @return the normalised input, ending with a space if the input does
+	 */
+	public String prefix(String input) {
+		if (input == null)
+			return "";
+		StringBuilder sb = new StringBuilder(input.length());
+		for (int i = 0, n = input.length(); i < n; i++) {
+			char ch = Character.toUpperCase(input.charAt(i));
+			if (substitutes.containsKey(ch)) {
+				sb.append(substitutes.get(ch).charValue());
+			} else if (isWhitespace(ch) || punctuation.contains(ch)) {
+				int len = sb.length();
+				if (len > 0 && sb.charAt(len - 1) != ' ') {
+					sb.append(' ');
+				}
+			} else {
+				sb.append(ch);
+			}
+		}
+		return sb.toString();
+	}
+
 	/**
 	 * Soundex of the entire input.
 	 * 
@@ -141,8 +234,9 @@ public class PhoneHelper {
 	 * @return a letter or '_' followed by three numbers.
 	 */
 	public String soundex(String input) {
-		String word = clean(input);
-		String encode = encode(word);
+		StringBuilder clean = clean(input);
+		String encode = encode(clean.toString());
+		release(clean);
 		if (encode != null && encode.length() > 0) {
 			return encode;
 		} else {
@@ -159,9 +253,11 @@ public class PhoneHelper {
 	 * @return a regular expression
 	 */
 	public String regex(String word) {
-		String str = clean(word);
-		if (str == null || str.length() == 0)
+		StringBuilder str = clean(word);
+		if (str.length() == 0) {
+			release(str);
 			return "";
+		}
 		StringBuilder sb = new StringBuilder(str.length());
 		for (int i = 0, n = str.length(); i < n; i++) {
 			char ch = str.charAt(i);
@@ -182,82 +278,140 @@ public class PhoneHelper {
 				sb.append(".").append("\\p{M}*");
 			}
 		}
+		release(str);
 		return sb.toString();
 
 	}
 
 	/**
-	 * This removes non-english letters.
+	 * This removes non-english letters, leaving the words upper case and
+	 * separated by a single space in a buffer of this thread.
 	 */
-	private String clean(String str) {
+	private StringBuilder clean(String str) {
+		StringBuilder sb = buffer.get();
+		if (sb == null) {
+			buffer.set(sb = new StringBuilder());
+		}
+		sb.setLength(0);
 		if (str == null || str.length() == 0)
-			return "";
-		List<String> list = new ArrayList<String>();
-		StringBuilder sb = new StringBuilder(str.length());
+			return sb;
+		int word = 0;
 		for (int i = 0, n = str.length(); i < n; i++) {
 			char ch = Character.toUpperCase(str.charAt(i));
 			if ('A' <= ch && ch <= 'Z' || '0' <= ch && ch <= '9') {
 				sb.append(ch);
 			} else if (substitutes.containsKey(ch)) {
-				sb.append(substitutes.get(ch));
+				sb.append(substitutes.get(ch).charValue());
 			} else if (isWhitespace(ch) || punctuation.contains(ch)) {
-				trimSuffix(sb);
-				if (sb.length() > 0) {
-					list.add(sb.toString());
-				}
-				sb.setLength(0);
+				word = endWord(sb, word);
 			} else {
 				sb.append('_');
 			}
 		}
-		trimSuffix(sb);
-		if (sb.length() > 0) {
-			list.add(sb.toString());
-		}
-		if (list.isEmpty())
-			return "";
-		if (list.size() == 1)
-			return list.get(0);
-		sb.setLength(0);
-		for (String word : list) {
-			sb.append(word);
-			sb.append(' ');
+		endWord(sb, word);
+		if (sb.length() > 0 && sb.charAt(sb.length() - 1) == ' ') {
+			sb.setLength(sb.length() - 1);
 		}
-		sb.setLength(sb.length() - 1);
-		return sb.toString();
+		return sb;
 	}
 
-	private boolean trimSuffix(StringBuilder sb) {
-		if (sb.length() > 3) {
-			String last4 = sb.substring(sb.length() - 4, sb.length());
-			String last3 = last4.substring(1);
-			String last2 = last3.substring(1);
-			String last1 = last2.substring(1);
-			if (sb.length() > 4
-					&& last4.indexOf(sb.charAt(sb.length() - 5)) < 0
-					&& suffix.contains(last4)) {
-				sb.setLength(sb.length() - 4);
-				return true;
-			}
-			if (last3.indexOf(sb.charAt(sb.length() - 4)) < 0
-					&& suffix.contains(last3)) {
-				sb.setLength(sb.length() - 3);
-				return true;
-			}
-			if (last2.indexOf(sb.charAt(sb.length() - 3)) < 0
-					&& suffix.contains(last2)) {
-				sb.setLength(sb.length() - 2);
-				return true;
+	/**
+	 * Trims the suffix of the word that starts at the given index and appends
+	 * a separator if the word is not empty.
+	 * 
+	 * @return the start of the next word
+	 */
+	private int endWord(StringBuilder sb, int word) {
+		sb.setLength(word + trimSuffix(sb, word));
+		if (sb.length() == word)
+			return word;
+		sb.append(' ');
+		return sb.length();
+	}
+
+	/**
+	 * @return the length of the word without its suffix
+	 */
+	private int trimSuffix(StringBuilder sb, int word) {
+		int len = sb.length() - word;
+		if (len > 3) {
+			for (int s = MAX_SUFFIX; s > 0; s--) {
+				if (s == MAX_SUFFIX && len <= MAX_SUFFIX)
+					continue;
+				int from = sb.length() - s;
+				char before = sb.charAt(from - 1);
+				if (indexOf(sb, before, from, sb.length()) < 0
+						&& isSuffix(sb, from, s))
+					return len - s;
 			}
-			if (last1.indexOf(sb.charAt(sb.length() - 2)) < 0
-					&& suffix.contains(last1)) {
-				sb.setLength(sb.length() - 1);
+		}
+		return len;
+	}
+
+	private boolean isSuffix(StringBuilder sb, int from, int length) {
+		for (char[] suffix : suffixes[length]) {
+			if (regionMatches(sb, from, suffix))
 				return true;
-			}
 		}
 		return false;
 	}
 
+	private boolean regionMatches(CharSequence sb, int from, char[] chars) {
+		for (int i = 0; i < chars.length; i++) {
+			if (sb.charAt(from + i) != chars[i])
+				return false;
+		}
+		return true;
+	}
+
+	private int indexOf(CharSequence sb, char ch, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (sb.charAt(i) == ch)
+				return i;
+		}
+		return -1;
+	}
+
+	private void release(StringBuilder sb) {
+		if (sb.capacity() > MAX_BUFFER) {
+			buffer.remove();
+		}
+	}
+
+	/**
+	 * If more letters would not change the soundex.
+	 */
+	private boolean isComplete(String code) {
+		return code.indexOf('0') < 0;
+	}
+
+	/**
+	 * The soundex of a word from the memo, ignoring a leading separator as
+	 * the soundex would.
+	 */
+	private String encode(CharSequence clean, int start, int end) {
+		if (start < end && clean.charAt(start) == ' ') {
+			start++;
+		}
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + clean.charAt(i);
+		}
+		int idx = (hash ^ (hash >>> 16)) & (MEMO_SIZE - 1);
+		Memo m = memo[idx];
+		if (m != null && m.word.length == end - start
+				&& regionMatches(clean, start, m.word)) {
+			return m.code;
+		}
+		char[] word = new char[end - start];
+		for (int i = start; i < end; i++) {
+			word[i - start] = clean.charAt(i);
+		}
+		String code = encode(new String(word));
+		memo[idx] = new Memo(word, code);
+		return code;
+	}
+
 	private String encode(String word) {
 		String encoded = soundex.encode(word);
 		if (encoded != null && encoded.length() > 0)
@@ -67,6 +67,13 @@ public class PhoneHelperFactory {
 		Set<Character> punctuation = readCharacter("META-INF/org.callimachusproject.sail.keyword.punctuation");
 		Map<Character, Character> substitutes = readInverseMap("META-INF/org.callimachusproject.sail.keyword.substitutions");
 		Map<Character, Set<Character>> substitutable = readMap("META-INF/org.callimachusproject.sail.keyword.substitutions");
+		return createPhoneHelper(linking, suffix, punctuation, substitutes, substitutable);
+	}
+
+	protected PhoneHelper createPhoneHelper(Set<String> linking,
+			Set<String> suffix, Set<Character> punctuation,
+			Map<Character, Character> substitutes,
+			Map<Character, Set<Character>> substitutable) {
 		return new PhoneHelper(linking, suffix, punctuation, substitutes, substitutable);
 	}
 
@@ -28,10 +28,14 @@
  */
 package org.callimachusproject.sail.keyword.config;
 
+import static org.callimachusproject.sail.keyword.config.KeywordSchema.BACKGROUND_REINDEX;
 import static org.callimachusproject.sail.keyword.config.KeywordSchema.ENABLED;
 import static org.callimachusproject.sail.keyword.config.KeywordSchema.KEYWORD_PROPERTY;
 import static org.callimachusproject.sail.keyword.config.KeywordSchema.PHONE_GRAPH;
 import static org.callimachusproject.sail.keyword.config.KeywordSchema.PHONE_PROPERTY;
+import static org.callimachusproject.sail.keyword.config.KeywordSchema.RANK_LIMIT;
+import static org.callimachusproject.sail.keyword.config.KeywordSchema.REINDEX_BATCH_SIZE;
+import static org.callimachusproject.sail.keyword.config.KeywordSchema.REINDEX_THREADS;
 
 import java.util.HashSet;
 import java.util.Set;
@@ -68,6 +72,10 @@ public class KeywordConfig extends DelegatingSailImplConfigBase {
 	private Set<URI> keywordProperties;
 	private URI phoneProperty;
 	private URI phoneGraph;
+	private Boolean backgroundReindex;
+	private Integer reindexBatchSize;
+	private Integer reindexThreads;
+	private Integer rankLimit;
 
 	public boolean isEnabled() {
 		return enabled == null ? true : enabled;
@@ -101,6 +109,38 @@ public class KeywordConfig extends DelegatingSailImplConfigBase {
 		this.phoneGraph = phoneGraph;
 	}
 
+	public boolean isBackgroundReindex() {
+		return backgroundReindex == null ? false : backgroundReindex;
+	}
+
+	public void setBackgroundReindex(boolean backgroundReindex) {
+		this.backgroundReindex = backgroundReindex;
+	}
+
+	public Integer getReindexBatchSize() {
+		return reindexBatchSize;
+	}
+
+	public void setReindexBatchSize(Integer reindexBatchSize) {
+		this.reindexBatchSize = reindexBatchSize;
+	}
+
+	public Integer getReindexThreads() {
+		return reindexThreads;
+	}
+
+	public void setReindexThreads(Integer reindexThreads) {
+		this.reindexThreads = reindexThreads;
+	}
+
+	public Integer getRankLimit() {
+		return rankLimit;
+	}
+
+	public void setRankLimit(Integer rankLimit) {
+		this.rankLimit = rankLimit;
+	}
+
 	@Override
 	public Resource export(Graph model) {
 		Resource self = super.export(model);
@@ -118,6 +158,18 @@ public class KeywordConfig extends DelegatingSailImplConfigBase {
 		if (phoneGraph != null) {
 			model.add(self, PHONE_GRAPH, phoneGraph);
 		}
+		if (backgroundReindex != null) {
+			model.add(self, BACKGROUND_REINDEX, vf.createLiteral(backgroundReindex));
+		}
+		if (reindexBatchSize != null) {
+			model.add(self, REINDEX_BATCH_SIZE, vf.createLiteral(reindexBatchSize));
+		}
+		if (reindexThreads != null) {
+			model.add(self, REINDEX_THREADS, vf.createLiteral(reindexThreads));
+		}
+		if (rankLimit != null) {
+			model.add(self, RANK_LIMIT, vf.createLiteral(rankLimit));
+		}
 		return self;
 	}
 
@@ -139,6 +191,22 @@ public class KeywordConfig extends DelegatingSailImplConfigBase {
 			Literal lit = (Literal) set.iterator().next();
 			enabled = lit.booleanValue();
 		}
+		Literal background = model.filter(implNode, BACKGROUND_REINDEX, null).objectLiteral();
+		if (background != null) {
+			backgroundReindex = background.booleanValue();
+		}
+		Literal batchSize = model.filter(implNode, REINDEX_BATCH_SIZE, null).objectLiteral();
+		if (batchSize != null) {
+			reindexBatchSize = batchSize.intValue();
+		}
+		Literal threads = model.filter(implNode, REINDEX_THREADS, null).objectLiteral();
+		if (threads != null) {
+			reindexThreads = threads.intValue();
+		}
+		Literal limit = model.filter(implNode, RANK_LIMIT, null).objectLiteral();
+		if (limit != null) {
+			rankLimit = limit.intValue();
+		}
 	}
 
 }
@@ -67,6 +67,16 @@ public class KeywordFactory implements SailFactory {
 		sail.setPhoneProperty(cfg.getPhoneProperty());
 		sail.setPhoneGraph(cfg.getPhoneGraph());
 		sail.setEnabled(cfg.isEnabled());
+		sail.setBackgroundReindex(cfg.isBackgroundReindex());
+		if (cfg.getReindexBatchSize() != null) {
+			sail.setReindexBatchSize(cfg.getReindexBatchSize());
+		}
+		if (cfg.getReindexThreads() != null) {
+			sail.setReindexThreads(cfg.getReindexThreads());
+		}
+		if (cfg.getRankLimit() != null) {
+			sail.setRankLimit(cfg.getRankLimit());
+		}
 		return sail;
 	}
 }
@@ -40,6 +40,10 @@ public class KeywordSchema {
 	public static final URI PHONE_PROPERTY = new URIImpl(NAMESPACE + "phoneProperty");
 	public static final URI PHONE_GRAPH = new URIImpl(NAMESPACE + "phoneGraph");
 	public static final URI KEYWORD_PROPERTY = new URIImpl(NAMESPACE + "keywordProperty");
+	public static final URI BACKGROUND_REINDEX = new URIImpl(NAMESPACE + "backgroundReindex");
+	public static final URI REINDEX_BATCH_SIZE = new URIImpl(NAMESPACE + "reindexBatchSize");
+	public static final URI REINDEX_THREADS = new URIImpl(NAMESPACE + "reindexThreads");
+	public static final URI RANK_LIMIT = new URIImpl(NAMESPACE + "rankLimit");
 
 	private KeywordSchema() {
 		// no constructor
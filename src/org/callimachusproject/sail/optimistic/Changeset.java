@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2013 3 Round Stones Inc., Some Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.callimachusproject.sail.optimistic;
+
+import org.openrdf.model.Model;
+
+/**
+ * The statements that a committed transaction added and removed, with the
+ * version of the store that includes them.
+ */
+class Changeset {
+	private final long version;
+	private final Model added;
+	private final Model removed;
+
+	public Changeset(long version, Model added, Model removed) {
+		this.version = version;
+		this.added = added;
+		this.removed = removed;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Statements that were not in the store before this version.
+	 */
+	public Model getAdded() {
+		return added;
+	}
+
+	/**
+	 * Statements that were in the store before this version.
+	 */
+	public Model getRemoved() {
+		return removed;
+	}
+
+	public String toString() {
+		return "Changeset " + version;
+	}
+}
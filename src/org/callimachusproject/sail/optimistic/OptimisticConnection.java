@@ -0,0 +1,676 @@
+/*
+ * Copyright (c) 2013 3 Round Stones Inc., Some Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.callimachusproject.sail.optimistic;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.CloseableIteratorIteration;
+import info.aduna.iteration.ExceptionConvertingIteration;
+import info.aduna.iteration.FilterIteration;
+import info.aduna.iteration.LookAheadIteration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openrdf.IsolationLevel;
+import org.openrdf.IsolationLevels;
+import org.openrdf.model.Model;
+import org.openrdf.model.Namespace;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.LinkedHashModel;
+import org.openrdf.model.impl.NamespaceImpl;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.QueryRoot;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.evaluation.EvaluationStrategy;
+import org.openrdf.query.algebra.evaluation.TripleSource;
+import org.openrdf.query.algebra.evaluation.impl.BindingAssigner;
+import org.openrdf.query.algebra.evaluation.impl.CompareOptimizer;
+import org.openrdf.query.algebra.evaluation.impl.ConjunctiveConstraintSplitter;
+import org.openrdf.query.algebra.evaluation.impl.ConstantOptimizer;
+import org.openrdf.query.algebra.evaluation.impl.DisjunctiveConstraintOptimizer;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStatistics;
+import org.openrdf.query.algebra.evaluation.impl.EvaluationStrategyImpl;
+import org.openrdf.query.algebra.evaluation.impl.FilterOptimizer;
+import org.openrdf.query.algebra.evaluation.impl.IterativeEvaluationOptimizer;
+import org.openrdf.query.algebra.evaluation.impl.OrderLimitOptimizer;
+import org.openrdf.query.algebra.evaluation.impl.QueryJoinOptimizer;
+import org.openrdf.query.algebra.evaluation.impl.QueryModelNormalizer;
+import org.openrdf.query.algebra.evaluation.impl.SameTermFilterOptimizer;
+import org.openrdf.query.impl.EmptyBindingSet;
+import org.openrdf.sail.SailConflictException;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.UpdateContext;
+import org.openrdf.sail.helpers.SailConnectionWrapper;
+
+/**
+ * Keeps the changes of a transaction until it commits and reads the snapshot
+ * of the store that the transaction started with, plus its own changes.
+ * Outside of a transaction, and while a transaction has no changes and no
+ * other transaction has committed since it started, reads go straight to the
+ * store. Until this connection ends its transaction, the sail keeps every
+ * changeset committed after its snapshot in memory.
+ */
+public class OptimisticConnection extends SailConnectionWrapper {
+
+	/** A statement pattern that was read or is to be removed */
+	private static class Pattern {
+		final Resource subj;
+		final URI pred;
+		final Value obj;
+		final Resource[] contexts;
+
+		Pattern(Resource subj, URI pred, Value obj, Resource... contexts) {
+			this.subj = subj;
+			this.pred = pred;
+			this.obj = obj;
+			this.contexts = contexts == null ? new Resource[0] : contexts;
+		}
+
+		boolean matches(Statement st) {
+			if (subj != null && !subj.equals(st.getSubject()))
+				return false;
+			if (pred != null && !pred.equals(st.getPredicate()))
+				return false;
+			if (obj != null && !obj.equals(st.getObject()))
+				return false;
+			return contexts.length == 0
+					|| Arrays.asList(contexts).contains(st.getContext());
+		}
+
+		public int hashCode() {
+			return Arrays.hashCode(new Object[] { subj, pred, obj })
+					+ Arrays.hashCode(contexts);
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Pattern))
+				return false;
+			Pattern p = (Pattern) o;
+			return Arrays.equals(new Object[] { subj, pred, obj },
+					new Object[] { p.subj, p.pred, p.obj })
+					&& Arrays.equals(contexts, p.contexts);
+		}
+
+		public String toString() {
+			return subj + " " + pred + " " + obj + " " + Arrays.asList(contexts);
+		}
+	}
+
+	private final OptimisticSail sail;
+	private final ValueFactory vf;
+	private boolean active;
+	private boolean serializable;
+	private long snapshot;
+	/** statements this transaction added that the store may not have */
+	private final Model added = new LinkedHashModel();
+	/** statements this transaction removed that the store may have */
+	private final Model removed = new LinkedHashModel();
+	/** patterns read by a serializable transaction */
+	private final Set<Pattern> read = new LinkedHashSet<Pattern>();
+	/** namespaces set or (if null) removed by this transaction */
+	private final Map<String, String> namespaces = new LinkedHashMap<String, String>();
+	private boolean namespacesCleared;
+	/** changes of the open update, applied when it ends */
+	private final List<Pattern> deleting = new ArrayList<Pattern>();
+	private final Model inserting = new LinkedHashModel();
+
+	public OptimisticConnection(OptimisticSail sail, SailConnection wrappedCon) {
+		super(wrappedCon);
+		this.sail = sail;
+		this.vf = sail.getValueFactory();
+	}
+
+	@Override
+	public void close() throws SailException {
+		try {
+			if (active) {
+				rollback();
+			}
+		} finally {
+			super.close();
+		}
+	}
+
+	@Override
+	public void begin() throws SailException {
+		begin(sail.getDefaultIsolationLevel());
+	}
+
+	@Override
+	public void begin(IsolationLevel level) throws SailException {
+		if (active)
+			throw new SailException("Connection already has an active transaction");
+		serializable = sail.isSerializable() || level != null
+				&& level.isCompatibleWith(IsolationLevels.SERIALIZABLE);
+		snapshot = sail.open();
+		active = true;
+	}
+
+	@Override
+	public boolean isActive() {
+		return active;
+	}
+
+	@Override
+	public void flush() throws SailException {
+		// changes are kept until commit, but an open update is applied
+		if (active) {
+			endUpdate(null);
+		}
+	}
+
+	@Override
+	public void prepare() throws SailException {
+		if (!active)
+			return;
+		endUpdate(null);
+		synchronized (sail.getCommitLock()) {
+			validate();
+		}
+	}
+
+	/**
+	 * Writes the changes to the store, unless another transaction has
+	 * committed a conflicting change since this transaction started. If it
+	 * has, a {@link SailConflictException} is thrown and the transaction stays
+	 * open to be rolled back (and retried).
+	 */
+	@Override
+	public void commit() throws SailException {
+		if (!active)
+			return;
+		endUpdate(null);
+		if (isChanged()) {
+			synchronized (sail.getCommitLock()) {
+				validate();
+				write();
+			}
+		}
+		end();
+	}
+
+	@Override
+	public void rollback() throws SailException {
+		if (active) {
+			end();
+		}
+	}
+
+	@Override
+	public CloseableIteration<? extends BindingSet, QueryEvaluationException> evaluate(
+			TupleExpr tupleExpr, Dataset dataset, BindingSet bindings,
+			final boolean includeInferred) throws SailException {
+		if (!active || !serializable && !isChanged()
+				&& sail.getChangesetsAfter(snapshot).isEmpty())
+			return super.evaluate(tupleExpr, dataset, bindings, includeInferred);
+		TripleSource source = new TripleSource() {
+			public CloseableIteration<? extends Statement, QueryEvaluationException> getStatements(
+					Resource subj, URI pred, Value obj, Resource... contexts)
+					throws QueryEvaluationException {
+				try {
+					return new ExceptionConvertingIteration<Statement, QueryEvaluationException>(
+							OptimisticConnection.this.getStatements(subj, pred,
+									obj, includeInferred, contexts)) {
+						protected QueryEvaluationException convert(Exception e) {
+							return new QueryEvaluationException(e);
+						}
+					};
+				} catch (SailException e) {
+					throw new QueryEvaluationException(e);
+				}
+			}
+
+			public ValueFactory getValueFactory() {
+				return vf;
+			}
+		};
+		tupleExpr = tupleExpr.clone();
+		if (!(tupleExpr instanceof QueryRoot)) {
+			tupleExpr = new QueryRoot(tupleExpr);
+		}
+		EvaluationStrategy strategy = new EvaluationStrategyImpl(source,
+				dataset, sail.getFederatedServiceResolver());
+		new BindingAssigner().optimize(tupleExpr, dataset, bindings);
+		new ConstantOptimizer(strategy).optimize(tupleExpr, dataset, bindings);
+		new CompareOptimizer().optimize(tupleExpr, dataset, bindings);
+		new ConjunctiveConstraintSplitter().optimize(tupleExpr, dataset, bindings);
+		new DisjunctiveConstraintOptimizer().optimize(tupleExpr, dataset, bindings);
+		new SameTermFilterOptimizer().optimize(tupleExpr, dataset, bindings);
+		new QueryModelNormalizer().optimize(tupleExpr, dataset, bindings);
+		new QueryJoinOptimizer(new EvaluationStatistics()).optimize(tupleExpr, dataset, bindings);
+		new IterativeEvaluationOptimizer().optimize(tupleExpr, dataset, bindings);
+		new FilterOptimizer().optimize(tupleExpr, dataset, bindings);
+		new OrderLimitOptimizer().optimize(tupleExpr, dataset, bindings);
+		try {
+			return strategy.evaluate(tupleExpr, EmptyBindingSet.getInstance());
+		} catch (QueryEvaluationException e) {
+			throw new SailException(e);
+		}
+	}
+
+	@Override
+	public CloseableIteration<? extends Statement, SailException> getStatements(
+			Resource subj, URI pred, Value obj, boolean includeInferred,
+			Resource... contexts) throws SailException {
+		if (active && serializable) {
+			read.add(new Pattern(subj, pred, obj, contexts));
+		}
+		// open the store before reading the changesets that it may include
+		final CloseableIteration<? extends Statement, SailException> stmts;
+		stmts = super.getStatements(subj, pred, obj, includeInferred, contexts);
+		if (!active)
+			return stmts;
+		List<Changeset> later = sail.getChangesetsAfter(snapshot);
+		if (later.isEmpty() && added.isEmpty() && removed.isEmpty())
+			return stmts;
+		// statements added (hidden) or removed (restored) since the snapshot
+		final Model hidden = new LinkedHashModel();
+		final Model restored = new LinkedHashModel();
+		for (Changeset cs : later) {
+			for (Statement st : cs.getAdded().filter(subj, pred, obj, contexts)) {
+				if (!contains(restored, st)) {
+					hidden.add(st);
+				}
+			}
+			for (Statement st : cs.getRemoved().filter(subj, pred, obj, contexts)) {
+				if (!contains(hidden, st)) {
+					restored.add(st);
+				}
+			}
+		}
+		final Model extra = new LinkedHashModel();
+		for (Statement st : restored) {
+			if (!contains(removed, st)) {
+				extra.add(st);
+			}
+		}
+		extra.addAll(added.filter(subj, pred, obj, contexts));
+		if (extra.isEmpty())
+			return new FilterIteration<Statement, SailException>(stmts) {
+				protected boolean accept(Statement st) {
+					return !contains(hidden, st) && !contains(removed, st);
+				}
+			};
+		// the store may not have applied the latest changeset yet, so the
+		// extra statements it returns are not returned again
+		return new LookAheadIteration<Statement, SailException>() {
+			private Iterator<Statement> rest;
+
+			protected Statement getNextElement() throws SailException {
+				while (stmts.hasNext()) {
+					Statement st = stmts.next();
+					if (contains(hidden, st) || contains(removed, st))
+						continue;
+					extra.remove(st.getSubject(), st.getPredicate(),
+							st.getObject(), st.getContext());
+					return st;
+				}
+				if (rest == null) {
+					rest = new ArrayList<Statement>(extra).iterator();
+				}
+				if (rest.hasNext())
+					return rest.next();
+				return null;
+			}
+
+			protected void handleClose() throws SailException {
+				try {
+					super.handleClose();
+				} finally {
+					stmts.close();
+				}
+			}
+		};
+	}
+
+	@Override
+	public long size(Resource... contexts) throws SailException {
+		if (!isSnapshotChanged())
+			return super.size(contexts);
+		CloseableIteration<? extends Statement, SailException> stmts;
+		stmts = getStatements(null, null, null, false, contexts);
+		try {
+			long size = 0;
+			while (stmts.hasNext()) {
+				stmts.next();
+				size++;
+			}
+			return size;
+		} finally {
+			stmts.close();
+		}
+	}
+
+	@Override
+	@Deprecated
+	public long size(Resource context) throws SailException {
+		return size(new Resource[] { context });
+	}
+
+	@Override
+	public CloseableIteration<? extends Resource, SailException> getContextIDs()
+			throws SailException {
+		if (!isSnapshotChanged())
+			return super.getContextIDs();
+		Set<Resource> candidates = new LinkedHashSet<Resource>();
+		CloseableIteration<? extends Resource, SailException> ids;
+		ids = super.getContextIDs();
+		try {
+			while (ids.hasNext()) {
+				candidates.add(ids.next());
+			}
+		} finally {
+			ids.close();
+		}
+		candidates.addAll(added.contexts());
+		for (Changeset cs : sail.getChangesetsAfter(snapshot)) {
+			candidates.addAll(cs.getRemoved().contexts());
+		}
+		List<Resource> contexts = new ArrayList<Resource>(candidates.size());
+		for (Resource ctx : candidates) {
+			if (ctx == null)
+				continue;
+			CloseableIteration<? extends Statement, SailException> stmts;
+			stmts = getStatements(null, null, null, false, ctx);
+			try {
+				if (stmts.hasNext()) {
+					contexts.add(ctx);
+				}
+			} finally {
+				stmts.close();
+			}
+		}
+		return new CloseableIteratorIteration<Resource, SailException>(
+				contexts.iterator());
+	}
+
+	@Override
+	public void addStatement(Resource subj, URI pred, Value obj,
+			Resource... contexts) throws SailException {
+		verifyIsActive();
+		for (Resource ctx : getContexts(contexts)) {
+			removed.remove(subj, pred, obj, ctx);
+			added.add(subj, pred, obj, ctx);
+		}
+	}
+
+	@Override
+	public void removeStatements(Resource subj, URI pred, Value obj,
+			Resource... contexts) throws SailException {
+		verifyIsActive();
+		List<Statement> list = new ArrayList<Statement>();
+		CloseableIteration<? extends Statement, SailException> stmts;
+		stmts = getStatements(subj, pred, obj, false, contexts);
+		try {
+			while (stmts.hasNext()) {
+				list.add(stmts.next());
+			}
+		} finally {
+			stmts.close();
+		}
+		for (Statement st : list) {
+			Resource ctx = st.getContext();
+			added.remove(st.getSubject(), st.getPredicate(), st.getObject(), ctx);
+			removed.add(st.getSubject(), st.getPredicate(), st.getObject(), ctx);
+		}
+	}
+
+	@Override
+	public void clear(Resource... contexts) throws SailException {
+		removeStatements(null, null, null, contexts);
+	}
+
+	@Override
+	public void startUpdate(UpdateContext uc) throws SailException {
+		verifyIsActive();
+	}
+
+	/**
+	 * The update reads the statements as they were before it started, so
+	 * its changes are applied when it ends.
+	 */
+	@Override
+	public void addStatement(UpdateContext uc, Resource subj, URI pred,
+			Value obj, Resource... contexts) throws SailException {
+		verifyIsActive();
+		for (Resource ctx : getContexts(contexts)) {
+			inserting.add(subj, pred, obj, ctx);
+		}
+	}
+
+	@Override
+	public void removeStatement(UpdateContext uc, Resource subj, URI pred,
+			Value obj, Resource... contexts) throws SailException {
+		verifyIsActive();
+		deleting.add(new Pattern(subj, pred, obj, contexts));
+	}
+
+	@Override
+	public void endUpdate(UpdateContext uc) throws SailException {
+		try {
+			for (Pattern p : deleting) {
+				removeStatements(p.subj, p.pred, p.obj, p.contexts);
+			}
+			for (Statement st : inserting) {
+				addStatement(st.getSubject(), st.getPredicate(),
+						st.getObject(), st.getContext());
+			}
+		} finally {
+			deleting.clear();
+			inserting.clear();
+		}
+	}
+
+	@Override
+	public CloseableIteration<? extends Namespace, SailException> getNamespaces()
+			throws SailException {
+		if (namespaces.isEmpty() && !namespacesCleared)
+			return super.getNamespaces();
+		Map<String, String> map = new LinkedHashMap<String, String>();
+		if (!namespacesCleared) {
+			CloseableIteration<? extends Namespace, SailException> iter;
+			iter = super.getNamespaces();
+			try {
+				while (iter.hasNext()) {
+					Namespace ns = iter.next();
+					map.put(ns.getPrefix(), ns.getName());
+				}
+			} finally {
+				iter.close();
+			}
+		}
+		map.putAll(namespaces);
+		List<Namespace> list = new ArrayList<Namespace>(map.size());
+		for (Map.Entry<String, String> e : map.entrySet()) {
+			if (e.getValue() != null) {
+				list.add(new NamespaceImpl(e.getKey(), e.getValue()));
+			}
+		}
+		return new CloseableIteratorIteration<Namespace, SailException>(
+				list.iterator());
+	}
+
+	@Override
+	public String getNamespace(String prefix) throws SailException {
+		if (namespaces.containsKey(prefix))
+			return namespaces.get(prefix);
+		if (namespacesCleared)
+			return null;
+		return super.getNamespace(prefix);
+	}
+
+	@Override
+	public void setNamespace(String prefix, String name) throws SailException {
+		verifyIsActive();
+		namespaces.put(prefix, name);
+	}
+
+	@Override
+	public void removeNamespace(String prefix) throws SailException {
+		verifyIsActive();
+		namespaces.put(prefix, null);
+	}
+
+	@Override
+	public void clearNamespaces() throws SailException {
+		verifyIsActive();
+		namespaces.clear();
+		namespacesCleared = true;
+	}
+
+	public String toString() {
+		return sail.toString() + "#" + snapshot;
+	}
+
+	private void verifyIsActive() throws SailException {
+		if (!active)
+			throw new SailException("Connection does not have an active transaction");
+	}
+
+	private boolean isChanged() {
+		return !added.isEmpty() || !removed.isEmpty() || !namespaces.isEmpty()
+				|| namespacesCleared;
+	}
+
+	private boolean isSnapshotChanged() {
+		return active && (!added.isEmpty() || !removed.isEmpty()
+				|| !sail.getChangesetsAfter(snapshot).isEmpty());
+	}
+
+	/**
+	 * Checks the changesets committed since the snapshot for statements this
+	 * transaction also changed or, if serializable, read.
+	 */
+	private void validate() throws SailException {
+		for (Changeset cs : sail.getChangesetsAfter(snapshot)) {
+			for (Model changes : Arrays.asList(cs.getAdded(), cs.getRemoved())) {
+				for (Statement st : changes) {
+					if (contains(added, st) || contains(removed, st))
+						throw new SailConflictException("Concurrent change to " + st);
+					for (Pattern p : read) {
+						if (p.matches(st))
+							throw new SailConflictException("Concurrent change to " + st
+									+ " read as " + p);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Publishes the statements that change the store and writes them in its
+	 * own transaction. Must be called while holding the commit lock.
+	 */
+	private void write() throws SailException {
+		SailConnection con = getWrappedConnection();
+		Changeset cs = null;
+		con.begin();
+		try {
+			Model effectiveAdded = new LinkedHashModel();
+			Model effectiveRemoved = new LinkedHashModel();
+			for (Statement st : removed) {
+				if (isStored(st)) {
+					effectiveRemoved.add(st);
+				}
+			}
+			for (Statement st : added) {
+				if (!isStored(st)) {
+					effectiveAdded.add(st);
+				}
+			}
+			cs = sail.publish(effectiveAdded, effectiveRemoved);
+			for (Statement st : effectiveRemoved) {
+				con.removeStatements(st.getSubject(), st.getPredicate(),
+						st.getObject(), st.getContext());
+			}
+			for (Statement st : effectiveAdded) {
+				con.addStatement(st.getSubject(), st.getPredicate(),
+						st.getObject(), st.getContext());
+			}
+			if (namespacesCleared) {
+				con.clearNamespaces();
+			}
+			for (Map.Entry<String, String> e : namespaces.entrySet()) {
+				if (e.getValue() == null) {
+					con.removeNamespace(e.getKey());
+				} else {
+					con.setNamespace(e.getKey(), e.getValue());
+				}
+			}
+			con.commit();
+			sail.written(cs);
+			cs = null;
+		} finally {
+			if (cs != null) {
+				sail.discard(cs);
+			}
+			if (con.isActive()) {
+				con.rollback();
+			}
+		}
+	}
+
+	private void end() {
+		added.clear();
+		removed.clear();
+		read.clear();
+		namespaces.clear();
+		namespacesCleared = false;
+		deleting.clear();
+		inserting.clear();
+		active = false;
+		sail.close(snapshot);
+	}
+
+	/**
+	 * If the store currently has the statement.
+	 */
+	private boolean isStored(Statement st) throws SailException {
+		CloseableIteration<? extends Statement, SailException> stmts;
+		stmts = getWrappedConnection().getStatements(st.getSubject(),
+				st.getPredicate(), st.getObject(), false, st.getContext());
+		try {
+			return stmts.hasNext();
+		} finally {
+			stmts.close();
+		}
+	}
+
+	private boolean contains(Model model, Statement st) {
+		return model.contains(st.getSubject(), st.getPredicate(),
+				st.getObject(), st.getContext());
+	}
+
+	private Resource[] getContexts(Resource... contexts) {
+		if (contexts == null || contexts.length == 0)
+			return new Resource[] { null };
+		return contexts;
+	}
+}
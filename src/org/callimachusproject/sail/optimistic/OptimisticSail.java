@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2013 3 Round Stones Inc., Some Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.callimachusproject.sail.optimistic;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.openrdf.IsolationLevel;
+import org.openrdf.IsolationLevels;
+import org.openrdf.model.Model;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.Dataset;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.evaluation.federation.FederatedServiceResolver;
+import org.openrdf.query.algebra.evaluation.federation.FederatedServiceResolverImpl;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.helpers.SailConnectionWrapper;
+import org.openrdf.sail.helpers.SailWrapper;
+
+/**
+ * Gives each transaction a consistent snapshot of the store without holding
+ * any lock on it. Changes are kept in the connection until commit, when they
+ * are checked against the transactions that committed since the snapshot was
+ * taken and written to the store in one short transaction. A transaction that
+ * changed a statement that another transaction has since changed (or, when
+ * serializable, read a pattern that another has since changed) fails with a
+ * {@link org.openrdf.sail.SailConflictException} and can be retried.
+ * 
+ * Readers undo the changesets committed after their snapshot, so the
+ * changesets are kept in memory until no open transaction is older than them:
+ * a connection left open in a transaction pins every later changeset. Queries
+ * on a changed snapshot are evaluated here, so this sail belongs beneath
+ * sails that evaluate their own patterns, such as the keyword sail, and
+ * refuses connections to a sail stack that does so beneath it.
+ */
+public class OptimisticSail extends SailWrapper {
+	/** held while a transaction is validated and written to the store */
+	private final Object commitLock = new Object();
+	/** changesets that some open transaction may not include */
+	private final LinkedList<Changeset> changesets = new LinkedList<Changeset>();
+	/** number of open transactions on each snapshot version */
+	private final TreeMap<Long, Integer> snapshots = new TreeMap<Long, Integer>();
+	/** last version that was written to the store */
+	private long version;
+	/** last version that was given to a changeset */
+	private long published;
+	private boolean serializable;
+	private FederatedServiceResolver serviceResolver;
+	private FederatedServiceResolverImpl dependentServiceResolver;
+
+	public OptimisticSail() {
+		super();
+	}
+
+	public OptimisticSail(Sail baseSail) {
+		super(baseSail);
+	}
+
+	public boolean isSerializable() {
+		return serializable;
+	}
+
+	/**
+	 * If every transaction should fail when a pattern it read was changed by
+	 * another transaction, not only when they change the same statement.
+	 */
+	public void setSerializable(boolean serializable) {
+		this.serializable = serializable;
+	}
+
+	@Override
+	public List<IsolationLevel> getSupportedIsolationLevels() {
+		return Arrays.<IsolationLevel> asList(IsolationLevels.SNAPSHOT,
+				IsolationLevels.SERIALIZABLE);
+	}
+
+	@Override
+	public IsolationLevel getDefaultIsolationLevel() {
+		if (serializable)
+			return IsolationLevels.SERIALIZABLE;
+		return IsolationLevels.SNAPSHOT;
+	}
+
+	@Override
+	public synchronized void setFederatedServiceResolver(
+			FederatedServiceResolver resolver) {
+		this.serviceResolver = resolver;
+		super.setFederatedServiceResolver(resolver);
+	}
+
+	/**
+	 * Used to evaluate SERVICE clauses of queries that read a snapshot.
+	 */
+	public synchronized FederatedServiceResolver getFederatedServiceResolver() {
+		if (serviceResolver == null) {
+			if (dependentServiceResolver == null) {
+				dependentServiceResolver = new FederatedServiceResolverImpl();
+			}
+			return dependentServiceResolver;
+		}
+		return serviceResolver;
+	}
+
+	@Override
+	public void shutDown() throws SailException {
+		try {
+			super.shutDown();
+		} finally {
+			synchronized (this) {
+				if (dependentServiceResolver != null) {
+					dependentServiceResolver.shutDown();
+					dependentServiceResolver = null;
+				}
+				changesets.clear();
+				snapshots.clear();
+			}
+		}
+	}
+
+	@Override
+	public SailConnection getConnection() throws SailException {
+		SailConnection con = super.getConnection();
+		if (isEvaluatedBeneath(con)) {
+			con.close();
+			throw new SailException("Sails that evaluate their own queries,"
+					+ " such as the keyword sail, must be stacked above "
+					+ this);
+		}
+		return new OptimisticConnection(this, con);
+	}
+
+	/**
+	 * Held by a connection while it validates and writes its changes, so
+	 * commits are serialised, but readers are not.
+	 */
+	Object getCommitLock() {
+		return commitLock;
+	}
+
+	/**
+	 * Opens a transaction on the last version written to the store.
+	 * 
+	 * @return the snapshot version of the transaction
+	 */
+	synchronized long open() {
+		Integer count = snapshots.get(version);
+		snapshots.put(version, count == null ? 1 : count + 1);
+		return version;
+	}
+
+	/**
+	 * Closes a transaction opened with the given snapshot version.
+	 */
+	synchronized void close(long snapshot) {
+		Integer count = snapshots.get(snapshot);
+		if (count == null || count <= 1) {
+			snapshots.remove(snapshot);
+		} else {
+			snapshots.put(snapshot, count - 1);
+		}
+		prune();
+	}
+
+	/**
+	 * The changesets that are not part of the given snapshot, oldest first.
+	 */
+	synchronized List<Changeset> getChangesetsAfter(long snapshot) {
+		if (changesets.isEmpty() || changesets.getLast().getVersion() <= snapshot)
+			return new ArrayList<Changeset>(0);
+		List<Changeset> list = new ArrayList<Changeset>();
+		Iterator<Changeset> iter = changesets.descendingIterator();
+		while (iter.hasNext()) {
+			Changeset cs = iter.next();
+			if (cs.getVersion() <= snapshot)
+				break;
+			list.add(0, cs);
+		}
+		return list;
+	}
+
+	/**
+	 * Makes the changes visible to readers before they are written to the
+	 * store, so a reader undoes them whether or not the store has them yet.
+	 * Must be called while holding the commit lock.
+	 */
+	synchronized Changeset publish(Model added, Model removed) {
+		Changeset cs = new Changeset(++published, added, removed);
+		changesets.add(cs);
+		return cs;
+	}
+
+	/**
+	 * The changes are in the store and new transactions include them.
+	 */
+	synchronized void written(Changeset cs) {
+		version = cs.getVersion();
+		prune();
+	}
+
+	/**
+	 * The changes could not be written to the store.
+	 */
+	synchronized void discard(Changeset cs) {
+		changesets.remove(cs);
+		published = version;
+	}
+
+	/**
+	 * If a connection wrapper beneath would evaluate queries differently than
+	 * the snapshot triple source of {@link OptimisticConnection}.
+	 */
+	private boolean isEvaluatedBeneath(SailConnection con) {
+		while (con instanceof SailConnectionWrapper) {
+			try {
+				Method evaluate = con.getClass().getMethod("evaluate",
+						TupleExpr.class, Dataset.class, BindingSet.class,
+						Boolean.TYPE);
+				if (evaluate.getDeclaringClass() != SailConnectionWrapper.class)
+					return true;
+			} catch (NoSuchMethodException e) {
+				throw new AssertionError(e);
+			}
+			con = ((SailConnectionWrapper) con).getWrappedConnection();
+		}
+		return false;
+	}
+
+	private void prune() {
+		long oldest = snapshots.isEmpty() ? version : snapshots.firstKey();
+		while (!changesets.isEmpty()
+				&& changesets.getFirst().getVersion() <= oldest) {
+			changesets.removeFirst();
+		}
+	}
+
+	public String toString() {
+		return String.valueOf(getDataDir());
+	}
+}
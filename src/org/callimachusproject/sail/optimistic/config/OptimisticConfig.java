@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2013 3 Round Stones Inc., Some Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.callimachusproject.sail.optimistic.config;
+
+import static org.callimachusproject.sail.optimistic.config.OptimisticSchema.SERIALIZABLE;
+
+import org.openrdf.model.Graph;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Model;
+import org.openrdf.model.Resource;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.LinkedHashModel;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.sail.config.DelegatingSailImplConfigBase;
+import org.openrdf.sail.config.SailConfigException;
+import org.openrdf.sail.config.SailImplConfig;
+
+/**
+ * Optimistic SAIL configuration bean
+ */
+public class OptimisticConfig extends DelegatingSailImplConfigBase {
+	private final ValueFactory vf = ValueFactoryImpl.getInstance();
+
+	public OptimisticConfig() {
+		super(OptimisticFactory.SAIL_TYPE);
+	}
+
+	public OptimisticConfig(SailImplConfig delegate) {
+		super(OptimisticFactory.SAIL_TYPE, delegate);
+	}
+
+	private Boolean serializable;
+
+	public boolean isSerializable() {
+		return serializable == null ? false : serializable;
+	}
+
+	public void setSerializable(boolean serializable) {
+		this.serializable = serializable;
+	}
+
+	@Override
+	public Resource export(Graph model) {
+		Resource self = super.export(model);
+		if (serializable != null) {
+			model.add(self, SERIALIZABLE, vf.createLiteral(serializable));
+		}
+		return self;
+	}
+
+	@Override
+	public void parse(Graph graph, Resource implNode)
+			throws SailConfigException {
+		super.parse(graph, implNode);
+		Model model = new LinkedHashModel(graph);
+		Literal lit = model.filter(implNode, SERIALIZABLE, null).objectLiteral();
+		if (lit != null) {
+			serializable = lit.booleanValue();
+		}
+	}
+
+}
@@ -1,33 +1,48 @@
 package org.callimachusproject.sail.optimistic.config;
 
+import org.callimachusproject.sail.optimistic.OptimisticSail;
 import org.openrdf.sail.Sail;
-import org.openrdf.sail.config.DelegatingSailImplConfigBase;
 import org.openrdf.sail.config.SailConfigException;
 import org.openrdf.sail.config.SailFactory;
 import org.openrdf.sail.config.SailImplConfig;
-import org.openrdf.sail.helpers.SailWrapper;
 
 /**
- * Dummy factory that just produces a do-nothing wrapper.
+ * Creates an {@link OptimisticSail} that gives each transaction a snapshot and
+ * checks its changes for conflicts when it commits.
  * 
  * @author James Leigh
  * 
  */
 public class OptimisticFactory implements SailFactory {
 
+	/**
+	 * The type of repositories that are created by this factory.
+	 * 
+	 * @see SailFactory#getSailType()
+	 */
+	public static final String SAIL_TYPE = "openrdf:OptimisticSail";
+
 	@Override
 	public String getSailType() {
-		return "openrdf:OptimisticSail";
+		return SAIL_TYPE;
 	}
 
 	@Override
 	public SailImplConfig getConfig() {
-		return new DelegatingSailImplConfigBase(getSailType());
+		return new OptimisticConfig();
 	}
 
 	@Override
 	public Sail getSail(SailImplConfig config) throws SailConfigException {
-		return new SailWrapper();
+		if (!SAIL_TYPE.equals(config.getType())) {
+			throw new SailConfigException("Invalid Sail type: "
+					+ config.getType());
+		}
+		OptimisticSail sail = new OptimisticSail();
+		if (config instanceof OptimisticConfig) {
+			sail.setSerializable(((OptimisticConfig) config).isSerializable());
+		}
+		return sail;
 	}
 
 }
@@ -73,6 +73,48 @@ public class SystemProperties {
 		return 1000;
 	}
 
+	public static int getRenderedPageCacheSize() {
+		String size = getProperty("org.callimachusproject.engine.pageCacheSize");
+		if (size != null && Pattern.matches("\\d+", size))
+			return Math.abs(Integer.parseInt(size));
+		return 256;
+	}
+
+	public static File getRenderedPageCacheDirectory() {
+		String dir = getProperty("org.callimachusproject.engine.pageCacheDir");
+		if (dir == null || dir.length() == 0)
+			return null;
+		return new File(dir);
+	}
+
+	public static int getTemplateFreshness() {
+		String seconds = getProperty("org.callimachusproject.engine.templateFreshness");
+		if (seconds != null && Pattern.matches("\\d+", seconds))
+			return Math.abs(Integer.parseInt(seconds));
+		return 0;
+	}
+
+	public static int getQueryResultCacheSize() {
+		String size = getProperty("org.callimachusproject.engine.queryCacheSize");
+		if (size != null && Pattern.matches("\\d+", size))
+			return Math.abs(Integer.parseInt(size));
+		return 256;
+	}
+
+	public static int getQueryResultCacheRows() {
+		String rows = getProperty("org.callimachusproject.engine.queryCacheRows");
+		if (rows != null && Pattern.matches("\\d+", rows))
+			return Math.abs(Integer.parseInt(rows));
+		return 10000;
+	}
+
+	public static int getPreparedQueryPoolSize() {
+		String size = getProperty("org.callimachusproject.engine.preparedQueryPoolSize");
+		if (size != null && Pattern.matches("\\d+", size))
+			return Math.abs(Integer.parseInt(size));
+		return 128;
+	}
+
 	public static Header[] getStaticResponseHeaders() {
 		String headers = System.getProperty("org.callimachusproject.auth.headers");
 		if (headers == null)
@@ -19,13 +19,13 @@ package org.callimachusproject.xproc;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.net.URI;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
-import javax.xml.stream.XMLEventReader;
 import javax.xml.transform.stream.StreamSource;
 
 import net.sf.saxon.s9api.DocumentBuilder;
@@ -147,10 +147,12 @@ public class RenderStep implements XProcStep {
 		Reader template = asReader(t);
 		Template tem = engine.getTemplate(template, tempId);
 		TupleQueryResult source = asTupleQueryResult(s);
-		Reader result = asReader(tem.render(source), resolve(outputBase));
+		StringWriter result = new StringWriter();
+		tem.render(source, result);
 
 		DocumentBuilder xdmBuilder = newDocumentBuilder();
-		XdmNode xformed = xdmBuilder.build(new StreamSource(result));
+		XdmNode xformed = xdmBuilder.build(new StreamSource(new StringReader(
+				result.toString())));
 
 		if (xformed != null
 				&& outputBase != null && outputBase.length() > 0
@@ -198,13 +200,6 @@ public class RenderStep implements XProcStep {
 		return (TupleQueryResult) result;
 	}
 
-	private Reader asReader(XMLEventReader xml, String base)
-			throws IOException, FluidException {
-		Fluid fluid = fb.consume(xml, base, XMLEventReader.class,
-				"application/xml");
-		return fluid.asReader();
-	}
-
 	private DocumentBuilder newDocumentBuilder() {
 		return runtime.getConfiguration().getProcessor().newDocumentBuilder();
 	}
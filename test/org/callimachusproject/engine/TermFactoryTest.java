@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2013 3 Round Stones Inc., Some Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.callimachusproject.engine;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.callimachusproject.engine.impl.TermFactoryImpl;
+import org.callimachusproject.engine.model.TermFactory;
+
+public class TermFactoryTest extends TestCase {
+	private static final int MAX_MEMO = 1024;
+	private static final int THREADS = 8;
+	private static final int PREFIXES = 50;
+
+	public void testBaseStartsFreshMemo() throws Exception {
+		TermFactory tf = TermFactory.newInstance("http://example.com/a/");
+		assertEquals("http://example.com/a/x", tf.resolve("x"));
+		Map<?, ?> memo = getResolvedMemo(tf);
+		assertTrue(memo.containsKey("x"));
+		assertEquals("http://example.com/b/", tf.base("../b/").stringValue());
+		assertNotSame(memo, getResolvedMemo(tf));
+		assertFalse(getResolvedMemo(tf).containsKey("x"));
+		assertEquals("http://example.com/b/x", tf.resolve("x"));
+	}
+
+	public void testPrefixSharesMemo() throws Exception {
+		TermFactory tf = TermFactory.newInstance("http://example.com/a/");
+		assertEquals("http://example.com/a/x", tf.resolve("x"));
+		Map<?, ?> memo = getResolvedMemo(tf);
+		tf.prefix("ex", "ns#");
+		assertSame(memo, getResolvedMemo(tf));
+		assertEquals("http://example.com/a/x", tf.resolve("x"));
+		assertEquals("http://example.com/a/ns#", tf.curie("ex", "y").getNamespaceURI());
+	}
+
+	public void testBaseKeepsPrefixes() throws Exception {
+		TermFactory tf = TermFactory.newInstance("http://example.com/a/");
+		tf.prefix("ex", "ns#");
+		tf.base("http://example.org/");
+		assertEquals("http://example.com/a/ns#", tf.curie("ex", "y").getNamespaceURI());
+		assertEquals("http://example.org/ns#", tf.prefix("org", "ns#").stringValue());
+	}
+
+	public void testConcurrentPrefixes() throws Throwable {
+		for (int round = 0; round < 20; round++) {
+			final TermFactory tf = TermFactory.newInstance("http://example.com/");
+			final CountDownLatch start = new CountDownLatch(1);
+			final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+			List<Thread> threads = new ArrayList<Thread>(THREADS);
+			for (int t = 0; t < THREADS; t++) {
+				final int offset = t * PREFIXES;
+				Thread thread = new Thread(new Runnable() {
+					public void run() {
+						try {
+							start.await();
+							for (int i = offset; i < offset + PREFIXES; i++) {
+								tf.prefix("p" + i, "ns" + i + "#");
+							}
+						} catch (Throwable e) {
+							failure.set(e);
+						}
+					}
+				});
+				thread.start();
+				threads.add(thread);
+			}
+			start.countDown();
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			if (failure.get() != null)
+				throw failure.get();
+			for (int i = 0; i < THREADS * PREFIXES; i++) {
+				assertEquals("http://example.com/ns" + i + "#",
+						tf.curie("p" + i, "x").getNamespaceURI());
+			}
+		}
+	}
+
+	public void testCanonicalMemoCleared() throws Exception {
+		Map<?, ?> canonical = getCanonicalMemo();
+		for (int i = 0; i < MAX_MEMO * 3; i++) {
+			TermFactory tf = TermFactory.newInstance("HTTP://Example.COM:80/" + i
+					+ "/a/../b");
+			assertEquals("http://example.com/" + i + "/b", tf.getSystemId());
+			assertTrue(canonical.size() <= MAX_MEMO);
+		}
+		TermFactory tf = TermFactory.newInstance("HTTP://Example.COM:80/a/../b");
+		assertEquals("http://example.com/b", tf.getSystemId());
+	}
+
+	public void testResolvedMemoCleared() throws Exception {
+		TermFactory tf = TermFactory.newInstance("http://example.com/");
+		for (int i = 0; i < MAX_MEMO * 3; i++) {
+			assertEquals("http://example.com/" + i, tf.resolve(String.valueOf(i)));
+			assertTrue(getResolvedMemo(tf).size() <= MAX_MEMO);
+		}
+		assertEquals("http://example.com/0", tf.resolve("0"));
+	}
+
+	private Map<?, ?> getResolvedMemo(TermFactory tf) throws Exception {
+		Field field = TermFactoryImpl.class.getDeclaredField("scope");
+		field.setAccessible(true);
+		Object scope = ((AtomicReference<?>) field.get(tf)).get();
+		Field resolved = scope.getClass().getDeclaredField("resolved");
+		resolved.setAccessible(true);
+		return (Map<?, ?>) resolved.get(scope);
+	}
+
+	private Map<?, ?> getCanonicalMemo() throws Exception {
+		Field field = TermFactoryImpl.class.getDeclaredField("canonical");
+		field.setAccessible(true);
+		return (Map<?, ?>) field.get(null);
+	}
+}
@@ -439,4 +439,91 @@ public class TestParameterizedQueries extends TestCase {
 		result.close();
 	}
 
+	public void testCachedUntilInvalidated() throws Exception {
+		String sparql = PREFIX + "# @Cache-Control: max-age=60\n"
+				+ "SELECT * { ?thing rdfs:label \"$label\" }";
+		Map<String, String> parameters = Collections.singletonMap("label", "Thing1");
+		QueryResultCache cache = QueryResultCache.getInstance();
+		cache.watch(repo);
+
+		con.add(vf.createURI("urn:test:thing1"), RDFS.LABEL, vf.createLiteral("Thing1"));
+		ParameterizedQuery query = parser.parseQuery(sparql, EXAMPLE_COM);
+		TupleQueryResult result = query.evaluate(parameters, con);
+		assertEquals("urn:test:thing1", result.next().getValue("thing").stringValue());
+		assertFalse(result.hasNext());
+		result.close();
+		con.add(vf.createURI("urn:test:thing2"), RDFS.LABEL, vf.createLiteral("Thing1"));
+		long hits = cache.getHitCount();
+		result = query.evaluate(parameters, con);
+		assertEquals(hits + 1, cache.getHitCount());
+		assertEquals("urn:test:thing1", result.next().getValue("thing").stringValue());
+		assertFalse(result.hasNext());
+		result.close();
+		cache.invalidate(repo);
+		result = query.evaluate(parameters, con);
+		assertTrue(result.hasNext());
+		result.next();
+		assertTrue(result.hasNext());
+		result.close();
+	}
+
+	public void testNotCachedUnlessWatched() throws Exception {
+		String sparql = PREFIX + "# @Cache-Control: max-age=60\n"
+				+ "SELECT * { ?thing rdfs:label \"$label\" }";
+		Map<String, String> parameters = Collections.singletonMap("label", "Thing1");
+		QueryResultCache cache = QueryResultCache.getInstance();
+		assertFalse(cache.isWatched(repo));
+
+		con.add(vf.createURI("urn:test:thing1"), RDFS.LABEL, vf.createLiteral("Thing1"));
+		ParameterizedQuery query = parser.parseQuery(sparql, EXAMPLE_COM);
+		long hits = cache.getHitCount();
+		long misses = cache.getMissCount();
+		TupleQueryResult result = query.evaluate(parameters, con);
+		assertTrue(result.hasNext());
+		result.close();
+		con.add(vf.createURI("urn:test:thing2"), RDFS.LABEL, vf.createLiteral("Thing1"));
+		result = query.evaluate(parameters, con);
+		assertTrue(result.hasNext());
+		result.next();
+		assertTrue(result.hasNext());
+		result.close();
+		assertEquals(hits, cache.getHitCount());
+		assertEquals(misses, cache.getMissCount());
+	}
+
+	public void testPreparedQueryReused() throws Exception {
+		String sparql = PREFIX + "SELECT ?thing { ?thing rdfs:label \"$label\" }";
+		PreparedQueryPool pool = PreparedQueryPool.getInstance();
+
+		con.add(vf.createURI("urn:test:thing1"), RDFS.LABEL, vf.createLiteral("Thing1"));
+		con.add(vf.createURI("urn:test:thing2"), RDFS.LABEL, vf.createLiteral("Thing2"));
+		ParameterizedQuery query = parser.parseQuery(sparql, EXAMPLE_COM);
+		TupleQueryResult result = query.evaluate(Collections.singletonMap("label", "Thing1"), con);
+		assertEquals("urn:test:thing1", result.next().getValue("thing").stringValue());
+		result.close();
+		long hits = pool.getHitCount();
+		result = query.evaluate(Collections.singletonMap("label", "Thing2"), con);
+		assertEquals(hits + 1, pool.getHitCount());
+		assertEquals("urn:test:thing2", result.next().getValue("thing").stringValue());
+		assertFalse(result.hasNext());
+		result.close();
+		SailRepositoryConnection other = repo.getConnection();
+		try {
+			hits = pool.getHitCount();
+			result = query.evaluate(Collections.singletonMap("label", "Thing1"), other);
+			assertEquals(hits + 1, pool.getHitCount());
+			assertEquals("urn:test:thing1", result.next().getValue("thing").stringValue());
+			result.close();
+		} finally {
+			other.close();
+		}
+	}
+
+	public void testMaxAge() throws Exception {
+		assertEquals(0, QueryResultCache.getMaxAge(null));
+		assertEquals(60, QueryResultCache.getMaxAge("max-age=60"));
+		assertEquals(30, QueryResultCache.getMaxAge("max-age=60, s-maxage=30"));
+		assertEquals(0, QueryResultCache.getMaxAge("no-store, max-age=60"));
+	}
+
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2013 3 Round Stones Inc., Some Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.callimachusproject.engine;
+
+import info.aduna.io.FileUtil;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+public class TestRenderedPageCache extends TestCase {
+	private File dir;
+
+	public void setUp() throws Exception {
+		dir = FileUtil.createTempDir("pages");
+	}
+
+	public void tearDown() throws Exception {
+		if (dir.exists()) {
+			FileUtil.deleteDir(dir);
+		}
+	}
+
+	public void testUnknownRevision() throws Exception {
+		RenderedPageCache cache = new RenderedPageCache(2, null);
+		assertNull(cache.key("digest", "http://example.com/", null, "text/html", "view"));
+	}
+
+	public void testRevisionChangesKey() throws Exception {
+		RenderedPageCache cache = new RenderedPageCache(2, null);
+		String first = cache.key("digest", "http://example.com/", "1", "text/html", "view");
+		String second = cache.key("digest", "http://example.com/", "2", "text/html", "view");
+		cache.putString(first, "<p>first</p>");
+		assertEquals("<p>first</p>", cache.getString(first));
+		assertNull(cache.getString(second));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	public void testEvictedToDisk() throws Exception {
+		RenderedPageCache cache = new RenderedPageCache(1, dir);
+		String a = cache.key("digest", "http://example.com/a", "1", "text/html", "view");
+		String b = cache.key("digest", "http://example.com/b", "1", "text/html", "view");
+		cache.putString(a, "<p>a</p>");
+		cache.putString(b, "<p>b</p>");
+		assertEquals("<p>a</p>", cache.getString(a));
+		assertEquals("<p>b</p>", cache.getString(b));
+		cache.reset();
+		assertNull(cache.getString(a));
+		assertFalse(new File(new File(dir, "rendered-pages"), a).exists());
+	}
+
+	public void testOnlyPagesDeleted() throws Exception {
+		File other = new File(dir, "other.txt");
+		other.createNewFile();
+		RenderedPageCache cache = new RenderedPageCache(1, dir);
+		cache.putString(cache.key("digest", "http://example.com/a", "1",
+				"text/html", "view"), "<p>a</p>");
+		cache.reset();
+		new RenderedPageCache(1, dir).reset();
+		assertTrue(other.exists());
+		assertTrue(new File(dir, "rendered-pages").isDirectory());
+	}
+
+	public void testForeignDirectoryUntouched() throws Exception {
+		File pages = new File(dir, "rendered-pages");
+		pages.mkdirs();
+		String name = "0123456789abcdef0123456789abcdef";
+		new File(pages, name).createNewFile();
+		RenderedPageCache cache = new RenderedPageCache(1, dir);
+		String a = cache.key("digest", "http://example.com/a", "1", "text/html", "view");
+		String b = cache.key("digest", "http://example.com/b", "1", "text/html", "view");
+		cache.putString(a, "<p>a</p>");
+		cache.putString(b, "<p>b</p>");
+		cache.reset();
+		assertTrue(new File(pages, name).exists());
+		assertNull(cache.getString(a));
+	}
+}
@@ -16,16 +16,94 @@
  */
 package org.callimachusproject.engine;
 
+import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
 
 import junit.framework.TestCase;
 
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
 import org.openrdf.http.object.client.HttpClientFactory;
+import org.openrdf.http.object.exceptions.ResponseException;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.model.vocabulary.SKOS;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.MalformedQueryException;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQuery;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.query.impl.MapBindingSet;
+import org.openrdf.query.impl.TupleQueryResultImpl;
+import org.openrdf.repository.RepositoryException;
+import org.openrdf.repository.base.RepositoryConnectionWrapper;
+import org.openrdf.repository.contextaware.ContextAwareConnection;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.repository.sail.SailRepositoryConnection;
+import org.openrdf.sail.memory.MemoryStore;
 
 public class TestTemplateEngine extends TestCase {
 	private static final String SYSTEM_ID = "http://example.com/";
+	private static final String TEMPLATE = "<ul xmlns:rdfs='http://www.w3.org/2000/01/rdf-schema#'>\n"
+			+ "<li resource='?url'><span property='rdfs:label'/></li></ul>";
+
+	static class QueuedResponse extends BasicHttpResponse implements
+			CloseableHttpResponse {
+		QueuedResponse(int code, String reason) {
+			super(HttpVersion.HTTP_1_1, code, reason);
+		}
+
+		public void close() {
+			// nothing to release
+		}
+	}
+
+	static class QueuedHttpClient extends CloseableHttpClient {
+		final List<HttpRequest> requests = new ArrayList<HttpRequest>();
+		final LinkedList<CloseableHttpResponse> responses = new LinkedList<CloseableHttpResponse>();
+
+		protected CloseableHttpResponse doExecute(HttpHost target,
+				HttpRequest request, HttpContext context) throws IOException {
+			requests.add(request);
+			return responses.removeFirst();
+		}
+
+		public void close() {
+			// nothing to release
+		}
+
+		@SuppressWarnings("deprecation")
+		public HttpParams getParams() {
+			return new BasicHttpParams();
+		}
+
+		@SuppressWarnings("deprecation")
+		public ClientConnectionManager getConnectionManager() {
+			return null;
+		}
+	}
+
 	private final HttpClient client = HttpClientFactory.getInstance()
 			.createHttpClient(SYSTEM_ID);
 
@@ -49,4 +127,326 @@ public class TestTemplateEngine extends TestCase {
 		assertTrue(qry, qry.contains("<http://example.com/>"));
 	}
 
+	public void testCachedTemplateInvalidatedByContent() throws Exception {
+		String template = "<ul xmlns:rdfs='http://www.w3.org/2000/01/rdf-schema#'>\n"
+				+ "<li resource='?url'><span property='rdfs:label'/></li></ul>";
+		TemplateEngine eng = TemplateEngine.newInstance(client);
+		Template first = eng.getTemplate(new StringReader(template), SYSTEM_ID);
+		Template second = eng.getTemplate(new StringReader(template), SYSTEM_ID);
+		assertSame(first, second);
+		assertEquals(first.getQueryString(), second.getQueryString());
+		Template changed = eng.getTemplate(new StringReader(template.replace(
+				"rdfs:label", "rdfs:comment")), SYSTEM_ID);
+		assertNotSame(first, changed);
+		assertTrue(changed.getQueryString().contains("comment"));
+	}
+
+	public void testGetTemplateRevalidated() throws Exception {
+		String url = SYSTEM_ID + "revalidated.xhtml";
+		QueuedHttpClient http = new QueuedHttpClient();
+		QueuedResponse ok = new QueuedResponse(200, "OK");
+		ok.setHeader("ETag", "\"v1\"");
+		ok.setEntity(new StringEntity(TEMPLATE, "UTF-8"));
+		http.responses.add(ok);
+		http.responses.add(new QueuedResponse(304, "Not Modified"));
+		TemplateEngine eng = TemplateEngine.newInstance(http);
+		long hits = TemplateEngine.getHitCount();
+		long misses = TemplateEngine.getMissCount();
+		Template first = eng.getTemplate(url);
+		assertEquals(misses + 1, TemplateEngine.getMissCount());
+		assertEquals(hits, TemplateEngine.getHitCount());
+		assertNull(http.requests.get(0).getFirstHeader("If-None-Match"));
+		Template second = eng.getTemplate(url);
+		assertSame(first, second);
+		assertEquals(misses + 1, TemplateEngine.getMissCount());
+		assertEquals(hits + 1, TemplateEngine.getHitCount());
+		assertEquals(2, http.requests.size());
+		assertEquals("\"v1\"", http.requests.get(1)
+				.getFirstHeader("If-None-Match").getValue());
+	}
+
+	public void testGetTemplateValidatorsPerClient() throws Exception {
+		String url = SYSTEM_ID + "per-client.xhtml";
+		QueuedHttpClient one = new QueuedHttpClient();
+		QueuedResponse ok = new QueuedResponse(200, "OK");
+		ok.setHeader("ETag", "\"v1\"");
+		ok.setEntity(new StringEntity(TEMPLATE, "UTF-8"));
+		one.responses.add(ok);
+		TemplateEngine.newInstance(one).getTemplate(url);
+		QueuedHttpClient two = new QueuedHttpClient();
+		QueuedResponse other = new QueuedResponse(200, "OK");
+		other.setEntity(new StringEntity(TEMPLATE, "UTF-8"));
+		two.responses.add(other);
+		TemplateEngine.newInstance(two).getTemplate(url);
+		assertNull(two.requests.get(0).getFirstHeader("If-None-Match"));
+	}
+
+	public void testGetTemplateValidatorsPerScope() throws Exception {
+		String url = SYSTEM_ID + "per-scope.xhtml";
+		String realm = SYSTEM_ID + "realm/";
+		QueuedHttpClient one = new QueuedHttpClient();
+		QueuedResponse ok = new QueuedResponse(200, "OK");
+		ok.setHeader("ETag", "\"v1\"");
+		ok.setEntity(new StringEntity(TEMPLATE, "UTF-8"));
+		one.responses.add(ok);
+		Template first = TemplateEngine.newInstance(one, realm).getTemplate(url);
+		QueuedHttpClient two = new QueuedHttpClient();
+		two.responses.add(new QueuedResponse(304, "Not Modified"));
+		long hits = TemplateEngine.getHitCount();
+		Template second = TemplateEngine.newInstance(two, realm).getTemplate(url);
+		assertSame(first, second);
+		assertEquals(hits + 1, TemplateEngine.getHitCount());
+		assertEquals("\"v1\"", two.requests.get(0)
+				.getFirstHeader("If-None-Match").getValue());
+		QueuedHttpClient other = new QueuedHttpClient();
+		QueuedResponse fresh = new QueuedResponse(200, "OK");
+		fresh.setEntity(new StringEntity(TEMPLATE, "UTF-8"));
+		other.responses.add(fresh);
+		TemplateEngine.newInstance(other, SYSTEM_ID + "other/").getTemplate(url);
+		assertNull(other.requests.get(0).getFirstHeader("If-None-Match"));
+	}
+
+	public void testGetTemplateError() throws Exception {
+		String url = SYSTEM_ID + "missing.xhtml";
+		QueuedHttpClient http = new QueuedHttpClient();
+		QueuedResponse missing = new QueuedResponse(404, "Not Found");
+		missing.setEntity(new StringEntity("Not Found", "UTF-8"));
+		http.responses.add(missing);
+		long hits = TemplateEngine.getHitCount();
+		long misses = TemplateEngine.getMissCount();
+		try {
+			TemplateEngine.newInstance(http).getTemplate(url);
+			fail();
+		} catch (ResponseException e) {
+			// expected
+		}
+		assertEquals(1, http.requests.size());
+		assertEquals(hits, TemplateEngine.getHitCount());
+		assertEquals(misses, TemplateEngine.getMissCount());
+	}
+
+	public void testRenderToWriter() throws Exception {
+		String template = "<ul xmlns:rdfs='http://www.w3.org/2000/01/rdf-schema#' class='a&amp;b'>\n"
+				+ "<li resource='?url'><span property='rdfs:label'/></li></ul>";
+		Template temp = TemplateEngine.newInstance(client).getTemplate(
+				new StringReader(template), SYSTEM_ID);
+		SailRepository repo = new SailRepository(new MemoryStore());
+		repo.initialize();
+		SailRepositoryConnection con = repo.getConnection();
+		try {
+			ValueFactory vf = con.getValueFactory();
+			con.add(vf.createURI("urn:test:one"), RDFS.LABEL, vf.createLiteral("One"));
+			con.add(vf.createURI("urn:test:two"), RDFS.LABEL, vf.createLiteral("<Two>"));
+			StringWriter writer = new StringWriter();
+			temp.render(con.prepareTupleQuery(QueryLanguage.SPARQL,
+					temp.getQueryString(), SYSTEM_ID).evaluate(), writer);
+			String xml = writer.toString();
+			assertTrue(xml, xml.contains("class=\"a&amp;b\""));
+			assertTrue(xml, xml.contains("<li resource=\"urn:test:one\"><span property=\"rdfs:label\">One</span></li>"));
+			assertTrue(xml, xml.contains("<li resource=\"urn:test:two\"><span property=\"rdfs:label\">&lt;Two&gt;</span></li>"));
+		} finally {
+			con.close();
+			repo.shutDown();
+		}
+	}
+
+	public void testElementSlice() throws Exception {
+		String template = "<div xmlns:rdfs='http://www.w3.org/2000/01/rdf-schema#'>\n"
+				+ "<p>intro</p>\n"
+				+ "<ul id='list'><li resource='?url'><span property='rdfs:label'/></li></ul></div>";
+		Template temp = TemplateEngine.newInstance(client).getTemplate(
+				new StringReader(template), SYSTEM_ID);
+		Template list = temp.getElement("/1/2");
+		assertSame(list, temp.getElement("/1/2"));
+		assertEquals(list.getQueryString(), temp.getElement("list").getQueryString());
+		assertTrue(list.getQueryString().contains("rdfs:label"));
+		StringWriter writer = new StringWriter();
+		List<String> names = Collections.emptyList();
+		List<BindingSet> empty = Collections.emptyList();
+		temp.getElement("list/1/1").render(new TupleQueryResultImpl(names, empty), writer);
+		String xml = writer.toString();
+		assertTrue(xml, xml.contains("<span xmlns:rdfs=\"http://www.w3.org/2000/01/rdf-schema#\""));
+		assertFalse(xml, xml.contains("intro"));
+	}
+
+	public void testEvaluateLocalAndRestricted() throws Exception {
+		String template = "<div xmlns:rdfs='http://www.w3.org/2000/01/rdf-schema#' about='?this'>\n"
+				+ "<span property='rdfs:label'/></div>";
+		Template temp = TemplateEngine.newInstance(client).getTemplate(
+				new StringReader(template), SYSTEM_ID);
+		SailRepository repo = new SailRepository(new MemoryStore());
+		repo.initialize();
+		SailRepositoryConnection con = repo.getConnection();
+		ContextAwareConnection restricted = new ContextAwareConnection(con);
+		try {
+			ValueFactory vf = con.getValueFactory();
+			URI one = vf.createURI("urn:test:one");
+			URI graph = vf.createURI("urn:test:graph");
+			con.add(one, RDFS.LABEL, vf.createLiteral("One"));
+			con.add(one, RDFS.LABEL, vf.createLiteral("Uno"), graph);
+			restricted.setReadContexts(graph);
+			MapBindingSet bindings = new MapBindingSet();
+			bindings.addBinding("this", one);
+			for (int i = 0; i < 2; i++) {
+				TupleQueryResult all = temp.evaluate(bindings, con);
+				assertTrue(all.hasNext());
+				all.next();
+				assertTrue(all.hasNext());
+				all.close();
+				TupleQueryResult some = temp.evaluate(bindings, restricted);
+				assertTrue(some.hasNext());
+				assertEquals("Uno", some.next().getValue("this_label").stringValue());
+				assertFalse(some.hasNext());
+				some.close();
+			}
+		} finally {
+			con.close();
+			repo.shutDown();
+		}
+	}
+
+	public void testEvaluateWrapped() throws Exception {
+		String template = "<div xmlns:rdfs='http://www.w3.org/2000/01/rdf-schema#' about='?this'>\n"
+				+ "<span property='rdfs:label'/></div>";
+		Template temp = TemplateEngine.newInstance(client).getTemplate(
+				new StringReader(template), SYSTEM_ID);
+		SailRepository repo = new SailRepository(new MemoryStore());
+		repo.initialize();
+		SailRepositoryConnection con = repo.getConnection();
+		final List<String> prepared = new ArrayList<String>();
+		RepositoryConnectionWrapper wrapper = new RepositoryConnectionWrapper(
+				repo, con) {
+			public TupleQuery prepareTupleQuery(QueryLanguage ql,
+					String query, String baseURI) throws MalformedQueryException,
+					RepositoryException {
+				prepared.add(query);
+				return super.prepareTupleQuery(ql, query, baseURI);
+			}
+		};
+		try {
+			ValueFactory vf = con.getValueFactory();
+			URI one = vf.createURI("urn:test:one");
+			con.add(one, RDFS.LABEL, vf.createLiteral("One"));
+			MapBindingSet bindings = new MapBindingSet();
+			bindings.addBinding("this", one);
+			TupleQueryResult result = temp.evaluate(bindings, wrapper);
+			assertTrue(result.hasNext());
+			assertEquals("One", result.next().getValue("this_label").stringValue());
+			result.close();
+			assertEquals(1, prepared.size());
+		} finally {
+			con.close();
+			repo.shutDown();
+		}
+	}
+
+	public void testEvaluateEach() throws Exception {
+		String template = "<div xmlns:rdfs='http://www.w3.org/2000/01/rdf-schema#' about='?this'>\n"
+				+ "<span property='rdfs:label'/></div>";
+		Template temp = TemplateEngine.newInstance(client).getTemplate(
+				new StringReader(template), SYSTEM_ID);
+		SailRepository repo = new SailRepository(new MemoryStore());
+		repo.initialize();
+		SailRepositoryConnection con = repo.getConnection();
+		try {
+			ValueFactory vf = con.getValueFactory();
+			URI one = vf.createURI("urn:test:one");
+			URI two = vf.createURI("urn:test:two");
+			URI three = vf.createURI("urn:test:three");
+			con.add(one, RDFS.LABEL, vf.createLiteral("One"));
+			con.add(two, RDFS.LABEL, vf.createLiteral("Two"));
+			con.add(two, RDFS.LABEL, vf.createLiteral("Deux"));
+			TemplateBatch batch = temp.evaluateEach("this",
+					Arrays.asList(one, two, three), con);
+			assertTrue(batch.hasNext());
+			assertEquals(one, batch.next());
+			StringWriter first = new StringWriter();
+			batch.render(first);
+			assertTrue(first.toString(), first.toString().contains(">One</span>"));
+			assertFalse(first.toString(), first.toString().contains("Two"));
+			assertTrue(batch.hasNext());
+			assertEquals(two, batch.next());
+			// unread solutions are skipped
+			assertFalse(batch.hasNext());
+			batch.close();
+		} finally {
+			con.close();
+			repo.shutDown();
+		}
+	}
+
+	public void testEvaluatePartnerPages() throws Exception {
+		String template = "<div xmlns:skos='http://www.w3.org/2004/02/skos/core#' about='?this'>\n"
+				+ "<div rel='skos:related' data-construct='x'><span about='?x' property='skos:prefLabel'/></div></div>";
+		Template temp = TemplateEngine.newInstance(client)
+				.getTemplate(new StringReader(template), SYSTEM_ID)
+				.getElement("/1/1");
+		SailRepository repo = new SailRepository(new MemoryStore());
+		repo.initialize();
+		SailRepositoryConnection con = repo.getConnection();
+		try {
+			ValueFactory vf = con.getValueFactory();
+			for (int i = 1; i <= 5; i++) {
+				URI x = vf.createURI("urn:test:" + i);
+				con.add(x, SKOS.PREF_LABEL, vf.createLiteral("Label " + i));
+				con.add(x, SKOS.PREF_LABEL, vf.createLiteral("Other " + i));
+			}
+			List<String> keys = new ArrayList<String>();
+			String token = null;
+			int pages = 0;
+			do {
+				PagedTupleQueryResult page = temp.evaluatePartner(null, 2, token, con);
+				while (page.hasNext()) {
+					String key = page.next().getValue("x").stringValue();
+					if (!keys.contains(key)) {
+						keys.add(key);
+					}
+				}
+				token = page.getContinuationToken();
+				pages++;
+			} while (token != null);
+			assertEquals(3, pages);
+			assertEquals(Arrays.asList("urn:test:1", "urn:test:2",
+					"urn:test:3", "urn:test:4", "urn:test:5"), keys);
+		} finally {
+			con.close();
+			repo.shutDown();
+		}
+	}
+
+	public void testEvaluatePartnerPagesMixedKeys() throws Exception {
+		String template = "<div xmlns:skos='http://www.w3.org/2004/02/skos/core#' about='?this'>\n"
+				+ "<div rel='skos:related' data-construct='x'><span about='?x' property='skos:prefLabel'/></div></div>";
+		Template temp = TemplateEngine.newInstance(client)
+				.getTemplate(new StringReader(template), SYSTEM_ID)
+				.getElement("/1/1");
+		SailRepository repo = new SailRepository(new MemoryStore());
+		repo.initialize();
+		SailRepositoryConnection con = repo.getConnection();
+		try {
+			ValueFactory vf = con.getValueFactory();
+			con.add(vf.createBNode(), SKOS.PREF_LABEL, vf.createLiteral("Blank"));
+			for (int i = 1; i <= 10; i++) {
+				URI x = vf.createURI("urn:test:" + i);
+				con.add(x, SKOS.PREF_LABEL, vf.createLiteral("Label " + i));
+			}
+			Set<Value> keys = new HashSet<Value>();
+			int solutions = 0;
+			String token = null;
+			do {
+				PagedTupleQueryResult page = temp.evaluatePartner(null, 3, token, con);
+				while (page.hasNext()) {
+					keys.add(page.next().getValue("x"));
+					solutions++;
+				}
+				token = page.getContinuationToken();
+			} while (token != null);
+			assertEquals(11, solutions);
+			assertEquals(11, keys.size());
+		} finally {
+			con.close();
+			repo.shutDown();
+		}
+	}
+
 }
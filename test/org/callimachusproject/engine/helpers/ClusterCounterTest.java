@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2013 3 Round Stones Inc., Some Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.callimachusproject.engine.helpers;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.callimachusproject.engine.events.TriplePattern;
+import org.callimachusproject.engine.model.AbsoluteTermFactory;
+import org.callimachusproject.engine.model.IRI;
+import org.callimachusproject.engine.model.VarOrTerm;
+
+public class ClusterCounterTest extends TestCase {
+	private AbsoluteTermFactory tf = AbsoluteTermFactory.newInstance();
+	private IRI pred = tf.iri("http://example.com/ns#pred");
+	private RDFEventList events = new RDFEventList();
+
+	private void link(VarOrTerm subj, VarOrTerm obj) {
+		events.add(new TriplePattern(subj, pred, obj));
+	}
+
+	private ClusterCounter count() throws Exception {
+		ClusterCounter counter = new ClusterCounter(events.iterator());
+		while (counter.hasNext()) {
+			counter.next();
+		}
+		return counter;
+	}
+
+	private Set<String> set(String... terms) {
+		return new HashSet<String>(Arrays.asList(terms));
+	}
+
+	public void setUp() throws Exception {
+		link(tf.var("a"), tf.var("b"));
+		link(tf.var("b"), tf.var("c"));
+		link(tf.var("d"), tf.literal("d"));
+		link(tf.var("e"), tf.var("f"));
+		link(tf.var("c"), tf.var("a"));
+	}
+
+	public void testClusters() throws Exception {
+		ClusterCounter counter = count();
+		assertEquals(new HashSet<Set<String>>(Arrays.asList(set("a", "b", "c"),
+				set("d"), set("e", "f"))), counter.getClusters());
+		assertEquals(3, counter.getNumberOfVariableClusters());
+	}
+
+	public void testMergedClusters() throws Exception {
+		link(tf.var("f"), tf.var("b"));
+		ClusterCounter counter = count();
+		assertEquals(2, counter.getNumberOfVariableClusters());
+		assertEquals(set("a", "b", "c", "e", "f"), counter.getSmallestCluster("d"));
+	}
+
+	public void testExcluded() throws Exception {
+		ClusterCounter counter = count();
+		assertEquals(2, counter.getNumberOfVariableClusters("a"));
+		assertEquals(2, counter.getNumberOfVariableClusters("a", "b"));
+		assertEquals(1, counter.getNumberOfVariableClusters("c", "f"));
+		assertEquals(3, counter.getNumberOfVariableClusters("z"));
+		assertEquals(0, counter.getNumberOfVariableClusters("a", "d", "e"));
+	}
+
+	public void testSmallestCluster() throws Exception {
+		ClusterCounter counter = count();
+		assertEquals(set("d"), counter.getSmallestCluster());
+		assertEquals(set("e", "f"), counter.getSmallestCluster("d"));
+		assertEquals(set("a", "b", "c"), counter.getSmallestCluster("d", "f"));
+	}
+
+	public void testSmallestClusterAllExcluded() throws Exception {
+		ClusterCounter counter = count();
+		assertNull(counter.getSmallestCluster("a", "d", "e"));
+	}
+
+	public void testNoClusters() throws Exception {
+		events.clear();
+		ClusterCounter counter = count();
+		assertEquals(0, counter.getNumberOfVariableClusters());
+		assertEquals(Collections.emptySet(), counter.getSmallestCluster());
+		assertEquals(Collections.emptySet(), counter.getClusters());
+	}
+}
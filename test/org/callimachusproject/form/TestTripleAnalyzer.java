@@ -16,17 +16,21 @@
  */
 package org.callimachusproject.form;
 
+import org.callimachusproject.engine.events.TriplePattern;
 import org.callimachusproject.engine.helpers.TripleAnalyzer;
+import org.callimachusproject.engine.model.AbsoluteTermFactory;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.openrdf.http.object.exceptions.BadRequest;
 import org.openrdf.model.ValueFactory;
 import org.openrdf.model.impl.ValueFactoryImpl;
 import org.openrdf.rio.RDFHandlerException;
 
 public class TestTripleAnalyzer {
-	private static final String PREFIX = "PREFIX foaf:<http://xmlns.com/foaf/0.1/>\n";
+	private static final String FOAF = "http://xmlns.com/foaf/0.1/";
+	private static final String PREFIX = "PREFIX foaf:<" + FOAF + ">\n";
 	private final ValueFactory vf = ValueFactoryImpl.getInstance();
 
 	@Before
@@ -157,4 +161,38 @@ public class TestTripleAnalyzer {
 		Assert.assertFalse(analyzer.isComplicated());
 	}
 
+	@Test
+	public void testInsertDATAMatchesPatterns() throws Exception {
+		AbsoluteTermFactory tf = AbsoluteTermFactory.newInstance();
+		TripleAnalyzer analyzer = new TripleAnalyzer();
+		analyzer.acceptInsert(new TriplePattern(tf.node(), tf.iri(FOAF + "name"), tf.node()));
+		analyzer.acceptInsert(new TriplePattern(tf.node(), tf.iri(FOAF + "knows"), tf.node()));
+		StringBuilder sb = new StringBuilder(PREFIX + "INSERT DATA { <#me> foaf:name \"me\"");
+		for (int i = 0; i < 5000; i++) {
+			sb.append("; foaf:knows <friend").append(i).append(">");
+		}
+		analyzer.analyzeUpdate(sb.append("}").toString(), "http://example.com/");
+		Assert.assertTrue(analyzer.isAbout(vf.createURI("http://example.com/")));
+		Assert.assertEquals(5000, analyzer.getPartners().size());
+		try {
+			analyzer.analyzeUpdate(PREFIX + "INSERT DATA { <#me> foaf:mbox <mailto:me@example.com> }", "http://example.com/");
+			Assert.fail();
+		} catch (BadRequest e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("mbox"));
+		}
+	}
+
+	@Test
+	public void testLongBlankNodeChain() throws Exception {
+		StringBuilder sb = new StringBuilder(PREFIX + "INSERT DATA {");
+		for (int i = 0; i < 20000; i++) {
+			sb.append(" _:n").append(i + 1).append(" foaf:knows _:n").append(i).append(" .");
+		}
+		sb.append(" <#me> foaf:knows _:n20000 }");
+		TripleAnalyzer analyzer = new TripleAnalyzer();
+		analyzer.analyzeUpdate(sb.toString(), "http://example.com/");
+		Assert.assertFalse(analyzer.isDisconnectedNodePresent());
+		Assert.assertTrue(analyzer.isSingleton());
+	}
+
 }
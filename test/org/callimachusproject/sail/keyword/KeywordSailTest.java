@@ -1,29 +1,65 @@
 package org.callimachusproject.sail.keyword;
 
 import info.aduna.io.FileUtil;
+import info.aduna.iteration.CloseableIteration;
 
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import junit.framework.TestCase;
 
 import org.openrdf.model.Resource;
+import org.openrdf.model.Literal;
 import org.openrdf.model.URI;
+import org.openrdf.model.Value;
 import org.openrdf.model.ValueFactory;
 import org.openrdf.model.vocabulary.RDF;
 import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.model.vocabulary.SKOS;
+import org.openrdf.query.BindingSet;
 import org.openrdf.query.BooleanQuery;
 import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQuery;
+import org.openrdf.query.TupleQueryResult;
 import org.openrdf.repository.Repository;
 import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.repository.sail.SailRepository;
 import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.helpers.SailConnectionWrapper;
+import org.openrdf.sail.helpers.SailWrapper;
 import org.openrdf.sail.memory.MemoryStore;
 
 public class KeywordSailTest extends TestCase {
 	private static final String PREFIX = "PREFIX rdfs:<" + RDFS.NAMESPACE + ">\n"
 			+ "PREFIX rdf:<" + RDF.NAMESPACE + ">\n"
 			+ "PREFIX keyword:<http://www.openrdf.org/rdf/2011/keyword#>\n";
+	/** Fails to add any statement */
+	static class ReadOnlySail extends SailWrapper {
+		ReadOnlySail(Sail baseSail) {
+			super(baseSail);
+		}
+
+		public SailConnection getConnection() throws SailException {
+			return new SailConnectionWrapper(super.getConnection()) {
+				public void addStatement(Resource subj, URI pred, Value obj,
+						Resource... contexts) throws SailException {
+					throw new SailException("Read only");
+				}
+			};
+		}
+	}
+
 	private File dir;
 	private RepositoryConnection con;
 	private Repository repo;
@@ -181,4 +217,435 @@ public class KeywordSailTest extends TestCase {
 		qry.setBinding("keyword", vf.createLiteral("base ball"));
 		assertTrue(qry.evaluate());
 	}
+
+	public void testRemoveLabel() throws Exception {
+		URI ball = vf.createURI("urn:test:ball");
+		URI phone = vf.createURI("http://www.openrdf.org/rdf/2011/keyword#phone");
+		con.add(ball, RDFS.LABEL, vf.createLiteral("base ball"));
+		assertTrue(con.hasStatement(ball, phone, null, true));
+		con.remove(ball, RDFS.LABEL, vf.createLiteral("base ball"));
+		assertFalse(con.hasStatement(ball, phone, null, true));
+	}
+
+	public void testRemoveSharedPhone() throws Exception {
+		URI ball = vf.createURI("urn:test:ball");
+		con.add(ball, RDFS.LABEL, vf.createLiteral("base ball"));
+		con.add(ball, RDFS.LABEL, vf.createLiteral("foot ball"));
+		con.remove(ball, RDFS.LABEL, vf.createLiteral("base ball"));
+		BooleanQuery qry = con.prepareBooleanQuery(QueryLanguage.SPARQL, PREFIX
+			+ "ASK { ?resource keyword:phone ?soundex\n"
+			+ "FILTER sameTerm(?soundex, keyword:soundex($keyword)) }");
+		qry.setBinding("keyword", vf.createLiteral("ball"));
+		assertTrue(qry.evaluate());
+		qry.setBinding("keyword", vf.createLiteral("foot"));
+		assertTrue(qry.evaluate());
+		qry.setBinding("keyword", vf.createLiteral("base"));
+		assertFalse(qry.evaluate());
+	}
+
+	public void testUpdateLabel() throws Exception {
+		URI ball = vf.createURI("urn:test:ball");
+		con.add(ball, RDFS.LABEL, vf.createLiteral("base ball"));
+		con.prepareUpdate(QueryLanguage.SPARQL, PREFIX
+			+ "DELETE { ?resource rdfs:label ?label } INSERT { ?resource rdfs:label 'foot ball' }\n"
+			+ "WHERE { ?resource rdfs:label ?label }").execute();
+		BooleanQuery qry = con.prepareBooleanQuery(QueryLanguage.SPARQL, PREFIX
+			+ "ASK { ?resource keyword:phone ?soundex\n"
+			+ "FILTER sameTerm(?soundex, keyword:soundex($keyword)) }");
+		qry.setBinding("keyword", vf.createLiteral("foot ball"));
+		assertTrue(qry.evaluate());
+		qry.setBinding("keyword", vf.createLiteral("base ball"));
+		assertFalse(qry.evaluate());
+	}
+
+	public void testBackgroundReindex() throws Exception {
+		tearDown();
+		Sail store = new MemoryStore(dir);
+		repo = new SailRepository(store);
+		repo.initialize();
+		vf = repo.getValueFactory();
+		con = repo.getConnection();
+		for (int i = 0; i < 25; i++) {
+			con.add(vf.createURI("urn:test:ball" + i), RDFS.LABEL, vf.createLiteral("base ball " + i));
+		}
+		con.close();
+		repo.shutDown();
+		KeywordSail sail = new KeywordSail(new MemoryStore(dir));
+		sail.setBackgroundReindex(true);
+		sail.setReindexBatchSize(4);
+		sail.setReindexThreads(2);
+		repo = new SailRepository(sail);
+		repo.initialize();
+		vf = repo.getValueFactory();
+		con = repo.getConnection();
+		for (int i = 0; i < 100 && sail.isRebuilding(); i++) {
+			Thread.sleep(100);
+		}
+		assertFalse(sail.isRebuilding());
+		assertEquals(25, sail.getReindexedLabels());
+		assertEquals(7, sail.getReindexedBatches());
+		URI phone = vf.createURI("http://www.openrdf.org/rdf/2011/keyword#phone");
+		for (int i = 0; i < 25; i++) {
+			assertTrue(con.hasStatement(vf.createURI("urn:test:ball" + i), phone, null, true));
+		}
+		TupleQuery qry = con.prepareTupleQuery(QueryLanguage.SPARQL, PREFIX
+				+ "SELECT ?complete { [] keyword:complete ?complete }");
+		TupleQueryResult result = qry.evaluate();
+		try {
+			assertEquals(vf.createLiteral(true), result.next().getValue("complete"));
+			assertFalse(result.hasNext());
+		} finally {
+			result.close();
+		}
+	}
+
+	public void testBackgroundReindexFailed() throws Exception {
+		tearDown();
+		Sail store = new MemoryStore(dir);
+		repo = new SailRepository(store);
+		repo.initialize();
+		vf = repo.getValueFactory();
+		con = repo.getConnection();
+		for (int i = 0; i < 25; i++) {
+			con.add(vf.createURI("urn:test:ball" + i), RDFS.LABEL, vf.createLiteral("base ball " + i));
+		}
+		con.close();
+		repo.shutDown();
+		KeywordSail sail = new KeywordSail(new ReadOnlySail(new MemoryStore(dir)));
+		sail.setBackgroundReindex(true);
+		sail.setReindexBatchSize(4);
+		repo = new SailRepository(sail);
+		repo.initialize();
+		vf = repo.getValueFactory();
+		con = repo.getConnection();
+		for (int i = 0; i < 100 && !sail.isRebuildFailed(); i++) {
+			Thread.sleep(100);
+		}
+		assertTrue(sail.isRebuildFailed());
+		assertTrue(sail.isRebuilding());
+		TupleQuery qry = con.prepareTupleQuery(QueryLanguage.SPARQL, PREFIX
+				+ "SELECT ?complete { [] keyword:complete ?complete }");
+		TupleQueryResult result = qry.evaluate();
+		try {
+			assertEquals(vf.createLiteral(false), result.next().getValue("complete"));
+		} finally {
+			result.close();
+		}
+		con.close();
+		repo.shutDown();
+		sail = new KeywordSail(new MemoryStore(dir));
+		repo = new SailRepository(sail);
+		repo.initialize();
+		con = repo.getConnection();
+		assertFalse(sail.isRebuilding());
+		assertFalse(sail.isRebuildFailed());
+		assertEquals(25, sail.getReindexedLabels());
+	}
+
+	public void testMatchIndex() throws Exception {
+		URI ball = vf.createURI("urn:test:ball");
+		URI bat = vf.createURI("urn:test:bat");
+		con.add(ball, RDFS.LABEL, vf.createLiteral("base ball"));
+		con.add(bat, RDFS.LABEL, vf.createLiteral("base bat"));
+		assertEquals(2, countMatches("base"));
+		assertEquals(1, countMatches("ball"));
+		con.begin();
+		con.remove(ball, RDFS.LABEL, null);
+		assertEquals(1, countMatches("base"));
+		con.rollback();
+		assertEquals(2, countMatches("base"));
+		con.remove(ball, RDFS.LABEL, null);
+		assertEquals(1, countMatches("base"));
+		assertEquals(0, countMatches("ball"));
+		con.close();
+		repo.shutDown();
+		repo = new SailRepository(new KeywordSail(new MemoryStore(dir)));
+		repo.initialize();
+		con = repo.getConnection();
+		assertEquals(1, countMatches("base"));
+		assertEquals(1, countMatches("bat"));
+		assertEquals(0, countMatches("ball"));
+	}
+
+	public void testClear() throws Exception {
+		URI ball = vf.createURI("urn:test:ball");
+		URI bat = vf.createURI("urn:test:bat");
+		con.add(ball, RDFS.LABEL, vf.createLiteral("base ball"));
+		con.add(bat, RDFS.LABEL, vf.createLiteral("bat"), bat);
+		con.begin();
+		con.clear();
+		assertEquals(0, countMatches("base"));
+		assertEquals(Arrays.asList(), listPrefixed("ba", ""));
+		con.add(bat, RDFS.LABEL, vf.createLiteral("base bat"));
+		assertEquals(1, countMatches("base"));
+		con.rollback();
+		assertEquals(1, countMatches("ball"));
+		con.clear(bat);
+		assertEquals(0, countMatches("bat"));
+		assertEquals(1, countMatches("ball"));
+		con.begin();
+		con.clear();
+		con.add(bat, RDFS.LABEL, vf.createLiteral("base bat"));
+		con.commit();
+		URI phone = vf.createURI("http://www.openrdf.org/rdf/2011/keyword#phone");
+		assertFalse(con.hasStatement(ball, phone, null, true));
+		assertEquals(1, countMatches("base"));
+		assertEquals(0, countMatches("ball"));
+		assertEquals(Arrays.asList(bat), listPrefixed("ba", ""));
+		con.close();
+		repo.shutDown();
+		repo = new SailRepository(new KeywordSail(new MemoryStore(dir)));
+		repo.initialize();
+		con = repo.getConnection();
+		assertEquals(1, countMatches("base"));
+		assertEquals(0, countMatches("ball"));
+		assertEquals(Arrays.asList(bat), listPrefixed("ba", ""));
+	}
+
+	public void testUnfinishedTransaction() throws Exception {
+		con.add(vf.createURI("urn:test:ball"), RDFS.LABEL,
+				vf.createLiteral("base ball"));
+		con.close();
+		repo.shutDown();
+		// the store committed, but the index was not updated
+		repo = new SailRepository(new MemoryStore(dir));
+		repo.initialize();
+		con = repo.getConnection();
+		con.add(vf.createURI("urn:test:bat"), RDFS.LABEL,
+				vf.createLiteral("base bat"));
+		con.close();
+		repo.shutDown();
+		FileWriter status = new FileWriter(new File(dir,
+				"org.callimachusproject.sail.keyword.index.status"));
+		try {
+			status.write("active\n");
+		} finally {
+			status.close();
+		}
+		repo = new SailRepository(new KeywordSail(new MemoryStore(dir)));
+		repo.initialize();
+		con = repo.getConnection();
+		assertEquals(2, countMatches("base"));
+		assertEquals(1, countMatches("bat"));
+	}
+
+	public void testReloadIndex() throws Exception {
+		File tmp = new File(dir, "index");
+		KeywordIndex index = new KeywordIndex(tmp, "test", vf);
+		assertFalse(index.load());
+		Resource ball = vf.createURI("urn:test:ball");
+		Resource bat = vf.createURI("urn:test:bat");
+		for (int i = 0; i < 1000; i++) {
+			Map<String, Boolean> keys = Collections.singletonMap("ball", i % 2 == 0);
+			index.update(Collections.singletonMap(ball, keys), false, index.begin());
+		}
+		String longer = "a label that is longer than the bytes of a record key";
+		Map<String, Boolean> keys = new HashMap<String, Boolean>();
+		keys.put(longer + " 2", true);
+		keys.put(longer + " 1", true);
+		index.update(Collections.singletonMap(bat, keys), false, index.begin());
+		index.close();
+		assertTrue(index.load());
+		assertTrue(index.getSubjects("ball").isEmpty());
+		assertEquals(Collections.singleton(bat), index.getSubjects(longer + " 1"));
+		CloseableIteration<Map.Entry<String, Resource>, IOException> iter;
+		iter = index.getPrefixed(longer);
+		try {
+			assertEquals(longer + " 1", iter.next().getKey());
+			assertEquals(longer + " 2", iter.next().getKey());
+			assertFalse(iter.hasNext());
+		} finally {
+			iter.close();
+		}
+		index.begin();
+		index.close();
+		assertFalse(index.load());
+		assertTrue(index.getSubjects(longer + " 1").isEmpty());
+		index.close();
+	}
+
+	public void testRank() throws Exception {
+		URI doc = vf.createURI("urn:test:Document");
+		URI exact = vf.createURI("urn:test:exact");
+		URI longer = vf.createURI("urn:test:longer");
+		URI sounds = vf.createURI("urn:test:sounds");
+		URI alt = vf.createURI("urn:test:alt");
+		URI other = vf.createURI("urn:test:other");
+		con.add(exact, RDFS.LABEL, vf.createLiteral("base ball"));
+		con.add(longer, RDFS.LABEL, vf.createLiteral("base ball bat"));
+		con.add(sounds, RDFS.LABEL, vf.createLiteral("bace ball"));
+		con.add(alt, SKOS.ALT_LABEL, vf.createLiteral("base ball"));
+		con.add(other, RDFS.LABEL, vf.createLiteral("base ball"));
+		for (URI uri : new URI[] { exact, longer, sounds, alt }) {
+			con.add(uri, RDF.TYPE, doc);
+		}
+		TupleQuery qry = con.prepareTupleQuery(QueryLanguage.SPARQL, PREFIX
+				+ "SELECT ?resource ?score { ?resource keyword:rank $keyword;"
+				+ " keyword:score ?score; a <urn:test:Document> }\n"
+				+ "ORDER BY DESC(?score)");
+		qry.setBinding("keyword", vf.createLiteral("Base Ball"));
+		TupleQueryResult result = qry.evaluate();
+		try {
+			for (URI expected : new URI[] { exact, longer, sounds, alt }) {
+				assertTrue(result.hasNext());
+				BindingSet bs = result.next();
+				assertEquals(expected, bs.getValue("resource"));
+				assertTrue(bs.getValue("score") instanceof Literal);
+			}
+			assertFalse(result.hasNext());
+		} finally {
+			result.close();
+		}
+	}
+
+	public void testRankLimit() throws Exception {
+		con.close();
+		repo.shutDown();
+		KeywordSail sail = new KeywordSail(new MemoryStore(dir));
+		sail.setRankLimit(2);
+		repo = new SailRepository(sail);
+		repo.initialize();
+		vf = repo.getValueFactory();
+		con = repo.getConnection();
+		for (int i = 0; i < 10; i++) {
+			con.add(vf.createURI("urn:test:ball" + i), RDFS.LABEL,
+					vf.createLiteral(i < 2 ? "ball" : "ball number " + i));
+		}
+		TupleQuery qry = con.prepareTupleQuery(QueryLanguage.SPARQL, PREFIX
+				+ "SELECT ?resource { ?resource keyword:rank 'ball' }");
+		TupleQueryResult result = qry.evaluate();
+		try {
+			Set<Value> found = new HashSet<Value>();
+			while (result.hasNext()) {
+				found.add(result.next().getValue("resource"));
+			}
+			assertEquals(2, found.size());
+			assertTrue(found.contains(vf.createURI("urn:test:ball0")));
+			assertTrue(found.contains(vf.createURI("urn:test:ball1")));
+		} finally {
+			result.close();
+		}
+	}
+
+	public void testRankFiltered() throws Exception {
+		con.close();
+		repo.shutDown();
+		KeywordSail sail = new KeywordSail(new MemoryStore(dir));
+		sail.setRankLimit(2);
+		repo = new SailRepository(sail);
+		repo.initialize();
+		vf = repo.getValueFactory();
+		con = repo.getConnection();
+		URI doc = vf.createURI("urn:test:Document");
+		for (int i = 0; i < 4; i++) {
+			URI sys = vf.createURI("urn:test:sys:ball" + i);
+			con.add(sys, RDFS.LABEL, vf.createLiteral("ball"));
+			con.add(sys, RDF.TYPE, doc);
+			con.add(vf.createURI("urn:test:untyped" + i), RDFS.LABEL,
+					vf.createLiteral("ball"));
+		}
+		URI first = vf.createURI("urn:test:ball1");
+		URI second = vf.createURI("urn:test:ball2");
+		con.add(first, RDFS.LABEL, vf.createLiteral("ball number one"));
+		con.add(second, RDFS.LABEL, vf.createLiteral("ball number two"));
+		con.add(first, RDF.TYPE, doc);
+		con.add(second, RDF.TYPE, doc);
+		String filter = "; a <urn:test:Document>"
+				+ " FILTER(!strstarts(str(?resource), 'urn:test:sys:'))";
+		TupleQuery qry = con.prepareTupleQuery(QueryLanguage.SPARQL, PREFIX
+				+ "SELECT ?resource { ?resource keyword:rank 'ball'" + filter
+				+ " }");
+		TupleQueryResult result = qry.evaluate();
+		try {
+			Set<Value> found = new HashSet<Value>();
+			while (result.hasNext()) {
+				found.add(result.next().getValue("resource"));
+			}
+			assertEquals(new HashSet<Value>(Arrays.asList(first, second)), found);
+		} finally {
+			result.close();
+		}
+		assertEquals(Arrays.asList(first, second), listPrefixed("ba", filter));
+	}
+
+	public void testPrefix() throws Exception {
+		URI doc = vf.createURI("urn:test:Document");
+		URI football = vf.createURI("urn:test:football");
+		URI baseball = vf.createURI("urn:test:baseball");
+		URI basket = vf.createURI("urn:test:basket");
+		URI bat = vf.createURI("urn:test:bat");
+		con.add(football, RDFS.LABEL, vf.createLiteral("Foot-ball"));
+		con.add(baseball, RDFS.LABEL, vf.createLiteral("Base  Ball"));
+		con.add(basket, RDFS.LABEL, vf.createLiteral("Bäsket ball"));
+		con.add(bat, RDFS.LABEL, vf.createLiteral("bat"));
+		for (URI uri : new URI[] { football, baseball, basket }) {
+			con.add(uri, RDF.TYPE, doc);
+		}
+		assertEquals(Arrays.asList(baseball, basket, bat), listPrefixed("ba", ""));
+		assertEquals(Arrays.asList(baseball, basket), listPrefixed("bas", ""));
+		assertEquals(Arrays.asList(baseball), listPrefixed("base b", ""));
+		assertEquals(Arrays.asList(football), listPrefixed("foot ball", ""));
+		assertEquals(Arrays.asList(), listPrefixed("", ""));
+		assertEquals(Arrays.asList(baseball, basket),
+				listPrefixed("ba", "; a <urn:test:Document>"));
+		con.close();
+		repo.shutDown();
+		repo = new SailRepository(new KeywordSail(new MemoryStore(dir)));
+		repo.initialize();
+		con = repo.getConnection();
+		assertEquals(Arrays.asList(baseball, basket, bat), listPrefixed("ba", ""));
+	}
+
+	public void testPrefixTransaction() throws Exception {
+		URI baseball = vf.createURI("urn:test:baseball");
+		URI bat = vf.createURI("urn:test:bat");
+		con.add(baseball, RDFS.LABEL, vf.createLiteral("base ball"));
+		con.begin();
+		con.add(bat, RDFS.LABEL, vf.createLiteral("bat"));
+		con.remove(baseball, RDFS.LABEL, null);
+		assertEquals(Arrays.asList(bat), listPrefixed("ba", ""));
+		con.rollback();
+		assertEquals(Arrays.asList(baseball), listPrefixed("ba", ""));
+		con.begin();
+		con.remove(baseball, RDFS.LABEL, null);
+		con.add(baseball, RDFS.LABEL, vf.createLiteral("bat ball"));
+		con.commit();
+		assertEquals(Arrays.asList(baseball), listPrefixed("bat", ""));
+		assertEquals(Arrays.asList(), listPrefixed("base", ""));
+	}
+
+	private List<Value> listPrefixed(String prefix, String patterns)
+			throws Exception {
+		TupleQuery qry = con.prepareTupleQuery(QueryLanguage.SPARQL, PREFIX
+				+ "SELECT ?resource { ?resource keyword:prefix $prefix"
+				+ patterns + " }");
+		qry.setBinding("prefix", vf.createLiteral(prefix));
+		TupleQueryResult result = qry.evaluate();
+		try {
+			List<Value> list = new ArrayList<Value>();
+			while (result.hasNext()) {
+				list.add(result.next().getValue("resource"));
+			}
+			return list;
+		} finally {
+			result.close();
+		}
+	}
+
+	private int countMatches(String keyword) throws Exception {
+		TupleQuery qry = con.prepareTupleQuery(QueryLanguage.SPARQL, PREFIX
+				+ "SELECT ?resource { ?resource keyword:match $keyword }");
+		qry.setBinding("keyword", vf.createLiteral(keyword));
+		TupleQueryResult result = qry.evaluate();
+		try {
+			int count = 0;
+			while (result.hasNext()) {
+				result.next();
+				count++;
+			}
+			return count;
+		} finally {
+			result.close();
+		}
+	}
 }
@@ -1,5 +1,9 @@
 package org.callimachusproject.sail.keyword;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 import junit.framework.TestCase;
 
 public class PhoneHelperTest extends TestCase {
@@ -11,4 +15,28 @@ public class PhoneHelperTest extends TestCase {
 		assertTrue(helper.phones("base ball").contains(helper.soundex("base ball")));
 	}
 
+	public void testPunctuation() throws Exception {
+		assertEquals(set("A120", "B000", "B200"), helper.phones("a.b.c"));
+	}
+
+	public void testSuffixAndAccents() throws Exception {
+		assertEquals(set("A261", "C000", "C100", "C530", "C535", "O100",
+				"P600", "P625", "U516"),
+				helper.phones("Ashcraft per cent/universities-co-op"));
+		assertEquals(set("A100", "A153", "A261", "I530", "I536", "O200",
+				"O215", "S100", "S121", "T100", "T121", "T600", "T626"),
+				helper.phones("tab\tsep,ok!.ab/Indices \u00DEór,Ashcraft"));
+	}
+
+	public void testRepeatedWords() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			assertEquals(set("B200", "B214", "B400"), helper.phones("Base ball"));
+			assertEquals(set("B200", "B214", "B400"), helper.phones("base, balls"));
+		}
+	}
+
+	private Set<String> set(String... phones) {
+		return new HashSet<String>(Arrays.asList(phones));
+	}
+
 }
@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2013 3 Round Stones Inc., Some Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.callimachusproject.sail.optimistic;
+
+import info.aduna.iteration.CloseableIteration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.callimachusproject.sail.keyword.KeywordSail;
+import org.callimachusproject.sail.optimistic.config.OptimisticConfig;
+import org.callimachusproject.sail.optimistic.config.OptimisticFactory;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.impl.EmptyBindingSet;
+import org.openrdf.query.parser.ParsedTupleQuery;
+import org.openrdf.query.parser.QueryParserUtil;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.sail.SailConflictException;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+import org.openrdf.sail.memory.MemoryStore;
+
+public class OptimisticSailTest extends TestCase {
+	private OptimisticSail sail;
+	private ValueFactory vf;
+	private URI ball;
+	private URI bat;
+	private SailConnection a;
+	private SailConnection b;
+
+	public void setUp() throws Exception {
+		sail = new OptimisticSail(new MemoryStore());
+		sail.initialize();
+		vf = sail.getValueFactory();
+		ball = vf.createURI("urn:test:ball");
+		bat = vf.createURI("urn:test:bat");
+		a = sail.getConnection();
+		b = sail.getConnection();
+	}
+
+	public void tearDown() throws Exception {
+		a.close();
+		b.close();
+		sail.shutDown();
+	}
+
+	public void testFactory() throws Exception {
+		OptimisticConfig config = new OptimisticConfig();
+		config.setSerializable(true);
+		OptimisticSail created = (OptimisticSail) new OptimisticFactory()
+				.getSail(config);
+		assertTrue(created.isSerializable());
+	}
+
+	public void testRefuseEvaluatingSailBeneath() throws Exception {
+		OptimisticSail above = new OptimisticSail(new KeywordSail(
+				new MemoryStore()));
+		above.initialize();
+		try {
+			above.getConnection().close();
+			fail();
+		} catch (SailException e) {
+			// keyword patterns would not be evaluated on a snapshot
+		} finally {
+			above.shutDown();
+		}
+		KeywordSail beneath = new KeywordSail(new OptimisticSail(
+				new MemoryStore()));
+		beneath.initialize();
+		try {
+			beneath.getConnection().close();
+		} finally {
+			beneath.shutDown();
+		}
+	}
+
+	public void testUncommittedChanges() throws Exception {
+		a.begin();
+		a.addStatement(ball, RDFS.LABEL, vf.createLiteral("ball"));
+		assertEquals(1, count(a, ball));
+		b.begin();
+		assertEquals(0, count(b, ball));
+		b.commit();
+		a.commit();
+		assertEquals(1, count(b, ball));
+	}
+
+	public void testSnapshotRead() throws Exception {
+		add(ball, "base ball");
+		a.begin();
+		assertEquals(1, count(a, ball));
+		b.begin();
+		b.removeStatements(ball, null, null);
+		b.addStatement(bat, RDFS.LABEL, vf.createLiteral("bat"));
+		b.commit();
+		assertEquals(1, count(a, ball));
+		assertEquals(0, count(a, bat));
+		assertEquals(1, a.size());
+		assertEquals(1, query(a));
+		a.commit();
+		a.begin();
+		assertEquals(0, count(a, ball));
+		assertEquals(1, count(a, bat));
+		a.commit();
+	}
+
+	public void testReadersDoNotBlockWriters() throws Exception {
+		add(ball, "base ball");
+		a.begin();
+		CloseableIteration<? extends Statement, SailException> stmts;
+		stmts = a.getStatements(null, null, null, false);
+		try {
+			assertTrue(stmts.hasNext());
+			ExecutorService executor = Executors.newSingleThreadExecutor();
+			try {
+				Future<Void> writer = executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						add(bat, "bat");
+						return null;
+					}
+				});
+				writer.get(10, TimeUnit.SECONDS);
+			} finally {
+				executor.shutdown();
+			}
+		} finally {
+			stmts.close();
+		}
+		assertEquals(0, count(a, bat));
+		a.commit();
+	}
+
+	public void testWriteConflict() throws Exception {
+		add(ball, "base ball");
+		a.begin();
+		b.begin();
+		a.removeStatements(ball, RDFS.LABEL, null);
+		a.addStatement(ball, RDFS.LABEL, vf.createLiteral("foot ball"));
+		b.removeStatements(ball, RDFS.LABEL, null);
+		b.addStatement(ball, RDFS.LABEL, vf.createLiteral("hand ball"));
+		a.commit();
+		try {
+			b.commit();
+			fail();
+		} catch (SailConflictException e) {
+			// retry
+		}
+		b.rollback();
+		b.begin();
+		b.removeStatements(ball, RDFS.LABEL, null);
+		b.addStatement(ball, RDFS.LABEL, vf.createLiteral("hand ball"));
+		b.commit();
+		a.begin();
+		assertEquals(1, count(a, ball));
+		assertTrue(a.getStatements(ball, RDFS.LABEL,
+				vf.createLiteral("hand ball"), false).hasNext());
+		a.commit();
+	}
+
+	public void testDisjointWrites() throws Exception {
+		a.begin();
+		b.begin();
+		a.addStatement(ball, RDFS.LABEL, vf.createLiteral("ball"));
+		b.addStatement(bat, RDFS.LABEL, vf.createLiteral("bat"));
+		a.commit();
+		b.commit();
+		assertEquals(1, count(a, ball));
+		assertEquals(1, count(a, bat));
+	}
+
+	public void testSerializableRead() throws Exception {
+		sail.setSerializable(true);
+		a.begin();
+		b.begin();
+		if (count(a, ball) == 0) {
+			a.addStatement(bat, RDFS.LABEL, vf.createLiteral("bat"));
+		}
+		b.addStatement(ball, RDFS.LABEL, vf.createLiteral("ball"));
+		b.commit();
+		try {
+			a.commit();
+			fail();
+		} catch (SailConflictException e) {
+			a.rollback();
+		}
+		assertEquals(0, count(a, bat));
+	}
+
+	public void testSnapshotWriteSkew() throws Exception {
+		a.begin();
+		b.begin();
+		if (count(a, ball) == 0) {
+			a.addStatement(bat, RDFS.LABEL, vf.createLiteral("bat"));
+		}
+		b.addStatement(ball, RDFS.LABEL, vf.createLiteral("ball"));
+		b.commit();
+		a.commit();
+		assertEquals(1, count(a, bat));
+	}
+
+	public void testUpdate() throws Exception {
+		add(ball, "base ball");
+		SailRepository repo = new SailRepository(sail);
+		RepositoryConnection con = repo.getConnection();
+		try {
+			con.begin();
+			con.prepareUpdate(QueryLanguage.SPARQL,
+					"DELETE { ?s ?p ?o } INSERT { ?s ?p 'foot ball' }\n"
+							+ "WHERE { ?s ?p ?o }").execute();
+			assertTrue(con.hasStatement(ball, RDFS.LABEL,
+					vf.createLiteral("foot ball"), false));
+			assertFalse(con.hasStatement(ball, RDFS.LABEL,
+					vf.createLiteral("base ball"), false));
+			assertEquals(1, count(a, ball));
+			con.commit();
+		} finally {
+			con.close();
+		}
+		assertTrue(a.getStatements(ball, RDFS.LABEL,
+				vf.createLiteral("foot ball"), false).hasNext());
+	}
+
+	public void testConcurrentWriters() throws Exception {
+		final URI counter = vf.createURI("urn:test:counter");
+		final int threads = 4;
+		final int increments = 25;
+		b.begin();
+		b.addStatement(counter, RDFS.LABEL, vf.createLiteral(0));
+		b.commit();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			for (int t = 0; t < threads; t++) {
+				futures.add(executor.submit(new Callable<Integer>() {
+					public Integer call() throws Exception {
+						int conflicts = 0;
+						SailConnection con = sail.getConnection();
+						try {
+							for (int i = 0; i < increments; i++) {
+								while (!increment(con, counter)) {
+									conflicts++;
+								}
+							}
+						} finally {
+							con.close();
+						}
+						return conflicts;
+					}
+				}));
+			}
+			for (Future<Integer> future : futures) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdown();
+		}
+		a.begin();
+		assertEquals(threads * increments, read(a, counter));
+		a.commit();
+	}
+
+	private boolean increment(SailConnection con, URI counter)
+			throws SailException {
+		con.begin();
+		try {
+			int value = read(con, counter);
+			con.removeStatements(counter, RDFS.LABEL, null);
+			con.addStatement(counter, RDFS.LABEL, vf.createLiteral(value + 1));
+			con.commit();
+			return true;
+		} catch (SailConflictException e) {
+			return false;
+		} finally {
+			if (con.isActive()) {
+				con.rollback();
+			}
+		}
+	}
+
+	private int read(SailConnection con, URI counter) throws SailException {
+		CloseableIteration<? extends Statement, SailException> stmts;
+		stmts = con.getStatements(counter, RDFS.LABEL, null, false);
+		try {
+			assertTrue(stmts.hasNext());
+			int value = ((Literal) stmts.next().getObject()).intValue();
+			assertFalse(stmts.hasNext());
+			return value;
+		} finally {
+			stmts.close();
+		}
+	}
+
+	private void add(URI subj, String label) throws SailException {
+		SailConnection con = sail.getConnection();
+		try {
+			con.begin();
+			con.addStatement(subj, RDFS.LABEL, vf.createLiteral(label));
+			con.commit();
+		} finally {
+			con.close();
+		}
+	}
+
+	private int count(SailConnection con, URI subj) throws SailException {
+		CloseableIteration<? extends Statement, SailException> stmts;
+		stmts = con.getStatements(subj, null, null, false);
+		try {
+			int count = 0;
+			while (stmts.hasNext()) {
+				stmts.next();
+				count++;
+			}
+			return count;
+		} finally {
+			stmts.close();
+		}
+	}
+
+	private int query(SailConnection con) throws Exception {
+		ParsedTupleQuery qry = QueryParserUtil.parseTupleQuery(
+				QueryLanguage.SPARQL, "SELECT * { ?s ?p ?o }", null);
+		CloseableIteration<? extends BindingSet, QueryEvaluationException> result;
+		result = con.evaluate(qry.getTupleExpr(), null,
+				EmptyBindingSet.getInstance(), false);
+		try {
+			int count = 0;
+			while (result.hasNext()) {
+				result.next();
+				count++;
+			}
+			return count;
+		} finally {
+			result.close();
+		}
+	}
+}
@@ -99,6 +99,8 @@ jQuery(function($){
             return false;
         }).on('drop', dropResourceURL.bind(this, $('#page-lookup').prop('href'), $(selector).selectize({
             load: resourceSearch.bind(this, $('#page-search').prop('href')),
+            score: keepOrder,
+            sortField: '$order',
             create: createTemplate.bind(this, $('#sample-' + pragma).prop('href'), selector),
             render: {
                 option: renderOption,
@@ -195,6 +197,14 @@ jQuery(function($){
         });
     }
 
+    function keepOrder(search) {
+        // page-search.rq already ranks its results, so only filter here
+        var score = this.getScoreFunction(search);
+        return function(item) {
+            return score(item) > 0 ? 1 : 0;
+        };
+    }
+
     function resourceSearch(template, query, callback) {
         if (!query) return callback();
         var url = template.replace('{q}', encodeURIComponent(query));